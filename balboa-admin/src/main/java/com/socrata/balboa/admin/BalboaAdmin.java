@@ -9,6 +9,9 @@ import com.socrata.balboa.admin.tools.Lister;
 import com.socrata.balboa.metrics.data.DataStoreFactory;
 import com.socrata.balboa.metrics.data.DefaultDataStoreFactory;
 import com.socrata.balboa.metrics.data.Period;
+import com.socrata.balboa.metrics.data.impl.RegistryBackfill;
+import com.socrata.balboa.metrics.data.impl.RetentionSweep;
+import com.socrata.balboa.metrics.data.impl.RollupJob;
 import com.socrata.balboa.metrics.data.impl.SupportedPeriods;
 import com.typesafe.config.ConfigFactory;
 
@@ -23,11 +26,14 @@ public class BalboaAdmin
         System.err.println("Balboa admin utility:\n" +
            "\tjava -jar balboa-admin <command> [args]\n\n" +
            "Commands:\n" +
-           "\tfsck [filters...]  : Check the balboa file system and validate the correctness of the tiers. This will probably take a long time.\n" +
+           "\tfsck [prefixes...] : Check the balboa file system and validate the correctness of the tiers, for the entity ids starting with any of the optional prefixes. This will probably take a long time.\n" +
            "\tfill file          : Restore balboa metrics from [file].\n" +
-           "\tdump [filters...]  : Dump all of the data in a balboa store to stdout in a format suitable for fill, with an optional entity regex\n" +
+           "\tdump [entityIds...]: Dump all of the data in a balboa store, or of the given entities, to stdout in a format suitable for fill\n" +
            "\tdump-only entityId : Dump a specific entity in a format suitable for fill\n" +
-           "\tlist [filters...]  : Dump all of the entity keys in a balboa store to stdout, with an optional entity regex"
+           "\tlist [prefixes...] : Dump all of the entity keys in a balboa store to stdout, or those starting with any of the optional prefixes\n" +
+           "\trollup             : Derive the coarser tiers of a Cassandra store from its most granular tier\n" +
+           "\tsweep              : Delete the buckets of a Cassandra store that are past the retention of their tier\n" +
+           "\tbackfill-registry  : Register every entity of a Cassandra store written to before the entity registry existed"
         );
     }
 
@@ -121,6 +127,15 @@ public class BalboaAdmin
         } else if (command.equals("list")) {
             Lister lister = new Lister(dataStoreFactory);
             lister.listJava(Arrays.asList(args).subList(1, args.length).iterator());
+        } else if (command.equals("rollup")) {
+            long written = RollupJob.apply(ConfigFactory.load()).run();
+            System.out.println("Rolled up " + written + " buckets");
+        } else if (command.equals("sweep")) {
+            long deleted = RetentionSweep.apply(ConfigFactory.load()).run();
+            System.out.println("Deleted " + deleted + " buckets");
+        } else if (command.equals("backfill-registry")) {
+            long read = RegistryBackfill.apply(ConfigFactory.load()).run();
+            System.out.println("Registered the entities of " + read + " rows");
         } else {
             System.err.println("Unknown command '" + command + "'.");
             usage();
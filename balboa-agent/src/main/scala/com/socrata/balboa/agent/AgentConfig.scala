@@ -21,6 +21,12 @@ class AgentConfig(conf: Config) extends JMSClientConfig(conf) {
 
   val initialDelayMs: Long = conf.getLong(Keys.InitialDelayMs)
 
+  val batchSize: Int = conf.getInt(Keys.BatchSize)
+
+  val parallelism: Int = conf.getInt(Keys.Parallelism)
+
+  val reconcileIntervalMs: Long = conf.getLong(Keys.ReconcileIntervalMs)
+
   val transportType: TransportType =
     conf.getString(Keys.TransportType) match {
       case "HTTP" => Http
@@ -32,6 +38,9 @@ class AgentConfig(conf: Config) extends JMSClientConfig(conf) {
   val balboaHttpUrl: String = conf.getString(Keys.BalboaHttpUrl)
   val balboaHttpTimeout: Duration = conf.getLong(Keys.BalboaHttpTimeoutMs).millis
   val balboaHttpMaxRetryWait: Duration = conf.getLong(Keys.BalboaHttpMaxRetryWaitMs).millis
+  val balboaHttpBatchSize: Int = conf.getInt(Keys.BalboaHttpBatchSize)
+  val balboaHttpLinger: FiniteDuration = conf.getLong(Keys.BalboaHttpLingerMs).millis
+  val balboaHttpMaxInFlight: Int = conf.getInt(Keys.BalboaHttpMaxInFlight)
 
   val activemqCloseTimeout: Int = conf.getInt(Keys.JMSActiveMQCloseTimeout)
 }
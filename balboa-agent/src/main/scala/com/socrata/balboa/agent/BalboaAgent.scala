@@ -27,10 +27,13 @@ object BalboaAgent extends App with StrictLogging {
   logger info "Starting balboa-agent."
   private val scheduler = Executors.newScheduledThreadPool(1)
   private val dataDir = conf.dataDirectory
-  BalboaAgentMetrics.numFiles("data", dataDir, Some(FileUtils.isBalboaDataFile))
-  BalboaAgentMetrics.numFiles("broken", dataDir, Some(FileUtils.isBalboaBrokenFile))
-  BalboaAgentMetrics.numFiles("lock", dataDir, Some(FileUtils.isBalboaLockFile))
-  BalboaAgentMetrics.numFiles("immutable", dataDir, Some(FileUtils.isBalboaImmutableFile))
+  private val fileProvider = new WatchingMetricFileProvider(dataDir.toPath, conf.reconcileIntervalMs)
+  BalboaAgentMetrics.numFiles("data", fileProvider.numFiles(FileUtils.isBalboaDataFileName))
+  Seq("broken" -> FileUtils.BROKEN_FILE_EXTENSION, "lock" -> FileUtils.LOCK_FILE_EXTENSION,
+    "immutable" -> FileUtils.IMMUTABLE_FILE_EXTENSION, "checkpoint" -> FileUtils.CHECKPOINT_FILE_EXTENSION).foreach {
+    case (metricName, extension) =>
+      BalboaAgentMetrics.numFiles(metricName, fileProvider.numFiles(FileUtils.hasExtension(_, extension)))
+  }
   private val jmxReporter = JmxReporter.forRegistry(BalboaAgentMetrics.registry).build()
   logger info "Starting the JMX Reporter."
   jmxReporter.start()
@@ -41,14 +44,18 @@ object BalboaAgent extends App with StrictLogging {
       HttpMetricQueue(
         conf.balboaHttpUrl,
         conf.balboaHttpTimeout,
-        conf.balboaHttpMaxRetryWait
+        conf.balboaHttpMaxRetryWait,
+        batchSize = conf.balboaHttpBatchSize,
+        lingerTime = conf.balboaHttpLinger,
+        maxInFlight = conf.balboaHttpMaxInFlight
       )
   }
 
   val future: ScheduledFuture[_] = scheduler.scheduleWithFixedDelay(new Runnable {
     override def run(): Unit = {
       try {
-        val mc = new MetricConsumer(dataDir, metricPublisher)
+        val mc = new MetricConsumer(dataDir, metricPublisher, fileProvider,
+          conf.batchSize, conf.parallelism)
         try {
           logger debug s"Attempting to run Metric Consumer $mc"
           mc.run() // Recursively reads all metric data files and writes them to a queue.
@@ -81,6 +88,7 @@ object BalboaAgent extends App with StrictLogging {
       logger info "Canceling current and future runs."
       future.cancel(false)
       metricPublisher.close()
+      fileProvider.close()
       logger info "Stopping the JMX Reporter."
       jmxReporter.stop()
     }
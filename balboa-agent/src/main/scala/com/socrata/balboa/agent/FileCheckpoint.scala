@@ -0,0 +1,53 @@
+package com.socrata.balboa.agent
+
+import java.io.{File, IOException, RandomAccessFile}
+
+import com.socrata.balboa.util.FileUtils
+
+/**
+  * The offset that the records of a metrics data file have been published up to, kept next to it in a file
+  * ending in [[FileUtils.CHECKPOINT_FILE_EXTENSION]] so that it survives a restart of the agent.
+  *
+  * @param dataFile The metrics data file this is the checkpoint of.
+  */
+class FileCheckpoint(dataFile: File) {
+  val file: File = new File(dataFile.getAbsolutePath + FileUtils.CHECKPOINT_FILE_EXTENSION)
+
+  /**
+    * @return The offset published up to, or 0 if nothing has been.
+    */
+  @throws[IOException]
+  def offset: Long = {
+    if (file.exists) {
+      val checkpoint = new RandomAccessFile(file, "r")
+      try {
+        checkpoint.readLong()
+      } finally {
+        checkpoint.close()
+      }
+    } else {
+      0L
+    }
+  }
+
+  /**
+    * Records that everything before `offset` has been published. The checkpoint is overwritten in place rather
+    * than truncated first, so that a crash can never leave it empty, and forced to disk before this returns, so
+    * that it never lags behind what has been published.
+    */
+  @throws[IOException]
+  def set(offset: Long): Unit = {
+    val checkpoint = new RandomAccessFile(file, "rw")
+    try {
+      checkpoint.writeLong(offset)
+      checkpoint.getFD.sync()
+    } finally {
+      checkpoint.close()
+    }
+  }
+
+  /**
+    * @return false if the checkpoint exists and could not be deleted.
+    */
+  def delete(): Boolean = !file.exists || file.delete()
+}
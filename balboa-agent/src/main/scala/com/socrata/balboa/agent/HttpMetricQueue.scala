@@ -1,36 +1,76 @@
 package com.socrata.balboa.agent
 
+import java.io.IOException
 import java.net.{URL, URLEncoder}
 import java.util.Date
+import java.util.concurrent.{Executors, RejectedExecutionException, Semaphore, ThreadFactory, TimeUnit}
 
-import com.socrata.balboa.metrics.{EntityJSON, Metric, MetricJSON}
+import com.socrata.balboa.metrics.{EntityJSON, EntityRecordJSON, Metric, MetricJSON, Metrics}
 import com.socrata.metrics.{IdParts, MetricQueue}
 import com.stackmob.newman.dsl.POST
-import com.stackmob.newman.response.HttpResponseCode.Ok
+import com.stackmob.newman.response.HttpResponseCode.BadRequest
 import com.stackmob.newman.{ApacheHttpClient, HttpClient}
 import com.typesafe.scalalogging.StrictLogging
-import org.json4s.jackson.JsonMethods.{pretty, render}
+import org.json4s.jackson.JsonMethods.{compact, render}
 import org.json4s.{DefaultFormats, Extraction, Formats}
 
+import scala.collection.JavaConverters._
+import scala.collection.mutable
 import scala.concurrent.duration._
-import scala.concurrent.{Await, ExecutionContext, ExecutionContextExecutor}
+import scala.concurrent.{Await, ExecutionContext, ExecutionContextExecutor, Future, Promise}
 import scala.util.{Failure, Success, Try}
 
+object HttpMetricQueue {
+  val DefaultBatchSize: Int = 5000
+  val DefaultLingerTime: FiniteDuration = 1.second
+  val DefaultMaxInFlight: Int = 4
+
+  private def daemonThreads(name: String): ThreadFactory = new ThreadFactory {
+    def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, name)
+      thread.setDaemon(true)
+      thread
+    }
+  }
+}
+
 /**
   * Utility for persisting metrics to balboa-http
   *
+  * Metrics are collected into batches that are posted to balboa-http's batch endpoint, POST /metrics, as a JSON
+  * array of [[EntityRecordJSON]]. A batch is sent once it holds `batchSize` metrics, or `lingerTime` after its first
+  * metric was added, or on [[flush]]. Up to `maxInFlight` batches are sent at once over the one `httpClient`, whose
+  * connections are pooled and kept alive, and creating metrics blocks while that many full batches are waiting or
+  * being sent. A batch is never sent while an earlier one with records of the same entity is waiting or being
+  * sent, so that balboa-http receives the records of each entity in the order they were created, and an ABSOLUTE
+  * value is never overwritten by an older one.
+  *
+  * Each batch is retried with exponential backoff, up to `maxRetries` times, after which it is dropped, and the
+  * next flush of every thread that created metrics in it throws, so that the caller can create them again. A batch
+  * balboa-http rejects as a bad request is sent again one record at a time to the single entity endpoint, so that
+  * one bad record can not hold up the others; should that be given up on, the records already sent are sent again
+  * by the caller too.
+  *
   * @param balboaHttpURL Base url of balboa-http
   * @param timeout Duration to wait before a request should be considered failed
   * @param maxRetryWait Maximum delay between retries
   * @param maxRetries Max number times to retry the HTTP request
   * @param httpClient The HttpClient to use for making requests to balboa-http
+  * @param batchSize Number of metrics sent in one request
+  * @param lingerTime Longest a metric waits for its batch to fill up
+  * @param maxInFlight Number of requests sent at once
   */
 case class HttpMetricQueue(balboaHttpURL: String,
                            timeout: Duration,
                            maxRetryWait: Duration,
                            maxRetries: Option[Int] = None,
-                           implicit val httpClient: HttpClient = new ApacheHttpClient)
+                           implicit val httpClient: HttpClient = new ApacheHttpClient,
+                           batchSize: Int = HttpMetricQueue.DefaultBatchSize,
+                           lingerTime: FiniteDuration = HttpMetricQueue.DefaultLingerTime,
+                           maxInFlight: Int = HttpMetricQueue.DefaultMaxInFlight)
   extends MetricQueue with StrictLogging {
+  require(batchSize > 0, "Batch size must be positive")
+  require(maxInFlight > 0, "Max in flight must be positive")
 
   val StartingWaitDuration: FiniteDuration = 50.millis
   val Utf8 = "UTF-8"
@@ -38,6 +78,34 @@ case class HttpMetricQueue(balboaHttpURL: String,
   implicit val jsonFormats: Formats = DefaultFormats
   implicit val executionContext: ExecutionContextExecutor = ExecutionContext.global
 
+  // Requests are awaited, so each one in flight holds a thread of its own.
+  private val senders = Executors.newFixedThreadPool(maxInFlight, HttpMetricQueue.daemonThreads("http-metric-queue"))
+  private val lingerTimer =
+    Executors.newSingleThreadScheduledExecutor(HttpMetricQueue.daemonThreads("http-metric-queue-linger"))
+  // One permit per full batch that may be waiting or being sent without holding up the creation of metrics.
+  private val capacity = new Semaphore(maxInFlight)
+
+  // Guards the batch being filled, the batches taken from it that have not been sent yet, and the failures yet
+  // to be reported. Never held while waiting, as metrics are created while holding this queue's own monitor.
+  private val lock = new Object
+  private var batch = mutable.ArrayBuffer[EntityRecordJSON]()
+  private var batchMetrics = 0
+  private var batchNumber = 0L
+  private val batchCreators = mutable.Set[Long]()
+  private val sending = mutable.Set[Future[Unit]]()
+  private val waiting = mutable.ArrayBuffer[Batch]()
+  private val inFlight = mutable.ArrayBuffer[Batch]()
+  private val failures = mutable.Map[Long, Throwable]()
+
+  /**
+    * @param creators Ids of the threads that created the records.
+    * @param full     Whether the batch was taken because it was full, and so holds a permit of `capacity`.
+    */
+  private final class Batch(val records: Seq[EntityRecordJSON], val creators: Set[Long], val full: Boolean) {
+    val entities: Set[String] = records.iterator.map(_.entityId).toSet
+    val sent: Promise[Unit] = Promise()
+  }
+
   logger.info(s"Initializing HttpMetricQueue targeting $balboaHttpURL")
 
   /**
@@ -54,10 +122,140 @@ case class HttpMetricQueue(balboaHttpURL: String,
              value: Long,
              timestamp: Long = new Date().getTime,
              recordType: Metric.RecordType = Metric.RecordType.AGGREGATE): Unit = {
+    add(EntityRecordJSON(entity.toString, timestamp, Map(name.toString -> MetricJSON(value, recordType.toString))))
+  }
+
+  /**
+   * Accepts several metrics of one entity, which are sent as a single record.
+   */
+  override def createAll(entity: IdParts, timestamp: Long, metrics: Metrics): Unit = {
+    add(EntityRecordJSON(entity.toString, timestamp, metrics.asScala.map { case (name, metric) =>
+      name -> MetricJSON(metric.getValue.longValue, metric.getType.toString)
+    }.toMap))
+  }
+
+  /**
+   * Sends the batch being filled, and waits for it and every batch taken before it.
+   *
+   * @throws IOException if a batch holding metrics this thread created was given up on after `maxRetries` since
+   *                     its last flush. Those metrics are not sent, and are for the caller to create again.
+   */
+  @throws[IOException]
+  override def flush(): Unit = {
+    val outstanding = lock.synchronized {
+      takeBatch(None, full = false)
+      sending.toList
+    }
+    outstanding.foreach(future => Try(Await.result(future, Duration.Inf)))
+    lock.synchronized(failures.remove(Thread.currentThread.getId)).foreach { e =>
+      throw new IOException("Unable to send metrics to balboa-http", e)
+    }
+  }
+
+  private def add(record: EntityRecordJSON): Unit = {
+    val full = lock.synchronized {
+      if (batch.isEmpty) {
+        scheduleLinger()
+      }
+      batch += record
+      batchMetrics += record.metrics.size
+      batchCreators += Thread.currentThread.getId
+      batchMetrics >= batchSize && takeBatch(None, full = true)
+    }
+    if (full) capacity.acquire()
+  }
+
+  private def scheduleLinger(): Unit = {
+    val number = batchNumber
+    if (!lingerTimer.isShutdown) {
+      lingerTimer.schedule(new Runnable {
+        def run(): Unit = takeBatch(Some(number), full = false)
+      }, lingerTime.toMillis, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  /**
+   * Takes the batch being filled, if it is still batch `number`, to be sent in turn.
+   *
+   * @return whether a batch was taken.
+   */
+  private def takeBatch(number: Option[Long], full: Boolean): Boolean = lock.synchronized {
+    if (batch.isEmpty || number.exists(_ != batchNumber)) {
+      false
+    } else {
+      val taken = new Batch(batch, batchCreators.toSet, full)
+      batch = mutable.ArrayBuffer[EntityRecordJSON]()
+      batchMetrics = 0
+      batchNumber += 1
+      batchCreators.clear()
+      val future = taken.sent.future
+      sending += future
+      future.onComplete(_ => lock.synchronized(sending -= future))
+      waiting += taken
+      dispatch()
+      true
+    }
+  }
+
+  /**
+   * Starts sending every waiting batch that no earlier batch, waiting or being sent, shares an entity with, while
+   * fewer than `maxInFlight` are being sent.
+   */
+  private def dispatch(): Unit = lock.synchronized {
+    val blocked = mutable.Set[String]()
+    inFlight.foreach(blocked ++= _.entities)
+    waiting.toList.foreach { next =>
+      if (waiting.contains(next) && inFlight.size < maxInFlight && !next.entities.exists(blocked.contains)) {
+        waiting -= next
+        inFlight += next
+        send(next)
+      }
+      blocked ++= next.entities
+    }
+  }
+
+  /**
+   * Sends `taken` in the background, then dispatches the batches it held up.
+   */
+  private def send(taken: Batch): Unit = {
+    try {
+      senders.execute(new Runnable {
+        def run(): Unit = sent(taken, Try(postBatch(taken.records)))
+      })
+    } catch {
+      case e: RejectedExecutionException => sent(taken, Failure(new IOException("HttpMetricQueue is closed", e)))
+    }
+  }
 
-    val metricToWrite = EntityJSON(timestamp, Map(name.toString -> MetricJSON(value, recordType.toString)))
-    val url = new URL(s"$balboaHttpURL/metrics/${URLEncoder.encode(entity.toString, Utf8)}")
-    val request = POST(url).setBody(pretty(render(Extraction.decompose(metricToWrite))))
+  private def sent(taken: Batch, result: Try[Unit]): Unit = {
+    lock.synchronized {
+      result.failed.foreach(e => taken.creators.foreach(failures.put(_, e)))
+      inFlight -= taken
+      dispatch()
+    }
+    if (taken.full) capacity.release()
+    taken.sent.complete(result)
+  }
+
+  private def postBatch(records: Seq[EntityRecordJSON]): Unit = {
+    val url = new URL(s"$balboaHttpURL/metrics")
+    if (!post(url, compact(render(Extraction.decompose(records))), rejectable = true)) {
+      logger info s"Balboa HTTP rejected a batch of ${records.size} records, sending them one at a time"
+      records.foreach { record =>
+        val entityUrl = new URL(s"$balboaHttpURL/metrics/${URLEncoder.encode(record.entityId, Utf8)}")
+        post(entityUrl, compact(render(Extraction.decompose(EntityJSON(record.timestamp, record.metrics)))),
+          rejectable = false)
+      }
+    }
+  }
+
+  /**
+   * @param rejectable Whether to give up straight away if the body is rejected as a bad request.
+   * @return true once the body is accepted, false if it is rejected and `rejectable`.
+   * @throws IOException if it is neither after `maxRetries`.
+   */
+  private def post(url: URL, body: String, rejectable: Boolean): Boolean = {
+    val request = POST(url).setBody(body)
 
     var waitInLoop = StartingWaitDuration
 
@@ -68,14 +266,8 @@ case class HttpMetricQueue(balboaHttpURL: String,
     // ActiveMQ's behavior of getting stuck here and infinitely retrying was
     // taken to make the code transition simpler.
     //
-    // An improvement on this naive infinite retry policy could go one of two ways:
-    // 1. Adapt `balboa-http` to accept all transmissions and persist the ones
-    //    it can't parsed, retrying them later (when it's been upgraded for
-    //    example). This would safer for keeping accurate metrics.
-    // 2. Make `balboa-agent` respond differently to different HTTP error
-    //    codes. Possibly, for example (but not exhaustively) 404, 500s are
-    //    infinite retry, but 400s are written to a file to be retried in the
-    //    future.
+    // Bad requests to the batch endpoint are the exception, as a batch can be
+    // rejected because of any one of its records; see postBatch.
     var i = 0
     while (maxRetries.forall(i < _)) {
       val requestWithTimeout = Try(Await.result(request.apply, timeout))
@@ -83,8 +275,10 @@ case class HttpMetricQueue(balboaHttpURL: String,
       requestWithTimeout match {
         case Success(response) =>
           val responseCode = response.code.code
-          if (responseCode == Ok.code) {
-            return // scalastyle:ignore return
+          if (responseCode / 100 == 2) { // scalastyle:ignore magic.number
+            return true // scalastyle:ignore return
+          } else if (responseCode == BadRequest.code && rejectable) {
+            return false // scalastyle:ignore return
           }
           logger info s"HTTP POST to Balboa HTTP returned error code $responseCode: ${response.bodyString}"
         case Failure(failure) =>
@@ -96,7 +290,15 @@ case class HttpMetricQueue(balboaHttpURL: String,
 
       i += 1
     }
+    throw new IOException(s"HTTP POST to $url failed after $i attempts")
   }
 
-  override def close(): Unit = {}
+  /**
+   * Stops sending. Metrics that have not been flushed may never be sent, which loses nothing for a caller that
+   * only counts metrics as sent once flush returns.
+   */
+  override def close(): Unit = {
+    lingerTimer.shutdownNow()
+    senders.shutdown()
+  }
 }
@@ -1,6 +1,10 @@
 package com.socrata.balboa.agent
 
 import java.io._
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.{Callable, ExecutionException, Executors, ThreadFactory}
 import java.util.regex.Pattern
 
 import com.codahale.metrics.Timer
@@ -8,10 +12,10 @@ import com.socrata.balboa.agent.metrics.BalboaAgentMetrics
 import com.socrata.balboa.util.FileUtils
 import com.socrata.metrics.{Fluff, MetricQueue}
 import com.typesafe.scalalogging.LazyLogging
-import resource._
-import scodec.Attempt.{Successful, Failure => AttemptFailure}
-import scodec.bits.BitVector
-import scodec.{Codec, DecodeResult}
+
+import scala.collection.mutable.ArrayBuffer
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success, Try}
 
 /**
   * The MetricConsumer consumes metrics from data files from within a specific directory.  Any metrics extracted will
@@ -36,6 +40,7 @@ object MetricConsumer {
   val RECORD_TYPE: String = "type"
   val fields: List[String] = List(TIMESTAMP, ENTITY_ID, NAME, VALUE, RECORD_TYPE)
   val integerPattern: Pattern = "-?[0-9]+".r.pattern
+  val DEFAULT_BATCH_SIZE: Int = 1000
 }
 // scalastyle:on field.name
 
@@ -47,12 +52,20 @@ object MetricConsumer {
   * @param directory       Directory in which to process metrics.
   * @param metricPublisher Queue to emit metrics to.
   * @param fileProvider    The { @link FileFilter} used to determine which files are allowed to be processed.
+  * @param batchSize       Number of aggregated values held before they are published and checkpointed.
+  * @param parallelism     Number of directories processed at once.
   */
-class MetricConsumer(val directory: File, val metricPublisher: MetricQueue, val fileProvider: MetricFileProvider)
+class MetricConsumer(val directory: File,
+                     val metricPublisher: MetricQueue,
+                     val fileProvider: MetricFileProvider,
+                     val batchSize: Int = MetricConsumer.DEFAULT_BATCH_SIZE,
+                     val parallelism: Int = 1)
   extends Runnable with AutoCloseable with LazyLogging {
   require(Option(directory).nonEmpty, "Directory cannot be null")
   require(directory.isDirectory, s"$directory is not a directory")
   require(Option(metricPublisher).nonEmpty, "Metric Queue cannot be null")
+  require(batchSize > 0, "Batch size must be positive")
+  require(parallelism > 0, "Parallelism must be positive")
 
   /**
     * Creates Metric consumer that will attempt to find all the metric data within a directory
@@ -65,6 +78,13 @@ class MetricConsumer(val directory: File, val metricPublisher: MetricQueue, val
   /**
     * Attempts to process all the sub directories on the root directories for all possible
     * metrics.
+    *
+    * Each directory is processed by one worker, its files in name order, with up to `parallelism` directories
+    * processed at once. A worker aggregates the records of its directory per entity, bucket and name with a
+    * [[MetricsAggregator]], and publishes one message per entity and bucket. Workers take turns publishing a
+    * batch at a time, as a [[MetricQueue]] need not be thread safe, so a slow metricPublisher holds every worker
+    * up with no more than a batch each read ahead of it.
+    * Should a directory fail, the others are still processed before the first failure is rethrown.
     */
   def run(): Unit = {
     logger.info(s"Looking for metrics files recursively in '${directory.getAbsoluteFile}'")
@@ -75,39 +95,80 @@ class MetricConsumer(val directory: File, val metricPublisher: MetricQueue, val
     // of others.
     // the "Alphabetic" file provider returns a set, which is not guaranteed to be in order.  Sorting here to avoid
     // a larger-than-necessary refactor... for now.
-    val files: List[File] = fileProvider.provide.toList.sortBy(_.getName)
-    val recordsProcessed: Int = files.foldLeft(0) { (count: Int, metricsEventLog: File) =>
-      logger.info(s"Processing '${metricsEventLog.getAbsolutePath}'.")
-      val recordsOrErrors = processFile(metricsEventLog)
-      val newRecordsCount = recordsOrErrors match {
-        case Left(errors) =>
-          errors.foreach(logger.error(s"Error reading records from $metricsEventLog", _))
-          BalboaAgentMetrics.metricsProcessingFailureCounter.inc()
-          val broken: File = new File(metricsEventLog.getAbsolutePath + FileUtils.BROKEN_FILE_EXTENSION)
-          if (!metricsEventLog.renameTo(broken)) {
-            logger.warn(s"Unable to rename broken file $metricsEventLog permissions issue?")
-            BalboaAgentMetrics.renameBrokenFileFailureCounter.inc()
-          }
-          0
-        case Right(records) =>
-          records.foreach(publishRecord)
-          if (!metricsEventLog.delete) {
-            logger.error(s"Unable to delete event log $metricsEventLog - file may be read twice, which is bad.")
-            BalboaAgentMetrics.deleteEventFailureCounter.inc()
-          }
-          records.size
-      }
-      newRecordsCount + count
-    }
+    val directories: List[List[File]] =
+      fileProvider.provide.toList.groupBy(_.getParentFile).values.map(_.sortBy(_.getName)).toList
+    val results = processDirectories(directories)
+    val recordsProcessed: Int = results.collect({ case Success(count) => count }).sum
     val processingTime: Long = System.currentTimeMillis - start
     logger.info(s"Run completed, processed $recordsProcessed in $processingTime ms")
     BalboaAgentMetrics.metricsEmittedCount.inc(recordsProcessed)
     BalboaAgentMetrics.metricsEmittedMeter.mark(recordsProcessed)
     runTimer.stop
+    results.collectFirst({ case Failure(e) => e }).foreach(e => throw e)
+  }
+
+  private def processDirectories(directories: List[List[File]]): List[Try[Int]] = {
+    if (parallelism == 1 || directories.size <= 1) {
+      directories.map(files => Try(processDirectory(files)))
+    } else {
+      val executor = Executors.newFixedThreadPool(math.min(parallelism, directories.size), new ThreadFactory {
+        def newThread(r: Runnable): Thread = {
+          val thread = new Thread(r, "metric-consumer")
+          thread.setDaemon(true)
+          thread
+        }
+      })
+      try {
+        directories.map { files =>
+          executor.submit(new Callable[Int] {
+            def call(): Int = processDirectory(files)
+          })
+        }.map { future =>
+          Try(future.get()).recoverWith({ case e: ExecutionException => Failure(e.getCause) })
+        }
+      } finally {
+        executor.shutdown()
+      }
+    }
   }
 
-  private def publishRecord(r: MetricsRecord): Unit = {
-    metricPublisher.create(Fluff(r.entityId), Fluff(r.name), r.value.longValue, r.timestamp, r.metricType)
+  private def processDirectory(files: List[File]): Int = {
+    val start: Long = System.currentTimeMillis
+    val unpublished = new Unpublished
+    val recordsProcessed = files.foldLeft(0) { (count: Int, metricsEventLog: File) =>
+      logger.info(s"Processing '${metricsEventLog.getAbsolutePath}'.")
+      processFile(metricsEventLog, unpublished) + count
+    }
+    unpublished.publish()
+    BalboaAgentMetrics.singleDirectoryRuntimeHistogram.update(System.currentTimeMillis - start)
+    BalboaAgentMetrics.singleDirectoryNumProcessedHistogram.update(recordsProcessed)
+    recordsProcessed
+  }
+
+  /**
+    * The records read from a directory that are yet to be published, aggregated, and what is to be done with the
+    * files they were read from once they are.
+    */
+  private final class Unpublished {
+    val aggregator = new MetricsAggregator
+    private val completions = ArrayBuffer[() => Unit]()
+
+    def whenPublished(completion: => Unit): Unit = completions += (() => completion)
+
+    /**
+      * Publishes one message per entity and bucket aggregated. The metricPublisher is flushed without holding it,
+      * so that other workers can go on handing it metrics while it sends these.
+      */
+    def publish(): Unit = {
+      metricPublisher.synchronized {
+        aggregator.drain { (entityId, timestamp, metrics) =>
+          metricPublisher.createAll(Fluff(entityId), timestamp, metrics)
+        }
+      }
+      metricPublisher.flush()
+      completions.foreach(_.apply())
+      completions.clear()
+    }
   }
 
   /**
@@ -118,34 +179,142 @@ class MetricConsumer(val directory: File, val metricPublisher: MetricQueue, val
   }
 
   /**
-    * Given a metrics data file, attempt to extract all the metrics from the file and
-    * pushes these metrics into the underlying metricPublisher.
+    * Reads the records of a metrics data file into `unpublished`, decoding them straight from the mapped file, and
+    * deletes the file once they are all published.
+    *
+    * Once `batchSize` values are aggregated, at the first record that decoding can resume after, they are
+    * published, the offset just past that record is written to the file's [[FileCheckpoint]], and the files before
+    * it in the directory, all of whose records are then published, are deleted. The next run starts from the
+    * checkpoints, so a run that stops part way through (say, because the metricPublisher failed) only publishes
+    * again what the failed publish may have handed to the metricPublisher: the values aggregated since the last
+    * publish, from this file and from the ones before it in the directory. As a batch only ends after a whole
+    * compressed block, that may be more than `batchSize` values. If the file is malformed, the records before the
+    * malformed one are published, and the rest of a legacy file is moved aside as broken. A binary file can only be
+    * decoded from its start, so all of it is, with a checkpoint at the malformed block.
     *
     * @param f File to process.
-    * @return Either a list of { @link MetricsRecord}s that were process,
-    *         or list of unexpected errors occurred during processing
+    * @return The number of records read.
     */
-  private def processFile(f: File): Either[Seq[Throwable], List[MetricsRecord]] = {
-    val filePath: String = f.getAbsolutePath
-    logger.info(s"Processing file $filePath")
-    val managedResource = (for {
-      fileInputStream <- managed(new FileInputStream(f))
-    } yield {
-      val bitVector = BitVector.fromInputStream(fileInputStream)
-      Codec.decodeCollect[List, MetricsRecord](MetricsRecord.codec.asDecoder, None)(bitVector)
-    }).map(identity) // converts to extractable managed resource
-
-    managedResource.either.right.flatMap {
-      case Successful(DecodeResult(value, remainder)) =>
-        if (remainder.nonEmpty) {
-          Left(
-            Seq(new Error(s"Metric records file $filePath had remaining bits after decoding; is probably incomplete"))
-          )
-        } else {
-          Right(value)
+  private def processFile(f: File, unpublished: Unpublished): Int = {
+    logger.info(s"Processing file ${f.getAbsolutePath}")
+    val checkpoint = new FileCheckpoint(f)
+    Try(MetricsRecordDecoder.map(f)) match {
+      case Failure(e) =>
+        logger.error(s"Error reading records from $f", e)
+        quarantine(f, checkpoint)(f.renameTo)
+        0
+      case Success(buffer) =>
+        buffer.position(resumeFrom(f, checkpoint, buffer.limit))
+        var read = 0
+        var resumable = buffer.position
+        try {
+          MetricsRecordDecoder.decodeWithOffsets(buffer) { (record, next) =>
+            unpublished.aggregator.add(record)
+            read += 1
+            // Records in the middle of a compressed block can not be checkpointed after, so wait for its end.
+            if (unpublished.aggregator.size >= batchSize && next > resumable) {
+              unpublished.publish()
+              checkpoint.set(next)
+            }
+            resumable = next
+          }
+          unpublished.whenPublished(finish(f, checkpoint, buffer.limit))
+        } catch {
+          case e: MalformedMetricsFileException =>
+            logger.error(s"Error reading records from $f",
+              new Error(s"Error decoding metric records: ${e.getMessage}", e))
+            if (e.offset == 0) {
+              quarantine(f, checkpoint)(f.renameTo)
+            } else if (MetricsRecordDecoder.isBinary(buffer)) {
+              // The tail of a binary file has neither its magic nor its dictionary, so keep the whole of it.
+              unpublished.whenPublished(quarantine(f, checkpoint) { broken =>
+                val moved = f.renameTo(broken)
+                if (moved) recordBrokenOffset(broken, e.offset)
+                moved
+              })
+            } else {
+              // The records before the malformed one have yet to be published.
+              unpublished.whenPublished(quarantine(f, checkpoint) { broken =>
+                Try(moveTail(buffer, e.offset, broken, checkpoint)).isSuccess && f.delete()
+              })
+            }
         }
-      case AttemptFailure(cause) =>
-        Left(Seq(new Error(s"Error decoding metric records: ${cause.messageWithContext}")))
+        read
+    }
+  }
+
+  private def resumeFrom(f: File, checkpoint: FileCheckpoint, limit: Int): Int = {
+    Try(checkpoint.offset) match {
+      case Success(offset) if offset >= 0 && offset <= limit =>
+        offset.toInt
+      case Success(offset) =>
+        logger.warn(s"The checkpoint of $f, $offset, is not within its $limit bytes; publishing its records from the " +
+          "start.")
+        0
+      case Failure(e) =>
+        logger.warn(s"Unable to read the checkpoint of $f; publishing its records from the start.", e)
+        0
+    }
+  }
+
+  /**
+    * Deletes a file whose records have all been published, then its checkpoint. Should the file not be deleted,
+    * its checkpoint is moved to its end so that it is not published again.
+    */
+  private def finish(f: File, checkpoint: FileCheckpoint, end: Long): Unit = {
+    if (f.delete) {
+      checkpoint.delete()
+    } else {
+      logger.error(s"Unable to delete event log $f - moving its checkpoint to its end so it is not read twice.")
+      BalboaAgentMetrics.deleteEventFailureCounter.inc()
+      Try(checkpoint.set(end)).failed.foreach { e =>
+        logger.error(s"Unable to move the checkpoint of $f - file may be read twice, which is bad.", e)
+      }
+    }
+  }
+
+  /**
+    * Moves what is left of a file that can not be processed aside to a file with the
+    * [[FileUtils.BROKEN_FILE_EXTENSION]], with `moveAside`, then deletes its checkpoint.
+    */
+  private def quarantine(f: File, checkpoint: FileCheckpoint)(moveAside: File => Boolean): Unit = {
+    BalboaAgentMetrics.metricsProcessingFailureCounter.inc()
+    val broken: File = new File(f.getAbsolutePath + FileUtils.BROKEN_FILE_EXTENSION)
+    if (moveAside(broken)) {
+      checkpoint.delete()
+    } else {
+      logger.warn(s"Unable to rename broken file $f permissions issue?")
+      BalboaAgentMetrics.renameBrokenFileFailureCounter.inc()
+    }
+  }
+
+  /**
+    * Records in the checkpoint of a broken binary file that everything before `offset` in it has been published.
+    */
+  private def recordBrokenOffset(broken: File, offset: Long): Unit = {
+    logger.warn(s"$broken is malformed from offset $offset; the records before that have been published.")
+    Try(new FileCheckpoint(broken).set(offset)).failed.foreach { e =>
+      logger.error(s"Unable to record the offset $broken is malformed from.", e)
+    }
+  }
+
+  /**
+    * Copies the bytes of `buffer` from `offset` on to `broken`. The checkpoint is moved to `offset` first, so
+    * that if the copy fails the next run starts from the broken part rather than publishing the rest again.
+    */
+  @throws[IOException]
+  private def moveTail(buffer: ByteBuffer, offset: Long, broken: File, checkpoint: FileCheckpoint): Unit = {
+    checkpoint.set(offset)
+    val tail = buffer.duplicate()
+    tail.position(offset.toInt)
+    val out = FileChannel.open(broken.toPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+      StandardOpenOption.TRUNCATE_EXISTING)
+    try {
+      while (tail.hasRemaining) {
+        out.write(tail)
+      }
+    } finally {
+      out.close()
     }
   }
 
@@ -1,10 +1,11 @@
 package com.socrata.balboa.agent
 
-import java.io.File
-import java.nio.file.Path
+import java.io.{File, IOException}
+import java.nio.file._
 import com.socrata.balboa.util.FileUtils
 import com.typesafe.scalalogging.LazyLogging
 import scala.collection.JavaConverters._
+import scala.collection.mutable
 
 /**
   * A Metric File Provider provides a set of Metric Data Files.
@@ -81,5 +82,129 @@ case class AlphabeticMetricFileProvider(override val path: Path)
   }
 }
 
+/**
+  * Provides the same files as [[AlphabeticMetricFileProvider]], from an index of the files under `path` that is
+  * kept up to date from a [[WatchService]] rather than by listing every directory each time.
+  *
+  * <br>
+  * Events are applied to the index when files are provided or counted. The whole tree is listed again every
+  * `reconcileIntervalMs`, and whenever the watch service overflows, to recover anything the events missed, such as
+  * files on a file system that does not report changes. A file is only provided if it still exists.
+  *
+  * @param path See [[DirectoryBasedMetricFileProvider.path]]
+  * @param reconcileIntervalMs How often the tree is listed again, in milliseconds.
+  */
+class WatchingMetricFileProvider(override val path: Path, reconcileIntervalMs: Long)
+    extends DirectoryBasedMetricFileProvider
+    with AutoCloseable
+    with LazyLogging {
+  require(reconcileIntervalMs >= 0, "Reconcile interval cannot be negative")
+
+  private val watcher: WatchService = path.getFileSystem.newWatchService()
+
+  private val watchedDirectories = mutable.HashMap[WatchKey, Path]()
+
+  // The names of the files, but not directories, in each directory, in the order AlphabeticMetricFileProvider sorts.
+  private val index = mutable.HashMap[Path, mutable.TreeSet[String]]()
+
+  private var nextReconcile = 0L
+
+  /**
+    * Reference [[AlphabeticMetricFileProvider.provide]]
+    *
+    * @return A set of Files.
+    */
+  override def provide: Set[File] = synchronized {
+    refresh()
+    val ready = index.toSeq.flatMap { case (dir, names) =>
+      val dataFiles = names.filter(FileUtils.isBalboaDataFileName)
+      val immutableFiles = dataFiles.filter(FileUtils.hasExtension(_, FileUtils.IMMUTABLE_FILE_EXTENSION))
+      (dataFiles.dropRight(1) ++ immutableFiles).toSeq.map(name => dir.resolve(name).toFile)
+    }
+    val (existing, missing) = ready.partition(_.isFile)
+    missing.foreach(f => index.get(f.getParentFile.toPath).foreach(_ -= f.getName))
+    existing.toSet
+  }
+
+  /**
+    * @param filter Whether a file counts, by its name.
+    * @return The number of files under `path` that `filter` accepts.
+    */
+  def numFiles(filter: String => Boolean): Int = synchronized {
+    refresh()
+    index.values.iterator.map(_.count(filter)).sum
+  }
+
+  override def close(): Unit = synchronized {
+    watcher.close()
+  }
+
+  private def refresh(): Unit = {
+    var overflowed = false
+    var key = watcher.poll()
+    while (key != null) { // scalastyle:ignore null
+      val events = key.pollEvents.asScala
+      // A key cancelled by reconcile() may still have been queued.
+      watchedDirectories.get(key).foreach { dir =>
+        events.foreach { event =>
+          val kind = event.kind
+          if (kind == StandardWatchEventKinds.OVERFLOW) {
+            overflowed = true
+          } else {
+            val name = event.context.asInstanceOf[Path].getFileName.toString
+            if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+              index.get(dir).foreach(_ -= name)
+            } else if (Files.isDirectory(dir.resolve(name))) {
+              indexTree(dir.resolve(name))
+            } else {
+              index.get(dir).foreach(_ += name)
+            }
+          }
+        }
+        if (!key.reset()) {
+          // The directory is gone, or no longer the one that was watched.
+          watchedDirectories -= key
+          index -= dir
+        }
+      }
+      key = watcher.poll()
+    }
 
+    val now = System.currentTimeMillis
+    if (overflowed || now >= nextReconcile) {
+      logger.debug(s"Reconciling the index of '$path'${if (overflowed) " after too many changes" else ""}.")
+      reconcile()
+      nextReconcile = if (now > Long.MaxValue - reconcileIntervalMs) Long.MaxValue else now + reconcileIntervalMs
+    }
+  }
+
+  private def reconcile(): Unit = {
+    val directories = FileUtils.getDirectories(path.toFile).map(_.toPath)
+    watchedDirectories.retain { case (key, dir) =>
+      directories.contains(dir) || { key.cancel(); false }
+    }
+    index.retain { case (dir, _) => directories.contains(dir) }
+    directories.foreach(indexDirectory)
+  }
+
+  private def indexTree(root: Path): Unit =
+    FileUtils.getDirectories(root.toFile).foreach(dir => indexDirectory(dir.toPath))
 
+  /**
+    * Watches `dir` and then lists it, so that no file created in between can be missed.
+    */
+  private def indexDirectory(dir: Path): Unit = {
+    try {
+      watchedDirectories(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_DELETE)) = dir
+      Option(dir.toFile.listFiles).foreach { files =>
+        index(dir) = mutable.TreeSet(files.filterNot(_.isDirectory).map(_.getName): _*)
+      }
+    } catch {
+      case e: IOException =>
+        // Most likely removed since it was found; reconciling will notice if it comes back.
+        logger.warn(s"Unable to watch '$dir'", e)
+        index -= dir
+    }
+  }
+}
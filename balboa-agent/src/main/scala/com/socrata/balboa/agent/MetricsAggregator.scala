@@ -0,0 +1,76 @@
+package com.socrata.balboa.agent
+
+import com.socrata.balboa.metrics.Metric.RecordType
+import com.socrata.balboa.metrics.{Metric, Metrics}
+import com.socrata.metrics.MetricQueue
+
+import scala.collection.mutable
+
+/**
+  * Combines [[MetricsRecord]]s per entity, [[MetricQueue.AGGREGATE_GRANULARITY]] bucket and name the way balboa
+  * combines metrics when it stores them: aggregates are summed and the absolute that occurred last wins.
+  *
+  * Values are held as primitive longs until they are drained, which hands each entity's bucket over as a single
+  * [[Metrics]], so that a publisher can send one message where it would have sent one per record.
+  *
+  * Not thread safe.
+  */
+class MetricsAggregator {
+
+  private final class Cell(val recordType: RecordType, var value: Long, var timestamp: Long)
+
+  private val entities = mutable.AnyRefMap[String, mutable.LongMap[mutable.AnyRefMap[String, Cell]]]()
+
+  // Records whose name is already in their bucket with the other record type, which they can not be combined with.
+  private val conflicts = mutable.ArrayBuffer[MetricsRecord]()
+
+  private var cells = 0
+
+  /**
+    * @return The number of values held.
+    */
+  def size: Int = cells + conflicts.size
+
+  def isEmpty: Boolean = size == 0
+
+  def add(record: MetricsRecord): Unit = {
+    val bucket = record.timestamp - (record.timestamp % MetricQueue.AGGREGATE_GRANULARITY)
+    val names = entities.getOrElseUpdate(record.entityId, mutable.LongMap.empty)
+      .getOrElseUpdate(bucket, mutable.AnyRefMap.empty)
+    val value = record.value.longValue
+    val cell = names.getOrNull(record.name)
+    if (cell == null) { // scalastyle:ignore null
+      names.update(record.name, new Cell(record.metricType, value, record.timestamp))
+      cells += 1
+    } else if (cell.recordType != record.metricType) {
+      conflicts += record
+    } else if (cell.recordType == RecordType.AGGREGATE) {
+      cell.value += value
+    } else if (record.timestamp >= cell.timestamp) {
+      cell.value = value
+      cell.timestamp = record.timestamp
+    }
+  }
+
+  /**
+    * Passes each entity's bucket to `f`, as the entity id, the start of the bucket and its metrics, then empties
+    * this. Records that could not be combined are passed on their own, at the time they occurred.
+    */
+  def drain(f: (String, Long, Metrics) => Unit): Unit = {
+    entities.foreach { case (entityId, buckets) =>
+      buckets.foreach { case (bucket, names) =>
+        val metrics = new Metrics(names.size * 2)
+        names.foreach { case (name, cell) => metrics.put(name, new Metric(cell.recordType, cell.value)) }
+        f(entityId, bucket, metrics)
+      }
+    }
+    conflicts.foreach { record =>
+      val metrics = new Metrics(1)
+      metrics.put(record.name, new Metric(record.metricType, record.value))
+      f(record.entityId, record.timestamp, metrics)
+    }
+    entities.clear()
+    conflicts.clear()
+    cells = 0
+  }
+}
@@ -0,0 +1,479 @@
+package com.socrata.balboa.agent
+
+import java.io.{File, IOException}
+import java.lang.{Double => JavaDouble, Long => JavaLong}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.{CharacterCodingException, CodingErrorAction, StandardCharsets}
+import java.nio.file.StandardOpenOption
+import java.util.zip.{CRC32, DataFormatException, Inflater}
+
+import com.blist.metrics.impl.queue.MetricBlockWriter
+import com.socrata.balboa.metrics.Metric.RecordType
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Thrown when the bytes of a metrics file are not a sequence of whole [[MetricsRecord]]s.
+  *
+  * @param offset Offset of the first byte of the record that could not be decoded.
+  */
+class MalformedMetricsFileException(message: String, val offset: Long) extends IOException(message)
+
+/**
+  * Decodes metrics files straight from the bytes of a memory-mapped file, in either of the formats
+  * [[com.blist.metrics.impl.queue.MetricFileQueue]] writes: the legacy format of [[MetricsRecord.codec]], or the
+  * binary format of [[MetricBlockWriter]], which files start with the [[MetricBlockWriter.MAGIC]] of.
+  *
+  * Legacy separators are found with a plain byte loop, and timestamps and integer values are parsed from the bytes
+  * without building a String. Only entity ids, metric names and non-integer values become Strings, and those
+  * that are ASCII skip the charset decoder. Records are handed to a callback as they are decoded, rather than
+  * collected.
+  *
+  * Decoding a legacy file accepts and rejects exactly what [[MetricsRecord.codec]] does: bytes before a record's
+  * 0xff start marker are skipped, and a file that ends part way through a record is malformed. A binary file is
+  * malformed from the first block that is cut short or whose checksum does not match; none of that block's records
+  * are decoded. Compressed blocks are inflated into memory one at a time.
+  */
+object MetricsRecordDecoder {
+  private val StartByte: Byte = 0xff.toByte
+  private val SeparatorByte: Byte = 0xfe.toByte
+
+  private val Magic: Array[Byte] = MetricBlockWriter.MAGIC
+  private val ChecksumLength = 4
+  private val MaxVarintLength = 10
+
+  private val Null: Array[Byte] = "NULL".getBytes(StandardCharsets.US_ASCII)
+  private val RecordTypes: Array[(Array[Byte], RecordType)] =
+    RecordType.values.map(t => (t.name.getBytes(StandardCharsets.US_ASCII), t))
+
+  /**
+    * Decodes every record in `file`, in order, passing each to `f`.
+    *
+    * @return The number of records decoded.
+    * @throws MalformedMetricsFileException when the file is not a sequence of whole records. Records before the
+    *                                       malformed one have already been passed to `f`.
+    */
+  @throws[IOException]
+  def decode(file: File)(f: MetricsRecord => Unit): Int = decode(map(file))(f)
+
+  /**
+    * Decodes every record between the position and the limit of `buffer`, in order, passing each to `f`. The
+    * position of `buffer` is left as it is.
+    *
+    * The format is told from the start of `buffer`, whatever its position. A binary file's dictionary is built up
+    * from its start, so its records are all read, but only those that end after the position are passed to `f`.
+    *
+    * @return The number of records decoded.
+    * @throws MalformedMetricsFileException when the bytes are not a sequence of whole records, with an offset
+    *                                       relative to the start of `buffer`.
+    */
+  @throws[MalformedMetricsFileException]
+  def decode(buffer: ByteBuffer)(f: MetricsRecord => Unit): Int =
+    decodeWithOffsets(buffer)((record, _) => f(record))
+
+  /**
+    * As `decode(buffer)`, also passing `f` the offset just past each record, which is where decoding would
+    * resume after it.
+    *
+    * The records of a compressed block can only be resumed after together, so each but the last of them is passed
+    * the same offset as the record before it, and the last the end of the block.
+    */
+  @throws[MalformedMetricsFileException]
+  def decodeWithOffsets(buffer: ByteBuffer)(f: (MetricsRecord, Int) => Unit): Int = new Decoder(buffer).run(f)
+
+  /**
+    * @return Whether `buffer` holds a file in the binary format, which can only be decoded from its start.
+    */
+  def isBinary(buffer: ByteBuffer): Boolean =
+    buffer.limit >= Magic.length && Magic.indices.forall(i => buffer.get(i) == Magic(i))
+
+  /**
+    * Maps the whole of `file` read-only. The mapping stays valid after the file is closed, renamed or deleted.
+    */
+  @throws[IOException]
+  def map(file: File): ByteBuffer = {
+    val channel = FileChannel.open(file.toPath, StandardOpenOption.READ)
+    try {
+      channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size)
+    } finally {
+      channel.close()
+    }
+  }
+
+  /**
+    * Holds the state of one pass over a buffer. All reads are absolute, so the buffer is never modified.
+    */
+  private final class Decoder(buffer: ByteBuffer) {
+    private val limit = buffer.limit
+    private var position = buffer.position
+
+    // What is being read: the buffer, or a block of it that was inflated.
+    private var bytes = buffer
+
+    private var record = 0
+    private var recordStart = 0
+
+    // The field most recently found by next(), from fieldStart until fieldEnd.
+    private var fieldName = ""
+    private var fieldStart = 0
+    private var fieldEnd = 0
+
+    // The end of what the binary format may read next: the end of the current block, or of the buffer.
+    private var end = limit
+
+    // Set by parseLong(), for the legacy format.
+    private var parsed = 0L
+
+    private var chars = new Array[Char](64)
+    private lazy val utf8 = StandardCharsets.UTF_8.newDecoder
+      .onMalformedInput(CodingErrorAction.REPORT)
+      .onUnmappableCharacter(CodingErrorAction.REPORT)
+
+    def run(f: (MetricsRecord, Int) => Unit): Int = {
+      if (isBinary(buffer)) {
+        runBinary(f)
+      } else {
+        runLegacy(f)
+      }
+    }
+
+    private def runLegacy(f: (MetricsRecord, Int) => Unit): Int = {
+      while (position < limit) {
+        recordStart = position
+        val start = indexOf(StartByte)
+        if (start < 0) {
+          fieldName = "metric start indicator"
+          fail("Does not contain a '0xff' separator byte.")
+        }
+        position = start + 1
+
+        next("timestamp")
+        val timestamp = if (parseLong(allowPlus = true)) parsed else fail(s"Unable to decode raw value ${string()}")
+        next("entityId")
+        val entityId = string()
+        next("name")
+        val name = string()
+        next("value")
+        val value = parseValue()
+        next("metricType")
+        val metricType = parseRecordType()
+
+        f(MetricsRecord(timestamp, entityId, name, value, metricType), position)
+        record += 1
+      }
+      record
+    }
+
+    private def runBinary(f: (MetricsRecord, Int) => Unit): Int = {
+      val from = position
+      val dictionary = ArrayBuffer[String]()
+      val crc = new CRC32
+      var resumable = from
+      var decoded = 0
+      position = Magic.length
+      while (position < limit) {
+        recordStart = position
+        end = limit
+        fieldName = "block length"
+        val header = readVarint()
+        val length = header >>> 1
+        val payloadEnd = position + length
+        if (length > limit || payloadEnd > limit - ChecksumLength) {
+          fail("Does not contain a whole block.")
+        }
+        val blockEnd = payloadEnd.toInt
+        fieldName = "block checksum"
+        val payload = buffer.duplicate()
+        payload.limit(blockEnd)
+        payload.position(position)
+        crc.reset()
+        crc.update(payload)
+        if (crc.getValue.toInt != buffer.getInt(blockEnd)) {
+          fail("Checksum does not match.")
+        }
+
+        end = blockEnd
+        if ((header & 1) == 0) {
+          while (position < end) {
+            val record = readRecord(dictionary)
+            if (position > from) {
+              resumable = position
+              f(record, resumable)
+              decoded += 1
+            }
+          }
+        } else {
+          // The records of a compressed block can only be resumed after together, from the end of the block.
+          inflate()
+          while (position < end) {
+            val record = readRecord(dictionary)
+            if (blockEnd > from) {
+              if (position == end) {
+                resumable = blockEnd
+              }
+              f(record, resumable)
+              decoded += 1
+            }
+          }
+          bytes = buffer
+        }
+        position = blockEnd + ChecksumLength
+      }
+      decoded
+    }
+
+    /**
+      * Inflates the compressed block from the position until the end, to be read from the start of `bytes`.
+      */
+    private def inflate(): Unit = {
+      fieldName = "block"
+      val inflatedLength = readVarint()
+      if (inflatedLength > Int.MaxValue) {
+        fail("Block is too long.")
+      }
+      // A raw deflate stream may need a byte past its end to be read to the end.
+      val deflated = new Array[Byte](end - position + 1)
+      val payload = buffer.duplicate()
+      payload.position(position)
+      payload.get(deflated, 0, end - position)
+      val inflated = new Array[Byte](inflatedLength.toInt)
+      val inflater = new Inflater(true)
+      try {
+        inflater.setInput(deflated)
+        var length = 0
+        while (!inflater.finished && length < inflated.length && !inflater.needsInput) {
+          length += inflater.inflate(inflated, length, inflated.length - length)
+        }
+        if (!inflater.finished || length != inflated.length) {
+          fail("Block does not inflate to its length.")
+        }
+      } catch {
+        case e: DataFormatException => fail(s"Block does not inflate: ${e.getMessage}")
+      } finally {
+        inflater.end()
+      }
+      bytes = ByteBuffer.wrap(inflated)
+      position = 0
+      end = inflated.length
+    }
+
+    private def readRecord(dictionary: ArrayBuffer[String]): MetricsRecord = {
+      fieldName = "header"
+      val header = byte()
+      val metricType = header >> 2 match {
+        case MetricBlockWriter.TYPE_AGGREGATE => RecordType.AGGREGATE
+        case MetricBlockWriter.TYPE_ABSOLUTE => RecordType.ABSOLUTE
+        case code => fail(s"Unknown record type $code")
+      }
+      fieldName = "timestamp"
+      val timestamp = long()
+      fieldName = "entityId"
+      val entityId = ref(dictionary)
+      fieldName = "name"
+      val name = ref(dictionary)
+      fieldName = "value"
+      val value: Number = header & 0x3 match {
+        case MetricBlockWriter.VALUE_LONG =>
+          val zigzag = readVarint()
+          JavaLong.valueOf((zigzag >>> 1) ^ -(zigzag & 1))
+        case MetricBlockWriter.VALUE_DOUBLE => JavaDouble.valueOf(JavaDouble.longBitsToDouble(long()))
+        case MetricBlockWriter.VALUE_NULL => null // scalastyle:ignore
+        case kind => fail(s"Unknown value kind $kind")
+      }
+      record += 1
+      MetricsRecord(timestamp, entityId, name, value, metricType)
+    }
+
+    private def need(count: Long): Unit = {
+      if (count > end - position) {
+        fail("Runs past the end of its block.")
+      }
+    }
+
+    private def byte(): Int = {
+      need(1)
+      position += 1
+      bytes.get(position - 1) & 0xff
+    }
+
+    private def long(): Long = {
+      need(JavaLong.BYTES)
+      position += JavaLong.BYTES
+      bytes.getLong(position - JavaLong.BYTES)
+    }
+
+    private def readVarint(): Long = {
+      var result = 0L
+      var shift = 0
+      var b = 0x80
+      while ((b & 0x80) != 0) {
+        if (shift >= MaxVarintLength * 7) {
+          fail("Varint is too long.")
+        }
+        b = byte()
+        result |= (b & 0x7fL) << shift
+        shift += 7
+      }
+      result
+    }
+
+    /**
+      * Reads a string, either from the file's dictionary or in full.
+      */
+    private def ref(dictionary: ArrayBuffer[String]): String = {
+      val kind = readVarint()
+      if (kind == MetricBlockWriter.REF_NEW || kind == MetricBlockWriter.REF_LITERAL) {
+        val length = readVarint()
+        need(length)
+        fieldStart = position
+        fieldEnd = position + length.toInt
+        position = fieldEnd
+        val s = string()
+        if (kind == MetricBlockWriter.REF_NEW) {
+          dictionary += s
+        }
+        s
+      } else {
+        val entry = kind - MetricBlockWriter.REF_DICTIONARY
+        if (entry >= dictionary.size) {
+          fail(s"Unknown dictionary entry $entry")
+        }
+        dictionary(entry.toInt)
+      }
+    }
+
+    private def fail(message: String): Nothing =
+      throw new MalformedMetricsFileException(s"$record/$fieldName: $message", recordStart)
+
+    private def indexOf(b: Byte): Int = {
+      var i = position
+      while (i < limit && bytes.get(i) != b) {
+        i += 1
+      }
+      if (i < limit) i else -1
+    }
+
+    /**
+      * Finds the field starting at the current position and moves past its separator.
+      */
+    private def next(name: String): Unit = {
+      fieldName = name
+      val end = indexOf(SeparatorByte)
+      if (end < 0) {
+        fail("Does not contain a '0xfe' separator byte.")
+      }
+      fieldStart = position
+      fieldEnd = end
+      position = end + 1
+    }
+
+    /**
+      * Parses the current field into `parsed` the way java.lang.Long.parseLong does, except that a leading '+'
+      * is only accepted when `allowPlus` is.
+      *
+      * @return false if the field is not a decimal long.
+      */
+    private def parseLong(allowPlus: Boolean): Boolean = {
+      var i = fieldStart
+      var negative = false
+      if (i < fieldEnd) {
+        val first = bytes.get(i)
+        if (first == '-') {
+          negative = true
+          i += 1
+        } else if (first == '+' && allowPlus) {
+          i += 1
+        }
+      }
+      // Accumulates negatively, as Long.MIN_VALUE has no positive counterpart.
+      val min = if (negative) JavaLong.MIN_VALUE else -JavaLong.MAX_VALUE
+      val multmin = min / 10
+      var result = 0L
+      var valid = i < fieldEnd
+      while (valid && i < fieldEnd) {
+        val digit = bytes.get(i) - '0'
+        if (digit < 0 || digit > 9 || result < multmin || result * 10 < min + digit) {
+          valid = false
+        } else {
+          result = result * 10 - digit
+        }
+        i += 1
+      }
+      parsed = if (negative) result else -result
+      valid
+    }
+
+    private def parseValue(): Number = {
+      if (fieldIs(Null)) {
+        null // scalastyle:ignore
+      } else if (parseLong(allowPlus = false)) {
+        JavaLong.valueOf(parsed)
+      } else {
+        val rawValue = string()
+        try {
+          // Integers too large for a long are malformed, not doubles.
+          if (MetricConsumer.integerPattern.matcher(rawValue).matches) {
+            fail(s"Unable to decode raw value $rawValue into Number format")
+          }
+          JavaDouble.valueOf(rawValue)
+        } catch {
+          case _: NumberFormatException => fail(s"Unable to decode raw value $rawValue into Number format")
+        }
+      }
+    }
+
+    private def parseRecordType(): RecordType = {
+      RecordTypes.collectFirst({ case (name, recordType) if fieldIs(name) => recordType }).getOrElse {
+        val rawValue = string()
+        try {
+          RecordType.valueOf(rawValue.toUpperCase)
+        } catch {
+          case _: IllegalArgumentException => fail(s"Unable to decode raw value $rawValue into a record type")
+        }
+      }
+    }
+
+    /**
+      * Whether the current field is `upperCase`, ignoring the case of ASCII letters.
+      */
+    private def fieldIs(upperCase: Array[Byte]): Boolean = {
+      var matches = fieldEnd - fieldStart == upperCase.length
+      var i = 0
+      while (matches && i < upperCase.length) {
+        val b = bytes.get(fieldStart + i)
+        val c = upperCase(i)
+        matches = b == c || (c >= 'A' && c <= 'Z' && b == (c | 0x20))
+        i += 1
+      }
+      matches
+    }
+
+    /**
+      * Decodes the current field as UTF-8.
+      */
+    private def string(): String = {
+      val length = fieldEnd - fieldStart
+      if (chars.length < length) {
+        chars = new Array[Char](math.max(length, chars.length * 2))
+      }
+      var i = 0
+      while (i < length && bytes.get(fieldStart + i) >= 0) {
+        chars(i) = bytes.get(fieldStart + i).toChar
+        i += 1
+      }
+      if (i == length) {
+        new String(chars, 0, length)
+      } else {
+        val field = bytes.duplicate()
+        field.limit(fieldEnd)
+        field.position(fieldStart)
+        try {
+          utf8.decode(field).toString
+        } catch {
+          case e: CharacterCodingException => fail(s"Not valid UTF-8: $e")
+        }
+      }
+    }
+  }
+}
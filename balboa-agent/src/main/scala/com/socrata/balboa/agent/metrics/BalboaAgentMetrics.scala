@@ -89,6 +89,19 @@ object BalboaAgentMetrics extends LazyLogging {
     */
   val errorInvalidValueCounter: Counter = registry.counter(MetricRegistry.name(ServiceName, Error, "invalid-value"))
 
+  /**
+    * Creates a metric that reports a number of files counted elsewhere, such as by a
+    * [[com.socrata.balboa.agent.WatchingMetricFileProvider]], each time it is read.
+    *
+    * @param metricName The name of the metric to create.
+    * @param count Counts the files.
+    * @return The metric created.
+    */
+  def numFiles(metricName: String, count: => Int): Gauge[Int] =
+    registry.register(MetricRegistry.name(ServiceName, metricName, "num", "files"), new Gauge[Int] {
+      override def getValue: Int = count
+    })
+
   /**
     * Creates a metric that counts a directory for files within that directory
     *
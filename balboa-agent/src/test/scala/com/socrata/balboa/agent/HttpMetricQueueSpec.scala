@@ -1,20 +1,26 @@
 package com.socrata.balboa.agent
 
+import java.io.IOException
 import java.net.{URL, URLEncoder}
 
 import com.fasterxml.jackson.core.JsonParseException
 import com.socrata.balboa.metrics.Metric.RecordType
+import com.socrata.balboa.metrics.{Metric, Metrics}
 import com.socrata.metrics.{DomainId, MetricIdParts, UserUid, ViewUid}
+import com.stackmob.newman.request.PostRequest
+import com.stackmob.newman.response.{HttpResponse, HttpResponseCode}
 import com.stackmob.newman.{ApacheHttpClient, Headers, RawBody}
 import com.typesafe.scalalogging.StrictLogging
 import org.json4s._
 import org.json4s.jackson.JsonMethods.{parse, pretty, render}
-import org.mockito.ArgumentCaptor
+import org.mockito.{ArgumentCaptor, ArgumentMatchers}
 import org.mockito.Mockito._
 import org.mockito.ArgumentMatchers._
 import org.scalatest.mock.MockitoSugar
 import org.scalatest.{BeforeAndAfterEach, ShouldMatchers, WordSpec}
 
+import scala.collection.JavaConverters._
+import scala.concurrent.{Future, Promise}
 import scala.concurrent.duration._
 import scala.util.Try
 
@@ -61,35 +67,125 @@ class HttpMetricQueueSpec extends WordSpec
   val TestRetryNum = 3
 
   var mockHttpClient = mock[ApacheHttpClient]
-  var httpMetricQueue = new HttpMetricQueue(TestUrl, Timeout, MaxRetryWait, Some(TestRetryNum), mockHttpClient)
+
+  // Batches only linger for as long as a test asks them to.
+  def newQueue(batchSize: Int = HttpMetricQueue.DefaultBatchSize, lingerTime: FiniteDuration = 1.hour) =
+    new HttpMetricQueue(TestUrl, Timeout, MaxRetryWait, Some(TestRetryNum), mockHttpClient, batchSize, lingerTime)
+
+  var httpMetricQueue = newQueue()
   override def beforeEach(): Unit = {
     mockHttpClient = mock[ApacheHttpClient]
-    httpMetricQueue = new HttpMetricQueue(TestUrl, Timeout, MaxRetryWait, Some(TestRetryNum), mockHttpClient)
+    httpMetricQueue = newQueue()
+  }
+
+  override def afterEach(): Unit = httpMetricQueue.close()
+
+  val BatchUrl = new URL(s"$TestUrl/metrics")
+
+  def respondWith(code: HttpResponseCode, url: URL = BatchUrl): Unit = {
+    val request = mock[PostRequest]
+    when(request.apply).thenReturn(Future.successful(HttpResponse(code, None, Array[Byte]())))
+    when(mockHttpClient.post(ArgumentMatchers.eq(url), any(), any())).thenReturn(request)
+  }
+
+  def posted(times: Int): Seq[(URL, String)] = {
+    val url: ArgumentCaptor[URL] = ArgumentCaptor.forClass(classOf[URL])
+    val body: ArgumentCaptor[RawBody] = ArgumentCaptor.forClass(classOf[RawBody])
+    verify(mockHttpClient, timeout(TestTimeout).times(times)).post(url.capture(), any[Headers](), body.capture())
+    url.getAllValues.asScala.zip(body.getAllValues.asScala.map(b => new String(b.map(_.toChar))))
   }
 
   "An HttpMetricQueue" when {
-    "a metric is created" should {
-      "make an http request with the proper arguments" in {
+    "metrics are created" should {
+      "post them to the batch endpoint together when flushed" in {
+        respondWith(HttpResponseCode.NoContent)
         httpMetricQueue.create(TestEntity, TestName, TestVal, TestTime, TestType)
+        httpMetricQueue.createAll(TestName, TestTime, new Metrics(Map(
+          "a" -> new Metric(RecordType.AGGREGATE, 1),
+          "b" -> new Metric(RecordType.ABSOLUTE, 2)).asJava))
+        httpMetricQueue.flush()
+
+        val Seq((url, body)) = posted(1)
+        url should be (BatchUrl)
+        body shouldBeJSON s""" [
+          { "entityId": "$TestEntity", "timestamp": $TestTime,
+            "metrics": { "$TestName": { "value": $TestVal, "type": "$TestType" } } },
+          { "entityId": "$TestName", "timestamp": $TestTime,
+            "metrics": { "a": { "value": 1, "type": "AGGREGATE" }, "b": { "value": 2, "type": "ABSOLUTE" } } } ] """
+      }
 
-        val url: ArgumentCaptor[URL] = ArgumentCaptor.forClass(classOf[URL])
-        val body: ArgumentCaptor[RawBody] = ArgumentCaptor.forClass(classOf[RawBody])
+      "send a batch as soon as it is full" in {
+        httpMetricQueue = newQueue(batchSize = 2)
+        respondWith(HttpResponseCode.NoContent)
+        (1 to 4).foreach(i => httpMetricQueue.create(TestEntity, TestName, i, TestTime, TestType))
 
-        verify(mockHttpClient, atLeastOnce)
-          .post(url.capture(), any[Headers](), body.capture())
+        posted(2).map(_._1) should be (Seq(BatchUrl, BatchUrl))
+      }
 
-        url.getValue should be (new URL(s"$TestUrl/metrics/${URLEncoder.encode(TestEntity.toString, "UTF-8")}"))
+      "send a batch that is not full once it has lingered" in {
+        httpMetricQueue = newQueue(lingerTime = 10.millis)
+        respondWith(HttpResponseCode.NoContent)
+        httpMetricQueue.create(TestEntity, TestName, TestVal, TestTime, TestType)
 
-        val bodyString = new String(body.getValue.map(_.toChar))
-        bodyString shouldBeJSON s""" { "timestamp": $TestTime, "metrics": { "$TestName": { "value": $TestVal, "type": "$TestType" } } } """
+        posted(1).map(_._1) should be (Seq(BatchUrl))
       }
 
-      "retry when it doesn't hear back" in {
+      "retry when it doesn't hear back, and fail the flush" in {
         httpMetricQueue.create(TestEntity, TestName, TestVal, TestTime, TestType)
+        intercept[IOException](httpMetricQueue.flush())
 
         verify(mockHttpClient, times(TestRetryNum))
           .post(any(), any(), any())
       }
+
+      "drop a batch it gave up on, failing only the next flush" in {
+        httpMetricQueue.create(TestEntity, TestName, TestVal, TestTime, TestType)
+        intercept[IOException](httpMetricQueue.flush())
+
+        respondWith(HttpResponseCode.NoContent)
+        httpMetricQueue.create(TestEntity, TestName, TestVal + 1, TestTime, TestType)
+        httpMetricQueue.flush()
+
+        posted(TestRetryNum + 1).last._2 shouldBeJSON s""" [
+          { "entityId": "$TestEntity", "timestamp": $TestTime,
+            "metrics": { "$TestName": { "value": ${TestVal + 1}, "type": "$TestType" } } } ] """
+      }
+
+      "send the batches of one entity one at a time" in {
+        httpMetricQueue = new HttpMetricQueue(TestUrl, TestTimeout.millis, MaxRetryWait, Some(TestRetryNum),
+          mockHttpClient, batchSize = 1, lingerTime = 1.hour)
+        val response = Promise[HttpResponse]()
+        val request = mock[PostRequest]
+        when(request.apply).thenReturn(response.future)
+        when(mockHttpClient.post(ArgumentMatchers.eq(BatchUrl), any(), any())).thenReturn(request)
+
+        httpMetricQueue.create(TestEntity, TestName, 1, TestTime, TestType)
+        httpMetricQueue.create(TestEntity, TestName, 2, TestTime, TestType)
+        httpMetricQueue.create(TestName, TestName, 3, TestTime, TestType)
+
+        posted(2).map(_._2).exists(_.contains(s"$TestEntity")) should be (true)
+        Thread.sleep(100)
+        verify(mockHttpClient, times(2)).post(any(), any(), any())
+
+        response.success(HttpResponse(HttpResponseCode.NoContent, None, Array[Byte]()))
+        httpMetricQueue.flush()
+        posted(3).last._2 shouldBeJSON s""" [
+          { "entityId": "$TestEntity", "timestamp": $TestTime,
+            "metrics": { "$TestName": { "value": 2, "type": "$TestType" } } } ] """
+      }
+
+      "send a batch that is rejected one record at a time" in {
+        val entityUrl = new URL(s"$TestUrl/metrics/${URLEncoder.encode(TestEntity.toString, "UTF-8")}")
+        respondWith(HttpResponseCode.BadRequest)
+        respondWith(HttpResponseCode.Ok, entityUrl)
+        httpMetricQueue.create(TestEntity, TestName, TestVal, TestTime, TestType)
+        httpMetricQueue.flush()
+
+        val Seq(_, (url, body)) = posted(2)
+        url should be (entityUrl)
+        body shouldBeJSON
+          s""" { "timestamp": $TestTime, "metrics": { "$TestName": { "value": $TestVal, "type": "$TestType" } } } """
+      }
     }
   }
 }
@@ -4,16 +4,18 @@ import java.io._
 import java.nio.file.{Files, Path}
 
 import com.blist.metrics.impl.queue.MetricFileQueue
-import com.socrata.balboa.metrics.Metric
-import com.socrata.metrics.{Fluff, MetricIdParts, MetricQueue}
+import com.socrata.balboa.metrics.{Metric, Metrics}
+import com.socrata.balboa.util.FileUtils
+import com.socrata.metrics.{Fluff, IdParts, MetricIdParts, MetricQueue}
 import com.typesafe.scalalogging.{Logger, StrictLogging}
-import org.mockito.{ArgumentCaptor}
+import org.mockito.{ArgumentCaptor, ArgumentMatchers}
 import org.mockito.ArgumentMatchers._
 import org.scalatest.mock.MockitoSugar
 import org.scalatest.{ShouldMatchers, WordSpec}
 import scodec.bits.ByteVector
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable
 import scala.collection.immutable.IndexedSeq
 
 /**
@@ -114,6 +116,7 @@ class MetricConsumerSpec extends WordSpec with ShouldMatchers with MockitoSugar
       anyLong(),
       anyLong(),
       any[Metric.RecordType]())
+    verify(mockQueue, never()).createAll(any[IdParts](), anyLong(), any[Metrics]())
   }
 
   /**
@@ -137,14 +140,10 @@ class MetricConsumerSpec extends WordSpec with ShouldMatchers with MockitoSugar
     metricConsumer.run()
     metricConsumer.close()
     // For every metric written to disk, all but the metrics in youngest file should be processed.
+    val values = published(mockQueue)
     metrics.foreach(m => {
-      verify(mockQueue, times(numTimesMetricEmitted)).create(
-        Fluff(m.entityId),
-        Fluff(m.name),
-        m.value.longValue(),
-        m.timestamp,
-        m.metricType
-      )
+      values.getOrElse((m.entityId, m.name, bucket(m.timestamp)), 0L) shouldBe
+        m.value.longValue() * numTimesMetricEmitted
     })
   }
 
@@ -166,14 +165,10 @@ class MetricConsumerSpec extends WordSpec with ShouldMatchers with MockitoSugar
     metricConsumer.run()
     metricConsumer.close()
     // For every metric written to disk, all but the metrics in youngest file should be processed.
+    val values = published(mockQueue)
     expectedMetrics.foreach(m => {
-      verify(mockQueue, times(numTimesMetricEmitted)).create(
-        Fluff(m.entityId),
-        Fluff(m.name),
-        m.value.longValue(),
-        m.timestamp,
-        m.metricType
-      )
+      values.getOrElse((m.entityId, m.name, bucket(m.timestamp)), 0L) shouldBe
+        m.value.longValue() * numTimesMetricEmitted
     })
   }
 
@@ -188,6 +183,35 @@ class MetricConsumerSpec extends WordSpec with ShouldMatchers with MockitoSugar
     fos.close()
   }
 
+  private def bucket(timestamp: Long): Long = timestamp - (timestamp % MetricQueue.AGGREGATE_GRANULARITY)
+
+  /**
+    * The values published to `mockQueue`, summed by entity, name and bucket.
+    */
+  private def published(mockQueue: MetricQueue): Map[(String, String, Long), Long] =
+    mockingDetails(mockQueue).getInvocations.asScala.toSeq
+      .filter(_.getMethod.getName == "createAll")
+      .flatMap { invocation =>
+        val Array(entity, timestamp, metrics) = invocation.getArguments
+        metrics.asInstanceOf[Metrics].asScala.toSeq.map { case (name, metric) =>
+          (entity.toString, name, timestamp.asInstanceOf[Long]) -> metric.getValue.longValue
+        }
+      }
+      .groupBy(_._1).map { case (key, values) => key -> values.map(_._2).sum }
+
+  private def encode(records: Seq[MetricsRecord]): ByteVector =
+    records.map(MetricsRecord.codec.encode(_).require.bytes).foldLeft(ByteVector.empty)(_ ++ _)
+
+  /**
+    * Writes a file that is always ready to be processed, however many others are in `path`.
+    */
+  private def writeCompletedFile(path: Path, bytes: ByteVector): File = {
+    val name = s"metrics2012.${System.currentTimeMillis}.data${FileUtils.IMMUTABLE_FILE_EXTENSION}"
+    val file = new File(path.toFile, name)
+    Files.write(file.toPath, bytes.toArray)
+    file
+  }
+
   "A Metric Consumer" when {
     "the root directory does not exist" should {
       "throw an IllegalArgumentException" in new MockQueue {
@@ -248,9 +272,135 @@ class MetricConsumerSpec extends WordSpec with ShouldMatchers with MockitoSugar
         broken.length shouldBe 10
         remaining.length shouldBe 1
 
-        verify(mockQueue)
-          .create(any[MetricIdParts](), any[MetricIdParts](),
-          anyLong(), anyLong(), any[Metric.RecordType]())
+        verify(mockQueue).createAll(any[IdParts](), anyLong(), any[Metrics]())
+      }
+    }
+    "a file is malformed part way through" should {
+      "publish the records before the malformed one and move only the rest aside" in new TestMetrics with MockQueue {
+        private val tempDir = Files.createTempDirectory("metrics-truncated-spec")
+        private val tail = encode(testMetrics.drop(3).take(1)).dropRight(1)
+        private val file = writeCompletedFile(tempDir, encode(testMetrics.take(3)) ++ tail)
+
+        new MetricConsumer(tempDir.toFile, mockQueue).run()
+
+        private val values = published(mockQueue)
+        testMetrics.zipWithIndex.foreach { case (m, i) =>
+          values.get((m.entityId, m.name, bucket(m.timestamp))) shouldBe
+            (if (i < 3) Some(m.value.longValue()) else None)
+        }
+        file.exists shouldBe false
+        new FileCheckpoint(file).file.exists shouldBe false
+        ByteVector(Files.readAllBytes(new File(file.getAbsolutePath + FileUtils.BROKEN_FILE_EXTENSION).toPath)) shouldBe
+          tail
+      }
+
+      "keep all of a binary file, with a checkpoint at the malformed block" in new TestMetrics with MockQueue {
+        private val tempDir = Files.createTempDirectory("metrics-truncated-spec")
+        private val fileQueue = new MetricFileQueue(tempDir.toFile, MetricQueue.AGGREGATE_GRANULARITY,
+          MetricFileQueue.Format.V2)
+        writeToQueue(fileQueue, testMetrics.take(4): _*)()
+        fileQueue.close()
+        private val file = tempDir.toFile.listFiles().head
+        private val offsets = mutable.ArrayBuffer[Int]()
+        MetricsRecordDecoder.decodeWithOffsets(MetricsRecordDecoder.map(file))((_, offset) => offsets += offset)
+        private val bytes = Files.readAllBytes(file.toPath).dropRight(1)
+        Files.write(file.toPath, bytes)
+
+        new MetricConsumer(tempDir.toFile, mockQueue).run()
+
+        private val values = published(mockQueue)
+        testMetrics.take(4).zipWithIndex.foreach { case (m, i) =>
+          values.get((m.entityId, m.name, bucket(m.timestamp))) shouldBe
+            (if (i < 3) Some(m.value.longValue()) else None)
+        }
+        private val broken = new File(file.getAbsolutePath + FileUtils.BROKEN_FILE_EXTENSION)
+        file.exists shouldBe false
+        new FileCheckpoint(file).file.exists shouldBe false
+        Files.readAllBytes(broken.toPath).toSeq shouldBe bytes.toSeq
+        new FileCheckpoint(broken).offset shouldBe offsets(2)
+      }
+    }
+    "a file has a checkpoint" should {
+      "publish only the records after it" in new TestMetrics with MockQueue {
+        private val tempDir = Files.createTempDirectory("metrics-checkpoint-spec")
+        private val file = writeCompletedFile(tempDir, encode(testMetrics))
+        new FileCheckpoint(file).set(encode(testMetrics.take(4)).size)
+
+        new MetricConsumer(tempDir.toFile, mockQueue).run()
+
+        private val values = published(mockQueue)
+        testMetrics.zipWithIndex.foreach { case (m, i) =>
+          values.get((m.entityId, m.name, bucket(m.timestamp))) shouldBe
+            (if (i < 4) None else Some(m.value.longValue()))
+        }
+        file.exists shouldBe false
+        new FileCheckpoint(file).file.exists shouldBe false
+      }
+
+      "publish every record when it is out of range" in new TestMetrics with MockQueue {
+        private val tempDir = Files.createTempDirectory("metrics-checkpoint-spec")
+        private val file = writeCompletedFile(tempDir, encode(testMetrics))
+        new FileCheckpoint(file).set(-1)
+
+        new MetricConsumer(tempDir.toFile, mockQueue).run()
+
+        private val values = published(mockQueue)
+        testMetrics.foreach { m =>
+          values.get((m.entityId, m.name, bucket(m.timestamp))) shouldBe Some(m.value.longValue())
+        }
+        file.exists shouldBe false
+        new FileCheckpoint(file).file.exists shouldBe false
+      }
+    }
+    "publishing fails part way through a file" should {
+      "keep the file with a checkpoint after the last whole batch" in new TestMetrics with MockQueue {
+        private val tempDir = Files.createTempDirectory("metrics-batch-spec")
+        private val file = writeCompletedFile(tempDir, encode(testMetrics))
+        private val failing = testMetrics(4)
+        doThrow(new RuntimeException("unavailable")).when(mockQueue)
+          .createAll(ArgumentMatchers.eq(Fluff(failing.entityId)), anyLong(), any[Metrics]())
+
+        intercept[RuntimeException](new MetricConsumer(tempDir.toFile, mockQueue, AlphabeticMetricFileProvider(tempDir),
+          batchSize = 2).run())
+
+        file.exists shouldBe true
+        new FileCheckpoint(file).offset shouldBe encode(testMetrics.take(4)).size
+      }
+    }
+    "publishing fails part way through a compressed file" should {
+      "only checkpoint at the end of a block" in new TestMetrics with MockQueue {
+        private val tempDir = Files.createTempDirectory("metrics-compressed-spec")
+        private val fileQueue = new MetricFileQueue(tempDir.toFile, MetricQueue.AGGREGATE_GRANULARITY,
+          MetricFileQueue.Format.V2_COMPRESSED, 4)
+        writeToQueue(fileQueue, testMetrics: _*)()
+        fileQueue.close()
+        private val file = tempDir.toFile.listFiles().head
+        private val offsets = mutable.ArrayBuffer[Int]()
+        MetricsRecordDecoder.decodeWithOffsets(MetricsRecordDecoder.map(file))((_, offset) => offsets += offset)
+        offsets.take(3).distinct shouldBe Seq(0)
+
+        private val failing = testMetrics(5)
+        doThrow(new RuntimeException("unavailable")).when(mockQueue)
+          .createAll(ArgumentMatchers.eq(Fluff(failing.entityId)), anyLong(), any[Metrics]())
+
+        intercept[RuntimeException](new MetricConsumer(tempDir.toFile, mockQueue, AlphabeticMetricFileProvider(tempDir),
+          batchSize = 2).run())
+
+        file.exists shouldBe true
+        new FileCheckpoint(file).offset shouldBe offsets(3)
+      }
+    }
+    "the queue fails to flush what it was given" should {
+      "keep the file without moving its checkpoint" in new TestMetrics with MockQueue {
+        private val tempDir = Files.createTempDirectory("metrics-flush-spec")
+        private val file = writeCompletedFile(tempDir, encode(testMetrics))
+        doThrow(new IOException("unavailable")).when(mockQueue).flush()
+
+        intercept[IOException](new MetricConsumer(tempDir.toFile, mockQueue).run())
+
+        verify(mockQueue, atLeastOnce()).createAll(any[IdParts](), anyLong(), any[Metrics]())
+        file.exists shouldBe true
+        new FileCheckpoint(file).file.exists shouldBe false
       }
     }
     "there is a single root directory" when {
@@ -258,6 +408,7 @@ class MetricConsumerSpec extends WordSpec with ShouldMatchers with MockitoSugar
         "emit no metrics" in new OneRootDirectory {
           verify(mockQueue, never()).create(any[MetricIdParts](), any[MetricIdParts](),
             anyLong(), anyLong(), any[Metric.RecordType]())
+          verify(mockQueue, never()).createAll(any[IdParts](), anyLong(), any[Metrics]())
         }
       }
       "there is 1 metrics data file" should {
@@ -347,6 +498,22 @@ class MetricConsumerSpec extends WordSpec with ShouldMatchers with MockitoSugar
           )
         }
       }
+      "directories are processed in parallel" should {
+        "process all directories" in new MultipleRootDirectories with TestMetrics {
+          val numMetricFiles = 5
+          val newFileQueues: Map[Path, Seq[MetricFileQueue]] = fileQueues.map { case (path, _) =>
+            path -> createFileQueues(path, numMetricFiles)
+          }
+          testEmitsMetrics(
+            new MetricConsumer(rootMetricsDir.toFile, mockQueue, AlphabeticMetricFileProvider(rootMetricsDir),
+              parallelism = numMultipleMetricsDir),
+            mockQueue,
+            testMetrics,
+            newFileQueues.flatMap { case (_, fileQs) => fileQs }.toSeq,
+            newFileQueues.foldLeft(0) { case (totalFqs, (_, fileQs)) => totalFqs + fileQs.size } - newFileQueues.size
+          )
+        }
+      }
     }
   }
 }
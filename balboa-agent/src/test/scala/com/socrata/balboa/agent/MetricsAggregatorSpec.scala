@@ -0,0 +1,58 @@
+package com.socrata.balboa.agent
+
+import com.socrata.balboa.metrics.Metric.RecordType
+import com.socrata.balboa.metrics.{Metric, Metrics}
+import com.socrata.metrics.MetricQueue
+import org.scalatest.{ShouldMatchers, WordSpec}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
+
+/**
+  * Unit Tests for [[MetricsAggregator]]
+  */
+class MetricsAggregatorSpec extends WordSpec with ShouldMatchers {
+
+  private val granularity = MetricQueue.AGGREGATE_GRANULARITY
+
+  trait Aggregator {
+    val aggregator = new MetricsAggregator
+
+    def drained(): List[(String, Long, Map[String, Metric])] = {
+      val messages = ListBuffer[(String, Long, Map[String, Metric])]()
+      aggregator.drain { (entityId: String, timestamp: Long, metrics: Metrics) =>
+        messages += ((entityId, timestamp, metrics.asScala.toMap))
+      }
+      messages.toList.sortBy(m => (m._1, m._2))
+    }
+  }
+
+  "A MetricsAggregator" should {
+    "sum aggregates and keep the latest absolute per entity, bucket and name" in new Aggregator {
+      aggregator.add(MetricsRecord(granularity + 1, "a", "views", 1L: java.lang.Long, RecordType.AGGREGATE))
+      aggregator.add(MetricsRecord(granularity + 3, "a", "rows", 30L: java.lang.Long, RecordType.ABSOLUTE))
+      aggregator.add(MetricsRecord(granularity + 2, "a", "views", 2L: java.lang.Long, RecordType.AGGREGATE))
+      aggregator.add(MetricsRecord(granularity + 2, "a", "rows", 20L: java.lang.Long, RecordType.ABSOLUTE))
+      aggregator.add(MetricsRecord(2 * granularity, "a", "views", 4L: java.lang.Long, RecordType.AGGREGATE))
+      aggregator.add(MetricsRecord(granularity + 1, "b", "views", 8L: java.lang.Long, RecordType.AGGREGATE))
+
+      aggregator.size shouldBe 4
+      drained() shouldBe List(
+        ("a", granularity, Map("views" -> new Metric(RecordType.AGGREGATE, 3L),
+          "rows" -> new Metric(RecordType.ABSOLUTE, 30L))),
+        ("a", 2 * granularity, Map("views" -> new Metric(RecordType.AGGREGATE, 4L))),
+        ("b", granularity, Map("views" -> new Metric(RecordType.AGGREGATE, 8L))))
+      aggregator.isEmpty shouldBe true
+    }
+
+    "pass on records that conflict with the type of their name on their own" in new Aggregator {
+      aggregator.add(MetricsRecord(1, "a", "views", 1L: java.lang.Long, RecordType.AGGREGATE))
+      aggregator.add(MetricsRecord(2, "a", "views", 5L: java.lang.Long, RecordType.ABSOLUTE))
+
+      aggregator.size shouldBe 2
+      drained() shouldBe List(
+        ("a", 0L, Map("views" -> new Metric(RecordType.AGGREGATE, 1L))),
+        ("a", 2L, Map("views" -> new Metric(RecordType.ABSOLUTE, 5L))))
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package com.socrata.balboa.agent
+
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Files
+
+import com.blist.metrics.impl.queue.MetricBlockWriter
+import com.socrata.balboa.metrics.Metric.RecordType
+import org.scalatest.{ShouldMatchers, WordSpec}
+import scodec.bits.ByteVector
+
+import scala.collection.mutable.ListBuffer
+
+/**
+  * Unit Tests for [[MetricsRecordDecoder]]
+  */
+class MetricsRecordDecoderSpec extends WordSpec with ShouldMatchers {
+
+  private val records = Seq(
+    MetricsRecord(1496268557542L, "entity_id_1", "metric_1", 21L: java.lang.Long, RecordType.AGGREGATE),
+    MetricsRecord(-1L, "entit\u00e9", "m\u00e9trique", Long.MinValue: java.lang.Long, RecordType.ABSOLUTE),
+    MetricsRecord(0L, "", "", 1.5: java.lang.Double, RecordType.AGGREGATE)
+  )
+
+  private def encode(toEncode: Seq[MetricsRecord]): ByteVector =
+    toEncode.map(MetricsRecord.codec.encode(_).require.bytes).foldLeft(ByteVector.empty)(_ ++ _)
+
+  private def encodeBlocks(toEncode: Seq[MetricsRecord],
+                           recordsPerBlock: Int = 1,
+                           useDictionary: Boolean = true,
+                           compress: Boolean = false): ByteVector = {
+    val out = new ByteArrayOutputStream
+    val writer = new MetricBlockWriter(out, useDictionary, compress)
+    toEncode.grouped(recordsPerBlock).foreach { block =>
+      block.foreach(r => writer.add(r.entityId, r.name, r.value, r.timestamp, r.metricType))
+      writer.writeBlock()
+    }
+    ByteVector(out.toByteArray)
+  }
+
+  private def field(s: String): ByteVector = ByteVector(s.getBytes(UTF_8)) :+ 0xfe.toByte
+
+  private def record(fields: String*): ByteVector = fields.map(field).foldLeft(ByteVector(0xff))(_ ++ _)
+
+  private def decode(bytes: ByteVector): Seq[MetricsRecord] = {
+    val decoded = ListBuffer[MetricsRecord]()
+    MetricsRecordDecoder.decode(ByteBuffer.wrap(bytes.toArray))(decoded += _) shouldBe decoded.size
+    decoded
+  }
+
+  "MetricsRecordDecoder" should {
+    "decode what the scodec codec encodes" in {
+      decode(encode(records)) shouldBe records
+    }
+
+    "decode a memory-mapped file" in {
+      val file = Files.createTempFile("metrics-record-decoder", ".data")
+      Files.write(file, encode(records).toArray)
+      val decoded = ListBuffer[MetricsRecord]()
+      MetricsRecordDecoder.decode(file.toFile)(decoded += _) shouldBe records.size
+      decoded shouldBe records
+    }
+
+    "decode nothing from an empty file" in {
+      val file = Files.createTempFile("metrics-record-decoder", ".data")
+      MetricsRecordDecoder.decode(file.toFile)(_ => fail("no records expected")) shouldBe 0
+    }
+
+    "skip bytes before a record's start marker" in {
+      decode(ByteVector(0x01, 0x02) ++ encode(records.take(1)) ++ ByteVector(0x03) ++ encode(records.drop(1))) shouldBe
+        records
+    }
+
+    "accept values and types in any case and a leading '+' on timestamps" in {
+      decode(record("+12", "e", "n", "NuLl", "aBsOlUtE") ++ record("12", "e", "n", "+3", "Aggregate")) shouldBe Seq(
+        MetricsRecord(12L, "e", "n", null, RecordType.ABSOLUTE), // scalastyle:ignore
+        MetricsRecord(12L, "e", "n", 3.0: java.lang.Double, RecordType.AGGREGATE))
+    }
+
+    "reject a record that ends part way through" in {
+      val e = intercept[MalformedMetricsFileException](decode(encode(records).dropRight(1)))
+      e.getMessage shouldBe "2/metricType: Does not contain a '0xfe' separator byte."
+      e.offset shouldBe encode(records.take(2)).size
+    }
+
+    "reject trailing bytes without a start marker" in {
+      val e = intercept[MalformedMetricsFileException](decode(encode(records.take(1)) ++ ByteVector(0x01)))
+      e.getMessage shouldBe "1/metric start indicator: Does not contain a '0xff' separator byte."
+    }
+
+    "decode the binary format MetricBlockWriter writes" in {
+      val withNull = records :+
+        MetricsRecord(3L, "entity_id_1", "metric_2", null, RecordType.ABSOLUTE) // scalastyle:ignore
+      decode(encodeBlocks(withNull ++ withNull)) shouldBe withNull ++ withNull
+      decode(encodeBlocks(withNull ++ withNull, recordsPerBlock = 3)) shouldBe withNull ++ withNull
+      decode(encodeBlocks(withNull ++ withNull, useDictionary = false)) shouldBe withNull ++ withNull
+    }
+
+    "decode nothing from a binary file with no blocks" in {
+      decode(encodeBlocks(Seq.empty)) shouldBe empty
+    }
+
+    "resume a binary file after a record, reading its dictionary from the start" in {
+      val bytes = encodeBlocks(records ++ records, recordsPerBlock = 2)
+      val offsets = ListBuffer[Int]()
+      MetricsRecordDecoder.decodeWithOffsets(ByteBuffer.wrap(bytes.toArray))((_, offset) => offsets += offset)
+      offsets.last shouldBe bytes.size - 4
+
+      offsets.indices.foreach { i =>
+        val buffer = ByteBuffer.wrap(bytes.toArray)
+        buffer.position(offsets(i))
+        val decoded = ListBuffer[MetricsRecord]()
+        MetricsRecordDecoder.decode(buffer)(decoded += _) shouldBe offsets.size - i - 1
+        decoded shouldBe (records ++ records).drop(i + 1)
+      }
+    }
+
+    "reject a binary block whose checksum does not match, and none of its records" in {
+      val bytes = encodeBlocks(records, recordsPerBlock = 2)
+      val corrupt = bytes.update(bytes.size - 5, (bytes(bytes.size - 5) ^ 1).toByte) // scalastyle:ignore
+
+      val decoded = ListBuffer[MetricsRecord]()
+      val e = intercept[MalformedMetricsFileException] {
+        MetricsRecordDecoder.decode(ByteBuffer.wrap(corrupt.toArray))(decoded += _)
+      }
+      e.getMessage shouldBe "2/block checksum: Checksum does not match."
+      e.offset shouldBe encodeBlocks(records.take(2), recordsPerBlock = 2).size
+      decoded shouldBe records.take(2)
+    }
+
+    "decode compressed blocks" in {
+      val repetitive = (1 to 100).flatMap(_ => records)
+      val compressed = encodeBlocks(repetitive, recordsPerBlock = 150, compress = true) // scalastyle:ignore
+      compressed.size should be < encodeBlocks(repetitive, recordsPerBlock = 150).size / 2 // scalastyle:ignore
+      decode(compressed) shouldBe repetitive
+      // Blocks that do not get any smaller are left as they are.
+      encodeBlocks(records.take(1), compress = true) shouldBe encodeBlocks(records.take(1))
+    }
+
+    "only resume a compressed block after the whole of it" in {
+      val repetitive = (1 to 12).flatMap(_ => records) // scalastyle:ignore
+      val bytes = encodeBlocks(repetitive, recordsPerBlock = 12, compress = true) // scalastyle:ignore
+      val offsets = ListBuffer[Int]()
+      MetricsRecordDecoder.decodeWithOffsets(ByteBuffer.wrap(bytes.toArray))((_, offset) => offsets += offset)
+
+      val resumable = offsets.distinct
+      resumable.size shouldBe 4
+      offsets.count(_ == 0) shouldBe 11 // scalastyle:ignore
+      offsets.last shouldBe bytes.size - 4
+      resumable.zipWithIndex.foreach { case (offset, i) =>
+        val buffer = ByteBuffer.wrap(bytes.toArray)
+        buffer.position(offset)
+        val decoded = ListBuffer[MetricsRecord]()
+        MetricsRecordDecoder.decode(buffer)(decoded += _)
+        decoded shouldBe repetitive.drop(12 * i) // scalastyle:ignore
+      }
+    }
+
+    "reject a compressed block whose checksum does not match" in {
+      val repetitive = (1 to 10).flatMap(_ => records) // scalastyle:ignore
+      val bytes = encodeBlocks(repetitive, recordsPerBlock = repetitive.size, compress = true)
+      val corrupt = bytes.update(bytes.size - 5, (bytes(bytes.size - 5) ^ 1).toByte) // scalastyle:ignore
+      val e = intercept[MalformedMetricsFileException](decode(corrupt))
+      e.getMessage shouldBe "0/block checksum: Checksum does not match."
+      e.offset shouldBe MetricBlockWriter.MAGIC.length
+    }
+
+    "reject a binary file that ends part way through a block" in {
+      val e = intercept[MalformedMetricsFileException](decode(encodeBlocks(records).dropRight(1)))
+      e.getMessage shouldBe "2/block length: Does not contain a whole block."
+      e.offset shouldBe encodeBlocks(records.take(2)).size
+    }
+
+    "reject timestamps, values and types that do not parse" in {
+      intercept[MalformedMetricsFileException](decode(record("12x", "e", "n", "1", "absolute")))
+        .getMessage should include("0/timestamp")
+      intercept[MalformedMetricsFileException](decode(record("1", "e", "n", "9223372036854775808", "absolute")))
+        .getMessage should include("0/value")
+      intercept[MalformedMetricsFileException](decode(record("1", "e", "n", "one", "absolute")))
+        .getMessage should include("0/value")
+      intercept[MalformedMetricsFileException](decode(record("1", "e", "n", "1", "gauge")))
+        .getMessage should include("0/metricType")
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.socrata.balboa.agent
+
+import java.nio.file.{Files, Path}
+
+import com.socrata.balboa.util.FileUtils
+import org.scalatest.concurrent.Eventually
+import org.scalatest.time.{Millis, Seconds, Span}
+import org.scalatest.{ShouldMatchers, WordSpec}
+
+/**
+  * Unit tests for [[WatchingMetricFileProvider]].
+  */
+class WatchingMetricFileProviderSpec extends WordSpec with ShouldMatchers with Eventually {
+
+  override implicit val patienceConfig: PatienceConfig =
+    PatienceConfig(timeout = Span(30, Seconds), interval = Span(50, Millis)) // scalastyle:ignore
+
+  trait WatchedRootDirectory {
+    val rootDir: Path = Files.createTempDirectory(s"${this.getClass.getSimpleName}-root")
+    // Long enough that the index is only ever brought up to date by events.
+    val provider = new WatchingMetricFileProvider(rootDir, 3600000) // scalastyle:ignore
+
+    def createFiles(dir: Path, names: String*): Seq[Path] = names.map(name => Files.createFile(dir.resolve(name)))
+  }
+
+  "A WatchingMetricFileProvider" should {
+    "provide what an AlphabeticMetricFileProvider does" in new WatchedRootDirectory {
+      val nested = Files.createDirectories(rootDir.resolve("a").resolve("b"))
+      createFiles(rootDir, "1.data", "2.data", "3.data", "1" + FileUtils.BROKEN_FILE_EXTENSION)
+      createFiles(nested, "1.data", "2" + FileUtils.IMMUTABLE_FILE_EXTENSION, "3" + FileUtils.LOCK_FILE_EXTENSION)
+      createFiles(nested.getParent, "only.data")
+
+      provider.provide shouldBe AlphabeticMetricFileProvider(rootDir).provide
+      provider.provide.map(_.toPath) shouldBe
+        Set(rootDir.resolve("1.data"), rootDir.resolve("2.data"), nested.resolve("1.data"),
+          nested.resolve("2" + FileUtils.IMMUTABLE_FILE_EXTENSION))
+    }
+
+    "pick up files and directories created after it was first asked" in new WatchedRootDirectory {
+      provider.provide shouldBe empty
+      val later = createFiles(rootDir, "1.data", "2.data")
+      val nested = Files.createDirectories(rootDir.resolve("a").resolve("b"))
+      val nestedFiles = createFiles(nested, "1.data", "2.data")
+
+      eventually {
+        provider.provide.map(_.toPath) shouldBe Set(later.head, nestedFiles.head)
+      }
+    }
+
+    "stop providing files that were deleted or renamed" in new WatchedRootDirectory {
+      val files = createFiles(rootDir, "1.data", "2.data", "3.data")
+      provider.provide.map(_.toPath) shouldBe files.take(2).toSet
+
+      Files.delete(files.head)
+      Files.move(files(1), rootDir.resolve("2.data" + FileUtils.BROKEN_FILE_EXTENSION))
+      provider.provide shouldBe empty
+      eventually {
+        provider.numFiles(FileUtils.hasExtension(_, FileUtils.BROKEN_FILE_EXTENSION)) shouldBe 1
+        provider.numFiles(FileUtils.isBalboaDataFileName) shouldBe 1
+      }
+    }
+
+    "forget directories that were removed" in new WatchedRootDirectory {
+      val nested = Files.createDirectory(rootDir.resolve("a"))
+      val files = createFiles(nested, "1.data", "2.data")
+      provider.numFiles(_ => true) shouldBe 2
+
+      files.foreach(Files.delete)
+      Files.delete(nested)
+      eventually {
+        provider.numFiles(_ => true) shouldBe 0
+      }
+    }
+
+    "count files by name" in new WatchedRootDirectory {
+      createFiles(rootDir, "1.data", "2" + FileUtils.IMMUTABLE_FILE_EXTENSION, "3" + FileUtils.LOCK_FILE_EXTENSION,
+        "1.data" + FileUtils.CHECKPOINT_FILE_EXTENSION)
+
+      provider.numFiles(FileUtils.isBalboaDataFileName) shouldBe 2
+      provider.numFiles(FileUtils.hasExtension(_, FileUtils.LOCK_FILE_EXTENSION)) shouldBe 1
+      provider.numFiles(FileUtils.hasExtension(_, FileUtils.CHECKPOINT_FILE_EXTENSION)) shouldBe 1
+    }
+
+    "list the tree again each time when told to reconcile that often" in new WatchedRootDirectory {
+      val reconciling = new WatchingMetricFileProvider(rootDir, 0)
+      reconciling.provide shouldBe empty
+      val files = createFiles(rootDir, "1.data", "2.data")
+
+      // No waiting for events.
+      reconciling.provide.map(_.toPath) shouldBe Set(files.head)
+      reconciling.close()
+    }
+  }
+}
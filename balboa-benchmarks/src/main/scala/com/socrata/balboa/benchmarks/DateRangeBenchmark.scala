@@ -0,0 +1,64 @@
+package com.socrata.balboa.benchmarks
+
+import java.util.Date
+import java.util.concurrent.TimeUnit
+
+import com.socrata.balboa.metrics.data.{DateRange, Period, QueryOptimizer}
+import org.openjdk.jmh.annotations._
+
+import scala.collection.JavaConverters._
+
+/**
+  * Aligning a date to a period boundary, done once per tier per persist and
+  * once per bucket per query.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class DateRangeBenchmark {
+
+  @Param(Array("FIFTEEN_MINUTE", "HOURLY", "DAILY", "WEEKLY", "MONTHLY", "YEARLY"))
+  var period: String = _
+
+  var resolved: Period = _
+  val date = new Date(1420113600123L) // 2015-01-01T12:00:00.123Z
+
+  @Setup
+  def setUp(): Unit = resolved = Period.valueOf(period)
+
+  @Benchmark
+  def create(): DateRange = DateRange.create(resolved, date)
+}
+
+/**
+  * Planning the tiers to read for a range query.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class QueryOptimizerBenchmark {
+
+  @Param(Array("1", "31", "365", "3650"))
+  var rangeDays: Int = _
+
+  val optimizer = new QueryOptimizer(
+    List(Period.FIFTEEN_MINUTE, Period.HOURLY, Period.DAILY, Period.MONTHLY, Period.YEARLY).asJava)
+  var start: Date = _
+  var end: Date = _
+
+  @Setup
+  def setUp(): Unit = {
+    // Deliberately unaligned so that every tier contributes slices.
+    start = new Date(1420113600123L)
+    end = new Date(start.getTime + TimeUnit.DAYS.toMillis(rangeDays) + TimeUnit.MINUTES.toMillis(7))
+  }
+
+  @Benchmark
+  def optimalSlices(): java.util.Map[Period, java.util.Set[DateRange]] = optimizer.optimalSlices(start, end)
+}
@@ -0,0 +1,36 @@
+package com.socrata.balboa.benchmarks
+
+import com.socrata.balboa.metrics.Metric.RecordType
+import com.socrata.balboa.metrics.{Metric, Metrics}
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+/**
+  * Deterministic inputs shared by the benchmarks.
+  */
+object Fixtures {
+  /**
+    * Metrics named `metric-<offset>` through `metric-<offset + count - 1>`,
+    * every third one absolute and the rest aggregate.
+    */
+  def metrics(count: Int, offset: Int = 0, seed: Long = 42L): Metrics = {
+    val random = new Random(seed)
+    val metrics = new Metrics(count)
+    (offset until offset + count).foreach { i =>
+      val recordType = if (i % 3 == 0) RecordType.ABSOLUTE else RecordType.AGGREGATE
+      metrics.put(s"metric-$i", new Metric(recordType, random.nextInt(1000).toLong))
+    }
+    metrics
+  }
+
+  /**
+    * A deep copy, so that benchmarks which mutate Metrics start from the same
+    * state every time.
+    */
+  def copy(metrics: Metrics): Metrics = {
+    val copied = new Metrics(metrics.size)
+    metrics.asScala.foreach { case (name, metric) => copied.put(name, new Metric(metric.getType, metric.getValue)) }
+    copied
+  }
+}
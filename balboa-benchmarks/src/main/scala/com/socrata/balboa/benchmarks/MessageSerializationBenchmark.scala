@@ -0,0 +1,52 @@
+package com.socrata.balboa.benchmarks
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.util.concurrent.TimeUnit
+
+import com.socrata.balboa.metrics.Message
+import com.socrata.balboa.metrics.impl.{JsonMessage, ProtocolBuffersMessage}
+import org.openjdk.jmh.annotations._
+
+/**
+  * Encoding and decoding the two wire formats of a metrics message.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class MessageSerializationBenchmark {
+
+  @Param(Array("1", "10", "100", "1000"))
+  var metricCount: Int = _
+
+  var json: JsonMessage = _
+  var jsonBytes: Array[Byte] = _
+  var protobuf: ProtocolBuffersMessage = _
+  var protobufBytes: Array[Byte] = _
+
+  @Setup
+  def setUp(): Unit = {
+    val metrics = Fixtures.metrics(metricCount)
+    json = JsonMessage("benchmark-entity", 1420113600123L, metrics)
+    jsonBytes = json.serialize
+    protobuf = new ProtocolBuffersMessage(json)
+    protobufBytes = protobuf.serialize()
+  }
+
+  @Benchmark
+  def jsonSerialize(): Array[Byte] = json.serialize
+
+  /**
+    * Includes decoding the UTF-8 bytes, so it compares with protobufDeserialize.
+    */
+  @Benchmark
+  def jsonDeserialize(): Message = JsonMessage(new String(jsonBytes, UTF_8))
+
+  @Benchmark
+  def protobufSerialize(): Array[Byte] = protobuf.serialize()
+
+  @Benchmark
+  def protobufDeserialize(): Message = new ProtocolBuffersMessage(protobufBytes)
+}
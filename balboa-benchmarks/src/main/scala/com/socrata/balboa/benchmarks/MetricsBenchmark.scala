@@ -0,0 +1,48 @@
+package com.socrata.balboa.benchmarks
+
+import java.util.concurrent.TimeUnit
+
+import com.socrata.balboa.metrics.Metrics
+import org.openjdk.jmh.annotations._
+
+/**
+  * Merging two sets of metrics, as done for every message buffered or
+  * summarized.
+  *
+  * `overlap` is the fraction of the second set's names that also appear in
+  * the first; the rest are new keys. Merge mutates its receiver, so each
+  * invocation merges into a fresh copy; `copyOnly` measures that copy alone.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class MetricsBenchmark {
+
+  @Param(Array("10", "100", "1000", "10000"))
+  var metricCount: Int = _
+
+  @Param(Array("0.0", "0.5", "1.0"))
+  var overlap: Double = _
+
+  var target: Metrics = _
+  var other: Metrics = _
+
+  @Setup
+  def setUp(): Unit = {
+    target = Fixtures.metrics(metricCount)
+    other = Fixtures.metrics(metricCount, offset = ((1.0 - overlap) * metricCount).toInt, seed = 7L)
+  }
+
+  @Benchmark
+  def copyOnly(): Metrics = Fixtures.copy(target)
+
+  @Benchmark
+  def merge(): Metrics = Fixtures.copy(target).merge(other)
+
+  @Benchmark
+  def summarizeSlices(): Metrics =
+    Metrics.summarize(Iterator.fill(24)(other).map(Fixtures.copy))
+}
@@ -0,0 +1,81 @@
+package com.socrata.balboa.benchmarks
+
+import java.io.{BufferedOutputStream, File, FileInputStream, FileOutputStream}
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+import com.blist.metrics.impl.queue.MetricBlockWriter
+import com.socrata.balboa.agent.{MetricsRecord, MetricsRecordDecoder}
+import com.socrata.balboa.metrics.Metric.RecordType
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+import scodec.Codec
+import scodec.bits.{BitVector, ByteVector}
+
+/**
+  * Decoding a metrics file written by MetricFileQueue, with the scodec codec
+  * the agent used to read them with and with MetricsRecordDecoder, and the
+  * same records in the binary format, one block per record as
+  * MetricFileQueue.create writes them.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class MetricsRecordDecoderBenchmark {
+
+  @Param(Array("100", "20000"))
+  var recordCount: Int = _
+
+  var file: File = _
+  var binaryFile: File = _
+
+  @Setup
+  def setUp(): Unit = {
+    val records = (0 until recordCount).map { i =>
+      val recordType = if (i % 3 == 0) RecordType.ABSOLUTE else RecordType.AGGREGATE
+      MetricsRecord(1420113600123L + i, s"entity-${i % 100}", s"metric-${i % 50}", i.toLong: java.lang.Long,
+        recordType)
+    }
+    val bytes = records.map(MetricsRecord.codec.encode(_).require.bytes).foldLeft(ByteVector.empty)(_ ++ _)
+    file = File.createTempFile("metrics-record-decoder-benchmark", ".data")
+    Files.write(file.toPath, bytes.toArray)
+
+    binaryFile = File.createTempFile("metrics-record-decoder-benchmark", ".data")
+    val out = new BufferedOutputStream(new FileOutputStream(binaryFile))
+    try {
+      val writer = new MetricBlockWriter(out, true)
+      records.foreach { r =>
+        writer.add(r.entityId, r.name, r.value, r.timestamp, r.metricType)
+        writer.writeBlock()
+      }
+    } finally {
+      out.close()
+    }
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    file.delete()
+    binaryFile.delete()
+  }
+
+  @Benchmark
+  def scodec(): List[MetricsRecord] = {
+    val in = new FileInputStream(file)
+    try {
+      Codec.decodeCollect[List, MetricsRecord](MetricsRecord.codec.asDecoder, None)(BitVector.fromInputStream(in))
+        .require.value
+    } finally {
+      in.close()
+    }
+  }
+
+  @Benchmark
+  def mapped(blackhole: Blackhole): Int = MetricsRecordDecoder.decode(file)(blackhole.consume(_))
+
+  @Benchmark
+  def mappedBinary(blackhole: Blackhole): Int = MetricsRecordDecoder.decode(binaryFile)(blackhole.consume(_))
+}
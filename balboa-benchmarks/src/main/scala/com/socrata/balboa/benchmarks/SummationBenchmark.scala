@@ -0,0 +1,44 @@
+package com.socrata.balboa.benchmarks
+
+import java.math.{BigDecimal, BigInteger}
+import java.util.concurrent.TimeUnit
+
+import com.socrata.balboa.metrics.measurements.combining.Summation
+import org.openjdk.jmh.annotations._
+
+/**
+  * Summation.combine for each combination of boxed number types it has to
+  * reconcile.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+class SummationBenchmark {
+
+  @Param(Array("int", "long", "double", "long-overflow", "bigdecimal", "biginteger"))
+  var numbers: String = _
+
+  val summation = new Summation()
+  var first: Number = _
+  var second: Number = _
+
+  @Setup
+  def setUp(): Unit = {
+    val (a, b): (Number, Number) = numbers match {
+      case "int" => (Int.box(17), Int.box(25))
+      case "long" => (Long.box(17L), Long.box(25L))
+      case "double" => (Double.box(17.5), Long.box(25L))
+      case "long-overflow" => (Long.box(Long.MaxValue), Long.box(25L))
+      case "bigdecimal" => (new BigDecimal("17.5"), Long.box(25L))
+      case "biginteger" => (new BigInteger("17"), new BigInteger("25"))
+    }
+    first = a
+    second = b
+  }
+
+  @Benchmark
+  def combine(): Number = summation.combine(first, second)
+}
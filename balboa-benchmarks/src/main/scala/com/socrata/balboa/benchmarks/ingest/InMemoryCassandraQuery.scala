@@ -0,0 +1,111 @@
+package com.socrata.balboa.benchmarks.ingest
+
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.{ConcurrentHashMap, ThreadLocalRandom, TimeUnit}
+import java.{util => ju}
+
+import com.codahale.metrics.Timer
+import com.socrata.balboa.metrics.data.Period
+import com.socrata.balboa.metrics.data.impl.{CassandraQuery, CassandraUtil, EntityCatalog, MetricTiers}
+import com.socrata.balboa.metrics.{Metric, MetricName, Metrics}
+
+import scala.{collection => sc}
+
+/**
+  * A CassandraQuery that keeps every tier in memory, in the same structures
+  * as InMemoryDataStore, so CassandraDataStore can be exercised without a
+  * cluster.
+  *
+  * Every call stands for one round trip to Cassandra and is delayed by
+  * `latencyMicros` plus a uniformly distributed `jitterMicros`. The time each
+  * write takes, including that delay, is recorded in `writes`.
+  */
+class InMemoryCassandraQuery(latencyMicros: Long = 0, jitterMicros: Long = 0) extends CassandraQuery {
+
+  val writes: Timer = IngestBenchmark.timer()
+
+  private val tiers = new MetricTiers(Period.values.toList.filter(_ != Period.REALTIME))
+  private val catalog = new EntityCatalog()
+  private val checkpoints = new ConcurrentHashMap[(String, Int), java.lang.Long]()
+
+  @throws[Exception]
+  def checkHealth(): Unit = roundTrip()
+
+  def fetch(entityId: String, period: Period, bucket: ju.Date): Metrics = {
+    roundTrip()
+    tiers.get(entityId, period, bucket.getTime).fold(new Metrics())(_.toMetrics)
+  }
+
+  def deleteBucket(entityId: String, period: Period, bucket: ju.Date): Unit = timed {
+    tiers.remove(entityId, period, bucket.getTime)
+  }
+
+  def persist(entityId: String,
+              bucket: ju.Date,
+              period: Period,
+              aggregates: sc.Map[String, Metric],
+              absolutes: sc.Map[String, Metric]): Unit = timed {
+    tiers.add(entityId, period, bucket.getTime, absolutes ++ aggregates)
+  }
+
+  def registerEntity(entityId: String, bucket: ju.Date): Unit = timed {
+    catalog.restore(entityId, "", bucket.getTime, bucket.getTime)
+  }
+
+  def getEntityIds(prefix: String, after: Option[String]): Iterator[String] = {
+    roundTrip()
+    after.fold(catalog.entities(prefix))(catalog.entities(prefix, _))
+  }
+
+  def getRegistrations(shard: Int): Iterator[(String, Long)] = {
+    roundTrip()
+    catalog.registrations("").filter({ case (entityId, _) => CassandraUtil.entityShard(entityId) == shard })
+  }
+
+  def getTierBuckets(period: Period, recordType: Metric.RecordType): Iterator[(String, Long)] = {
+    roundTrip()
+    tiers.entries(period).collect({
+      case (entityId, start, cells) if recordType == Metric.RecordType.ABSOLUTE && cells.absolutes.nonEmpty ||
+        recordType == Metric.RecordType.AGGREGATE && cells.aggregates.nonEmpty => (entityId, start)
+    })
+  }
+
+  def getCheckpoint(job: String, shard: Int): Option[Long] = {
+    roundTrip()
+    Option(checkpoints.get((job, shard))).map(_.longValue)
+  }
+
+  def setCheckpoint(job: String, shard: Int, through: Long): Unit = timed {
+    checkpoints.put((job, shard), through)
+  }
+
+  def registerMetricNames(entityId: String,
+                          bucket: ju.Date,
+                          firstSightings: sc.Iterable[String],
+                          lastSightings: sc.Iterable[String]): Unit = timed {
+    (firstSightings ++ lastSightings).toSet[String]
+      .foreach(name => catalog.restore(entityId, name, bucket.getTime, bucket.getTime))
+  }
+
+  def getMetricNames(entityId: String): Iterator[MetricName] = {
+    roundTrip()
+    catalog.metricNames(entityId)
+  }
+
+  private def timed[T](write: => T): T = {
+    val context = writes.time()
+    try {
+      roundTrip()
+      write
+    } finally {
+      context.stop()
+    }
+  }
+
+  private def roundTrip(): Unit = {
+    val jitter = if (jitterMicros > 0) ThreadLocalRandom.current().nextLong(jitterMicros) else 0
+    if (latencyMicros + jitter > 0) {
+      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(latencyMicros + jitter))
+    }
+  }
+}
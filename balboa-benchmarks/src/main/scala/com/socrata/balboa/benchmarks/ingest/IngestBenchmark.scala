@@ -0,0 +1,148 @@
+package com.socrata.balboa.benchmarks.ingest
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{Executors, TimeUnit}
+
+import com.codahale.metrics.{Timer, UniformReservoir}
+import com.socrata.balboa.benchmarks.Fixtures
+import com.socrata.balboa.metrics.Metrics
+import com.socrata.balboa.metrics.data.impl.{BufferedDataStore, CassandraDataStore}
+import com.socrata.balboa.metrics.impl.JsonMessage
+
+/**
+  * End to end ingest throughput: the work a balboa-service-jms Consumer does
+  * per message (JSON decode, BufferedDataStore, CassandraDataStore persist
+  * fan-out over every tier) against an InMemoryCassandraQuery.
+  *
+  * Run with key=value arguments, e.g.
+  * {{{
+  * sbt "balboa-benchmarks/runMain com.socrata.balboa.benchmarks.ingest.IngestBenchmark threads=1,4,16 latencyMicros=500"
+  * }}}
+  *
+  * For each thread count this reports messages per second and latency
+  * percentiles of each stage:
+  *  - decode: parsing the JSON message
+  *  - buffer: BufferedDataStore.persist, including any flush it triggers
+  *  - flush: persisting one buffered entity through CassandraDataStore
+  *  - write: one simulated Cassandra round trip
+  *  - message: the whole of the work for one message
+  */
+object IngestBenchmark {
+
+  case class Settings(messages: Int = 200000,
+                      entities: Int = 1000,
+                      metricsPerMessage: Int = 10,
+                      metricNames: Int = 100,
+                      threads: Seq[Int] = Seq(1, 2, 4, 8),
+                      latencyMicros: Long = 0,
+                      jitterMicros: Long = 0,
+                      granularityMs: Long = 120000,
+                      slices: Int = 10)
+
+  def main(args: Array[String]): Unit = {
+    val settings = parse(args)
+    println(settings)
+    val messages = generate(settings)
+
+    settings.threads.foreach { threads =>
+      // One untimed pass so the JIT has compiled the hot paths.
+      run(settings, messages.take(messages.length / 10), threads)
+      report(threads, run(settings, messages, threads))
+    }
+  }
+
+  case class Result(messages: Int, elapsedNanos: Long, stages: Seq[(String, Timer)])
+
+  def run(settings: Settings, messages: Array[String], threads: Int): Result = {
+    val decode, buffer, flush, message = IngestBenchmark.timer()
+    val query = new InMemoryCassandraQuery(settings.latencyMicros, settings.jitterMicros)
+    val cassandra = new CassandraDataStore(query) {
+      override def persist(entityId: String, timestamp: Long, metrics: Metrics): Unit = {
+        val context = flush.time()
+        try super.persist(entityId, timestamp, metrics) finally context.stop()
+      }
+    }
+    val buffered = new BufferedDataStore(cassandra, bufferGranularity = settings.granularityMs)
+
+    val next = new AtomicInteger()
+    val pool = Executors.newFixedThreadPool(threads)
+    val start = System.nanoTime()
+    (1 to threads).foreach { _ =>
+      pool.execute(new Runnable {
+        def run(): Unit = {
+          var i = next.getAndIncrement()
+          while (i < messages.length) {
+            val whole = message.time()
+            val decoded = time(decode)(JsonMessage(messages(i)))
+            time(buffer)(buffered.persist(decoded.getEntityId, decoded.getTimestamp, decoded.getMetrics))
+            whole.stop()
+            i = next.getAndIncrement()
+          }
+        }
+      })
+    }
+    pool.shutdown()
+    pool.awaitTermination(Long.MaxValue, TimeUnit.NANOSECONDS)
+    // Flush whatever is still buffered, as the next heartbeat would.
+    buffered.flushExpired(Long.MaxValue)
+    val elapsed = System.nanoTime() - start
+
+    Result(messages.length, elapsed,
+      Seq("decode" -> decode, "buffer" -> buffer, "flush" -> flush, "write" -> query.writes, "message" -> message))
+  }
+
+  def report(threads: Int, result: Result): Unit = {
+    val perSecond = result.messages / (result.elapsedNanos / 1e9)
+    println(f"threads=$threads%d  ${result.messages}%d messages in ${result.elapsedNanos / 1e6}%.0fms  " +
+      f"$perSecond%.0f msgs/sec")
+    println(f"  ${"stage"}%-8s ${"count"}%10s ${"p50 us"}%10s ${"p95 us"}%10s ${"p99 us"}%10s ${"max us"}%10s")
+    result.stages.foreach { case (name, timer) =>
+      val snapshot = timer.getSnapshot
+      def micros(nanos: Double) = nanos / 1000
+      println(f"  $name%-8s ${timer.getCount}%10d ${micros(snapshot.getMedian)}%10.1f " +
+        f"${micros(snapshot.get95thPercentile)}%10.1f ${micros(snapshot.get99thPercentile)}%10.1f " +
+        f"${micros(snapshot.getMax.toDouble)}%10.1f")
+    }
+  }
+
+  /**
+    * Serialized messages spread round robin over the entities, with
+    * timestamps advancing steadily across `slices` buffer slices.
+    */
+  def generate(settings: Settings): Array[String] = {
+    val base = 1420070400000L // 2015-01-01T00:00:00Z
+    val step = settings.granularityMs * settings.slices / settings.messages.max(1)
+    Array.tabulate(settings.messages) { i =>
+      val offset = (i * settings.metricsPerMessage) % settings.metricNames.max(1)
+      val metrics = Fixtures.metrics(settings.metricsPerMessage, offset, seed = i)
+      new String(JsonMessage(s"entity-${i % settings.entities}", base + i * step, metrics).serialize, UTF_8)
+    }
+  }
+
+  def parse(args: Array[String]): Settings = args.foldLeft(Settings()) { (settings, arg) =>
+    arg.split("=", 2) match {
+      case Array("messages", v) => settings.copy(messages = v.toInt)
+      case Array("entities", v) => settings.copy(entities = v.toInt)
+      case Array("metricsPerMessage", v) => settings.copy(metricsPerMessage = v.toInt)
+      case Array("metricNames", v) => settings.copy(metricNames = v.toInt)
+      case Array("threads", v) => settings.copy(threads = v.split(",").map(_.trim.toInt))
+      case Array("latencyMicros", v) => settings.copy(latencyMicros = v.toLong)
+      case Array("jitterMicros", v) => settings.copy(jitterMicros = v.toLong)
+      case Array("granularityMs", v) => settings.copy(granularityMs = v.toLong)
+      case Array("slices", v) => settings.copy(slices = v.toInt)
+      case _ => throw new IllegalArgumentException(s"Unknown argument '$arg'. See the IngestBenchmark scaladoc.")
+    }
+  }
+
+  /**
+    * A timer sampling uniformly over the whole run rather than favouring
+    * recent measurements.
+    */
+  def timer(): Timer = new Timer(new UniformReservoir(100000)) // scalastyle:ignore magic.number
+
+  private def time[T](timer: Timer)(work: => T): T = {
+    val context = timer.time()
+    try work finally context.stop()
+  }
+}
@@ -99,4 +99,25 @@ public class MetricJmsQueue extends AbstractJavaMetricQueue {
         create(entity.toString(), name.toString(), value, timestamp, type);
     }
 
+    /**
+     * Adds the metrics to the write buffer as one entry, rather than one per metric.
+     */
+    @Override
+    public void createAll(IdParts entity, long timestamp, Metrics metrics) {
+        log.debug("Creating {} metrics for {} with associated time {} by sending them to the write buffer",
+                metrics.size(), entity, new Timestamp(timestamp).toString());
+        writeBuffer.add(entity.toString(), metrics, timestamp);
+        if (writeBuffer.size() >= this.bufferCapacity) {
+            flushWriteBuffer();
+        }
+    }
+
+    /**
+     * Synchronized, as the write buffer and session are shared with whoever is creating metrics.
+     */
+    @Override
+    public synchronized void flush() {
+        flushWriteBuffer();
+    }
+
 }
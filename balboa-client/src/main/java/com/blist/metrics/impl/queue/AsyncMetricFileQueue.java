@@ -0,0 +1,261 @@
+package com.blist.metrics.impl.queue;
+
+import com.socrata.balboa.metrics.Metric;
+import com.socrata.metrics.IdParts;
+import com.socrata.metrics.MetricQueue$;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Metric Queue that writes metrics to data files on disk like {@link MetricFileQueue}, without making the threads
+ * that create metrics wait for the disk.
+ *
+ * Metrics are added to one of several buffers, picked by thread, so that threads creating metrics at the same time
+ * seldom wait for each other. A single background thread appends every buffered metric to the data file, and flushes
+ * it, once every flush interval or as soon as a buffer holds the flush size. The file can also be forced to disk
+ * every sync interval.
+ *
+ * Each metric is numbered as it is buffered, and they are appended in that order, so that a metric created after
+ * another, on whichever thread, is written after it; the last of several ABSOLUTE values is the one that sticks.
+ *
+ * The buffers are bounded. Metrics created while their buffer is full, or after {@link #close()}, are dropped and
+ * counted by {@link #getDropped()}, rather than making the creating thread wait for the disk. Metrics that are still
+ * buffered are lost if the process dies; {@link #flush()} and {@link #close()} write them.
+ */
+public class AsyncMetricFileQueue extends AbstractJavaMetricQueue {
+    private static final Logger log = LoggerFactory.getLogger(AsyncMetricFileQueue.class);
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    public static final int DEFAULT_FLUSH_SIZE = 1000;
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private final MetricFileQueue queue;
+    private final Buffer[] buffers;
+    private final int flushSize;
+    private final int bufferCapacity;
+    private final long syncInterval;
+    private long nextSync;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported = 0;
+    private volatile boolean closed = false;
+
+    private final ScheduledExecutorService appender;
+    private final AtomicBoolean appendRequested = new AtomicBoolean(false);
+
+    private final Runnable appendTask = new Runnable() {
+        public void run() {
+            appendRequested.set(false);
+            try {
+                append(sequence.get());
+            } catch (IOException e) {
+                log.error("Exception appending buffered metrics to the data collection file", e);
+            }
+        }
+    };
+
+    /**
+     * Creates an AsyncMetricFileQueue that writes to `directory` in the {@link MetricFileQueue.Format#LEGACY} format,
+     * appending once a second and never syncing.
+     */
+    public AsyncMetricFileQueue(File directory) {
+        this(directory, MetricFileQueue.Format.LEGACY, DEFAULT_FLUSH_INTERVAL_MS, DEFAULT_FLUSH_SIZE, 0);
+    }
+
+    public AsyncMetricFileQueue(File directory,
+                                MetricFileQueue.Format format,
+                                long flushInterval,
+                                int flushSize,
+                                long syncInterval) {
+        this(directory, format, flushInterval, flushSize, syncInterval, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param directory The directory in which to write metrics data.
+     * @param format The format of the data files.
+     * @param flushInterval Longest a metric is buffered for, in milliseconds.
+     * @param flushSize Number of metrics a buffer holds before they are appended straight away.
+     * @param syncInterval Milliseconds between forcing the data file to disk, or 0 to leave that to the OS.
+     * @param capacity Most metrics buffered at once, split evenly between the buffers.
+     */
+    public AsyncMetricFileQueue(File directory,
+                                MetricFileQueue.Format format,
+                                long flushInterval,
+                                int flushSize,
+                                long syncInterval,
+                                int capacity) {
+        if (flushInterval <= 0 || flushSize <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Flush interval, size and capacity must be positive.");
+        }
+        // Every append is flushed explicitly, so the file queue never needs to on its own.
+        this.queue = new MetricFileQueue(directory, MetricQueue$.MODULE$.AGGREGATE_GRANULARITY(), format,
+                Integer.MAX_VALUE, 0);
+        this.buffers = new Buffer[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new Buffer();
+        }
+        this.flushSize = flushSize;
+        this.bufferCapacity = (capacity + buffers.length - 1) / buffers.length;
+        this.syncInterval = syncInterval;
+        this.nextSync = System.currentTimeMillis() + syncInterval;
+
+        appender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "async-metric-file-queue-appender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        appender.scheduleWithFixedDelay(appendTask, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void create(String entityId, String name, Number value, long timestamp, Metric.RecordType type) {
+        Buffer buffer = buffers[(int) (Thread.currentThread().getId() % buffers.length)];
+        int size;
+        synchronized (buffer) {
+            if (closed || buffer.entries.size() >= bufferCapacity) {
+                dropped.incrementAndGet();
+                return;
+            }
+            buffer.entries.add(new Entry(sequence.getAndIncrement(), entityId, name, value, timestamp, type));
+            size = buffer.entries.size();
+        }
+        if (size >= flushSize && appendRequested.compareAndSet(false, true)) {
+            try {
+                appender.execute(appendTask);
+            } catch (RejectedExecutionException e) {
+                // Shut down by close(), whose last append still writes this metric: it was buffered before close()
+                // marked the queue closed, and so before that append emptied its buffer.
+                appendRequested.set(false);
+            }
+        }
+    }
+
+    public void create(IdParts entity, IdParts name, long value, long timestamp, Metric.RecordType type) {
+        create(entity.toString(), name.toString(), value, timestamp, type);
+    }
+
+    /**
+     * Appends every metric buffered so far to the data file, and flushes it.
+     */
+    @Override
+    public void flush() throws IOException {
+        append(sequence.get());
+    }
+
+    /**
+     * Stops the background appender, appends what is left and closes the data file. Metrics created from then on
+     * are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        appender.shutdown();
+        try {
+            if (!appender.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Timed out waiting for the metrics file appender to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            // Nothing is buffered once the buffers are emptied, so every metric left can be appended.
+            append(Long.MAX_VALUE);
+        } finally {
+            queue.close();
+        }
+    }
+
+    public File getDirectory() {
+        return queue.getDirectory();
+    }
+
+    /**
+     * @return The number of metrics dropped so far, because their buffer was full or the queue was closed.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Appends the buffered metrics numbered below `end`, in the order they were numbered. Every one of them is in a
+     * buffer by the time the buffer is emptied, as a metric is numbered and buffered while holding the buffer's
+     * lock; later ones are left for the next append, as a metric numbered before them may be in a buffer that was
+     * already emptied.
+     */
+    private synchronized void append(long end) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (Buffer buffer : buffers) {
+            synchronized (buffer) {
+                List<Entry> buffered = buffer.entries;
+                int appended = buffered.size();
+                while (appended > 0 && buffered.get(appended - 1).sequence >= end) {
+                    appended--;
+                }
+                if (appended == 0) {
+                    continue;
+                }
+                entries.addAll(buffered.subList(0, appended));
+                buffer.entries = new ArrayList<>(buffered.subList(appended, buffered.size()));
+            }
+        }
+        Collections.sort(entries, BY_SEQUENCE);
+        for (Entry e : entries) {
+            queue.create(e.entityId, e.name, e.value, e.timestamp, e.type);
+        }
+        long droppedNow = dropped.get();
+        if (droppedNow > droppedReported) {
+            log.warn("Dropped {} metrics that could not be buffered", droppedNow - droppedReported);
+            droppedReported = droppedNow;
+        }
+        if (syncInterval > 0 && System.currentTimeMillis() >= nextSync) {
+            queue.sync();
+            nextSync = System.currentTimeMillis() + syncInterval;
+        } else {
+            queue.flush();
+        }
+    }
+
+    private static final class Buffer {
+        List<Entry> entries = new ArrayList<>();
+    }
+
+    private static final Comparator<Entry> BY_SEQUENCE = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private static final class Entry {
+        final long sequence;
+        final String entityId;
+        final String name;
+        final Number value;
+        final long timestamp;
+        final Metric.RecordType type;
+
+        Entry(long sequence, String entityId, String name, Number value, long timestamp, Metric.RecordType type) {
+            this.sequence = sequence;
+            this.entityId = entityId;
+            this.name = name;
+            this.value = value;
+            this.timestamp = timestamp;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.blist.metrics.impl.queue;
+
+import com.socrata.balboa.metrics.Metric;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes metrics in the legacy data file format into a reusable direct buffer, which is written to a channel when
+ * it fills up or is drained. One encoder, and its buffer, can write one file after another.
+ *
+ * Timestamps and integer values are written as ASCII digits without building a String, record types are encoded
+ * once, and the encodings of entity ids and names are kept while there are few enough of them to be worth it.
+ *
+ * Not thread safe.
+ */
+final class LegacyRecordEncoder {
+    private static final byte START = (byte) 0xff;
+    private static final byte SEPARATOR = (byte) 0xfe;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The most entity ids and names whose encodings are kept; once there are more, they are all forgotten.
+     */
+    static final int MAX_CACHED_STRINGS = 4096;
+
+    private static final byte[][] TYPES;
+    static {
+        Metric.RecordType[] types = Metric.RecordType.values();
+        TYPES = new byte[types.length][];
+        for (Metric.RecordType type : types) {
+            TYPES[type.ordinal()] = String.valueOf(type).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private WritableByteChannel channel = null;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Map<String, byte[]> strings = new HashMap<>();
+    private final byte[] digits = new byte[20];
+
+    /**
+     * Starts writing to `channel`, discarding whatever was encoded for the previous one and not drained.
+     */
+    void open(WritableByteChannel channel) {
+        this.channel = channel;
+        buffer.clear();
+    }
+
+    /**
+     * Encodes a metric as 0xff asciiTimestamp 0xfe entityId 0xfe name 0xfe asciiNumber 0xfe asciiType 0xfe, first
+     * draining the buffer if the metric might not fit.
+     */
+    void add(String entityId, String name, Number value, long timestamp, Metric.RecordType type) throws IOException {
+        byte[] entityBytes = encoded(entityId);
+        byte[] nameBytes = encoded(name);
+        byte[] valueBytes = isIntegral(value) ? null : String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        byte[] typeBytes = type == null ? String.valueOf(type).getBytes(StandardCharsets.UTF_8) : TYPES[type.ordinal()];
+
+        int longest = 6 + 2 * digits.length + entityBytes.length + nameBytes.length + typeBytes.length
+                + (valueBytes == null ? 0 : valueBytes.length);
+        if (buffer.remaining() < longest) {
+            drain();
+            if (buffer.capacity() < longest) {
+                buffer = ByteBuffer.allocateDirect(longest);
+            }
+        }
+
+        buffer.put(START);
+        putLong(timestamp);
+        buffer.put(SEPARATOR);
+        buffer.put(entityBytes);
+        buffer.put(SEPARATOR);
+        buffer.put(nameBytes);
+        buffer.put(SEPARATOR);
+        if (valueBytes == null) {
+            putLong(value.longValue());
+        } else {
+            buffer.put(valueBytes);
+        }
+        buffer.put(SEPARATOR);
+        buffer.put(typeBytes);
+        buffer.put(SEPARATOR);
+    }
+
+    /**
+     * Writes everything encoded so far to the channel.
+     */
+    void drain() throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    private static boolean isIntegral(Number value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    private byte[] encoded(String s) {
+        byte[] bytes = strings.get(s);
+        if (bytes == null) {
+            bytes = String.valueOf(s).getBytes(StandardCharsets.UTF_8);
+            if (strings.size() >= MAX_CACHED_STRINGS) {
+                strings.clear();
+            }
+            strings.put(s, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Puts the decimal digits of `v`, as String.valueOf(long) would.
+     */
+    private void putLong(long v) {
+        if (v < 0) {
+            buffer.put((byte) '-');
+        }
+        // Counts down from the last digit in negatives, as Long.MIN_VALUE has no positive counterpart.
+        long n = v < 0 ? v : -v;
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' - n % 10);
+            n /= 10;
+        } while (n != 0);
+        buffer.put(digits, i, digits.length - i);
+    }
+}
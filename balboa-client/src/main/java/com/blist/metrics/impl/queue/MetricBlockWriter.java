@@ -0,0 +1,249 @@
+package com.blist.metrics.impl.queue;
+
+import com.socrata.balboa.metrics.Metric;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes metrics data files in version 2 of their format, which is binary and written in checksummed blocks.
+ *
+ * File format:
+ * <pre>
+ * file   := MAGIC block*
+ * block  := varint(length of payload &lt;&lt; 1 | 0) records int32(CRC32 of payload)
+ *         | varint(length of payload &lt;&lt; 1 | 1) varint(length of records) deflated int32(CRC32 of payload)
+ * records:= record+
+ * record := header int64(timestamp) ref(entityId) ref(name) value
+ * header := (record type code &lt;&lt; 2) | value kind
+ * ref    := varint(0) string    - a string that becomes the next entry of the file's dictionary
+ *         | varint(1) string    - a string that does not
+ *         | varint(2 + n)       - the file's nth dictionary entry
+ * string := varint(length) utf8 bytes
+ * value  := zigzag varint       - VALUE_LONG
+ *         | float64             - VALUE_DOUBLE
+ *         |                     - VALUE_NULL
+ * </pre>
+ * Integers are big-endian and varints are unsigned LEB128. The dictionary is per file, so each file must be read
+ * from its start; a block whose checksum does not match ends what can be read of a file. A compressed block holds
+ * its records as a raw deflate stream, and is only written when that is smaller.
+ *
+ * Legacy files are a sequence of 0xff-prefixed, 0xfe-terminated ASCII fields and never start with {@link #MAGIC}.
+ *
+ * Records are added to a pending block, which is written out by {@link #writeBlock()}. Once its buffers have grown
+ * to fit, a block is encoded without allocating, except to encode a string as it is added to the dictionary and
+ * each time one is written in full. Not thread safe.
+ */
+public class MetricBlockWriter {
+    public static final byte[] MAGIC = {'B', 'M', 'F', 2};
+
+    public static final int REF_NEW = 0;
+    public static final int REF_LITERAL = 1;
+    public static final int REF_DICTIONARY = 2;
+
+    public static final int VALUE_LONG = 0;
+    public static final int VALUE_DOUBLE = 1;
+    public static final int VALUE_NULL = 2;
+
+    public static final int TYPE_AGGREGATE = 0;
+    public static final int TYPE_ABSOLUTE = 1;
+
+    /**
+     * The most entries a file's dictionary gets; later strings are written out in full each time.
+     */
+    public static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private final OutputStream out;
+    private final boolean useDictionary;
+    private final Deflater deflater;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final Block block = new Block();
+    private final Block header = new Block();
+    private final Block length = new Block();
+    private final CRC32 crc = new CRC32();
+    private byte[] deflated = new byte[0];
+    private int records = 0;
+
+    /**
+     * Starts a new file on `out` by writing the {@link #MAGIC}.
+     *
+     * @param out The stream of an empty file.
+     * @param useDictionary Whether repeated entity ids and names are written once and referred to after that.
+     * @throws IOException When the magic could not be written.
+     */
+    public MetricBlockWriter(OutputStream out, boolean useDictionary) throws IOException {
+        this(out, useDictionary, false);
+    }
+
+    /**
+     * @param compress Whether blocks are compressed, for files whose blocks each hold many records.
+     */
+    public MetricBlockWriter(OutputStream out, boolean useDictionary, boolean compress) throws IOException {
+        this.out = out;
+        this.useDictionary = useDictionary;
+        this.deflater = compress ? new Deflater(Deflater.BEST_SPEED, true) : null;
+        out.write(MAGIC);
+    }
+
+    /**
+     * Adds a record to the pending block. Values of the primitive integer types are written as longs, and every other
+     * number, such as a BigDecimal or a BigInteger, as its double value.
+     */
+    public void add(String entityId, String name, Number value, long timestamp, Metric.RecordType type) {
+        int valueKind = value == null ? VALUE_NULL : isIntegral(value) ? VALUE_LONG : VALUE_DOUBLE;
+        block.write((typeCode(type) << 2) | valueKind);
+        block.writeLong(timestamp);
+        writeRef(entityId);
+        writeRef(name);
+        if (valueKind == VALUE_LONG) {
+            long v = value.longValue();
+            block.writeVarint((v << 1) ^ (v >> 63));
+        } else if (valueKind == VALUE_DOUBLE) {
+            block.writeLong(Double.doubleToLongBits(value.doubleValue()));
+        }
+        records++;
+    }
+
+    /**
+     * @return The number of records in the pending block.
+     */
+    public int pending() {
+        return records;
+    }
+
+    /**
+     * Writes out the pending block, if it has any records, without flushing the underlying stream.
+     *
+     * @throws IOException When the block could not be written, after which the file should not be written to.
+     */
+    public void writeBlock() throws IOException {
+        if (records == 0) {
+            return;
+        }
+        header.reset();
+        int deflatedLength = deflate();
+        if (deflatedLength >= 0) {
+            length.reset();
+            length.writeVarint(block.size());
+            header.writeVarint((long) (length.size() + deflatedLength) << 1 | 1);
+            header.writeTo(out);
+            length.writeTo(out);
+            out.write(deflated, 0, deflatedLength);
+            crc.reset();
+            crc.update(length.buffer(), 0, length.size());
+            crc.update(deflated, 0, deflatedLength);
+        } else {
+            header.writeVarint((long) block.size() << 1);
+            header.writeTo(out);
+            block.writeTo(out);
+            crc.reset();
+            crc.update(block.buffer(), 0, block.size());
+        }
+        int checksum = (int) crc.getValue();
+        out.write(checksum >>> 24);
+        out.write(checksum >>> 16);
+        out.write(checksum >>> 8);
+        out.write(checksum);
+        block.reset();
+        records = 0;
+    }
+
+    /**
+     * Frees the compressor, after which no more blocks may be written. The stream is left open.
+     */
+    public void end() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Deflates the pending block into {@link #deflated}.
+     *
+     * @return The length it deflated to, or -1 if it is not compressed or would not be any smaller.
+     */
+    private int deflate() {
+        if (deflater == null) {
+            return -1;
+        }
+        if (deflated.length < block.size()) {
+            deflated = new byte[block.size()];
+        }
+        deflater.reset();
+        deflater.setInput(block.buffer(), 0, block.size());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished() && length < deflated.length) {
+            length += deflater.deflate(deflated, length, deflated.length - length);
+        }
+        return deflater.finished() && length < block.size() ? length : -1;
+    }
+
+    private void writeRef(String s) {
+        Integer entry = dictionary.get(s);
+        if (entry != null) {
+            block.writeVarint(REF_DICTIONARY + entry);
+        } else if (useDictionary && dictionary.size() < MAX_DICTIONARY_SIZE) {
+            dictionary.put(s, dictionary.size());
+            block.writeVarint(REF_NEW);
+            block.writeString(s);
+        } else {
+            block.writeVarint(REF_LITERAL);
+            block.writeString(s);
+        }
+    }
+
+    private static boolean isIntegral(Number value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    private static int typeCode(Metric.RecordType type) {
+        switch (type) {
+            case AGGREGATE:
+                return TYPE_AGGREGATE;
+            case ABSOLUTE:
+                return TYPE_ABSOLUTE;
+            default:
+                throw new IllegalArgumentException("Unknown record type " + type);
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that exposes its buffer, so that it can be checksummed without a copy.
+     */
+    private static final class Block extends ByteArrayOutputStream {
+        Block() {
+            super(256);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void writeLong(long v) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (v >>> shift));
+            }
+        }
+
+        void writeVarint(long v) {
+            while ((v & ~0x7fL) != 0) {
+                write((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            write((int) v);
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.blist.metrics.impl.queue;
 
 import com.socrata.balboa.metrics.Metric;
+import com.socrata.balboa.metrics.Metrics;
 import com.socrata.balboa.util.FileUtils;
 import com.socrata.metrics.IdParts;
 import com.socrata.metrics.MetricQueue$;
@@ -8,14 +9,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A Metric Queue that writes metrics to data files on disk in a specified directory.
  *
+ * Files are written in the {@link Format#LEGACY} format unless another is asked for, as balboa-agent versions that
+ * predate the binary formats can not read them. Once every agent reading a directory can, {@link Format#V2} is
+ * smaller and cheaper to write, and {@link Format#V2_COMPRESSED} suits repetitive metrics written at a high rate.
+ *
  * Provides a Singleton and Non-Singleton implementation.  The Singleton implementation is exposed through the
  * {@link MetricFileQueue#getInstance(File)} function.  The Non Singleton implementation is exposed through the
  * constructor.
@@ -23,6 +36,26 @@ import java.util.Map;
 public class MetricFileQueue extends AbstractJavaMetricQueue {
     private static final Logger log = LoggerFactory.getLogger(MetricFileQueue.class);
 
+    /**
+     * The formats data files can be written in.
+     */
+    public enum Format {
+        /**
+         * 0xff asciiTimestamp 0xfe entityId 0xfe name 0xfe asciiNumber 0xfe asciType 0xfe, for each metric.
+         */
+        LEGACY,
+        /**
+         * Checksummed binary blocks, by default one per create call, see {@link MetricBlockWriter}.
+         */
+        V2,
+        /**
+         * Compressed V2 blocks of many metrics each. A block is written once it holds the block size, once its
+         * first metric has waited for the linger interval, on {@link #flush()} and when the file is closed, so
+         * metrics waiting for their block are lost if the process dies.
+         */
+        V2_COMPRESSED
+    }
+
     /*
     TODO clearly evident requirement for restricted write access to data logs but adhoc over use of singleton instances.
     TODO Singleton are impractical in this situation.
@@ -33,14 +66,37 @@ public class MetricFileQueue extends AbstractJavaMetricQueue {
      */
     private static Map<File, MetricFileQueue> instances = new HashMap<>();
     private static long MAX_METRICS_PER_FILE = 20000;
+    private static final int DEFAULT_COMPRESSED_BLOCK_SIZE = 1000;
+    public static final long DEFAULT_LINGER_INTERVAL_MS = 1000;
+
+    /**
+     * Writes out the blocks whose metrics have lingered too long, for every queue.
+     */
+    private static ScheduledExecutorService lingerTimer = null;
 
     private final File directory;
     private final long reopenInterval;
+    private final Format format;
+    private final int blockSize;
+    private final long lingerInterval;
     private long reopenTime;
     private long metricCount = 0;
+    private int unflushed = 0;
+    private long lingerDeadline = 0;
+    private boolean lingerScheduled = false;
+
+    private final Runnable lingerTask = new Runnable() {
+        public void run() {
+            writeOutLingering();
+        }
+    };
 
     private File file;
+    private FileChannel channel = null;
+    // Kept from one legacy file to the next, so that its buffer is only allocated once.
+    private LegacyRecordEncoder encoder = null;
     private BufferedOutputStream stream = null;
+    private MetricBlockWriter writer = null;
 
     /**
      * Creates a MetricFileQueue instance for a specific directory.
@@ -52,6 +108,25 @@ public class MetricFileQueue extends AbstractJavaMetricQueue {
     }
 
     public MetricFileQueue(File directory, long reopenInterval) {
+        this(directory, reopenInterval, Format.LEGACY);
+    }
+
+    public MetricFileQueue(File directory, long reopenInterval, Format format) {
+        this(directory, reopenInterval, format, format == Format.V2_COMPRESSED ? DEFAULT_COMPRESSED_BLOCK_SIZE : 1);
+    }
+
+    /**
+     * @param blockSize The number of metrics written out to the file together, as one block in the V2 formats.
+     */
+    public MetricFileQueue(File directory, long reopenInterval, Format format, int blockSize) {
+        this(directory, reopenInterval, format, blockSize, DEFAULT_LINGER_INTERVAL_MS);
+    }
+
+    /**
+     * @param lingerInterval Longest a metric waits for its block to fill up before the block is written out
+     *                       anyway, in milliseconds, or 0 to wait for {@link #flush()} or {@link #close()}.
+     */
+    public MetricFileQueue(File directory, long reopenInterval, Format format, int blockSize, long lingerInterval) {
         if (!isDirectory(directory)) {
             throw new IllegalArgumentException("Illegal directory \"" + directory + "\". Cannot create Metrics File Queue.");
         }
@@ -60,6 +135,9 @@ public class MetricFileQueue extends AbstractJavaMetricQueue {
             reopenInterval = MetricQueue$.MODULE$.AGGREGATE_GRANULARITY();
         }
         this.reopenInterval = reopenInterval;
+        this.format = format;
+        this.blockSize = Math.max(blockSize, 1);
+        this.lingerInterval = Math.max(lingerInterval, 0);
     }
 
     /**
@@ -79,15 +157,32 @@ public class MetricFileQueue extends AbstractJavaMetricQueue {
 
     private void open() throws IOException {
         long now = System.currentTimeMillis();
-        String basename = String.format("metrics2012.%016x", now);
 
         this.directory.mkdirs();
 
-        String logName = basename + ".data";
-        file = new File(directory, logName);
-        stream = new BufferedOutputStream(new FileOutputStream(file, true));
+        // Never append to a file another queue is writing to, even one opened within the same millisecond: records
+        // could interleave, and a V2 file can only be written from its start.
+        long id = now;
+        while (channel == null) {
+            file = new File(directory, String.format("metrics2012.%016x", id++) + ".data");
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                log.debug("Data file {} already exists, trying the next name", file.getAbsolutePath());
+            }
+        }
+        if (format == Format.LEGACY) {
+            if (encoder == null) {
+                encoder = new LegacyRecordEncoder();
+            }
+            encoder.open(channel);
+        } else {
+            stream = new BufferedOutputStream(Channels.newOutputStream(channel));
+            writer = new MetricBlockWriter(stream, true, format == Format.V2_COMPRESSED);
+        }
         reopenTime = now + this.reopenInterval;
         metricCount = 0;
+        unflushed = 0;
     }
 
     /**
@@ -106,9 +201,25 @@ public class MetricFileQueue extends AbstractJavaMetricQueue {
 
     @Override
     public synchronized void close() throws IOException {
-        if (stream != null) {
-            stream.close();
+        if (channel != null) {
+            IOException failure = null;
+            try {
+                if (writer != null) {
+                    writer.writeBlock();
+                    stream.flush();
+                } else {
+                    encoder.drain();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            if (writer != null) {
+                writer.end();
+            }
+            writer = null;
             stream = null;
+            channel.close();
+            channel = null;
             log.debug("Attempting to mark data file as immutable. Path: {}", file.getAbsolutePath());
             Path p;
             if ((p = markFileAsImmutable(file)) != null) {
@@ -116,51 +227,153 @@ public class MetricFileQueue extends AbstractJavaMetricQueue {
             } else {
                 log.warn("Unable to mark {} as immutable", file.getAbsolutePath());
             }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Writes out the metrics waiting for their block to fill up.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (channel != null && unflushed > 0) {
+            try {
+                writeOut();
+            } catch (IOException e) {
+                handleWriteFailure(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes out the metrics waiting for their block to fill up, and forces the file they are in to disk. Files
+     * already closed are not.
+     */
+    public synchronized void sync() throws IOException {
+        flush();
+        if (channel != null) {
+            channel.force(true);
         }
     }
 
     public synchronized void create(String entityId, String name, Number value, long timestamp, Metric.RecordType type) {
-        // File format:
-        // 0xff asciiTimestamp 0xfe entityId 0xfe name 0xfe asciiNumber 0xfe asciType 0xfe
+        try {
+            prepare(1);
+            write(entityId, name, value, timestamp, type);
+            finishWrite();
+        } catch (IOException e) {
+            handleWriteFailure(e);
+        }
+    }
 
+    /**
+     * Writes the metrics together, into a single block in the V2 formats.
+     */
+    @Override
+    public synchronized void createAll(IdParts entity, long timestamp, Metrics metrics) {
         try {
-            if (stream == null) {
-                open();
-            } else if (System.currentTimeMillis() >= reopenTime || metricCount >= MAX_METRICS_PER_FILE) {
-                close();
-                open();
+            prepare(metrics.size());
+            for (Map.Entry<String, Metric> metric : metrics.entrySet()) {
+                write(entity.toString(), metric.getKey(), metric.getValue().getValue(), timestamp,
+                        metric.getValue().getType());
             }
-            metricCount++;
-            stream.write(0xff);
-
-            stream.write(utf8(String.valueOf(timestamp)));
-            stream.write(0xfe);
-
-            stream.write(utf8(entityId));
-            stream.write(0xfe);
+            finishWrite();
+        } catch (IOException e) {
+            handleWriteFailure(e);
+        }
+    }
 
-            stream.write(utf8(name));
-            stream.write(0xfe);
+    /**
+     * Opens a new data file if there is none, or if the current one is due to be closed, to write `count` metrics to.
+     */
+    private void prepare(int count) throws IOException {
+        if (channel == null) {
+            open();
+        } else if (System.currentTimeMillis() >= reopenTime || metricCount >= MAX_METRICS_PER_FILE) {
+            close();
+            open();
+        }
+        metricCount += count;
+    }
 
-            stream.write(utf8(String.valueOf(value)));
-            stream.write(0xfe);
+    private void write(String entityId, String name, Number value, long timestamp, Metric.RecordType type)
+            throws IOException {
+        if (unflushed++ == 0 && lingerInterval > 0 && blockSize > 1) {
+            lingerDeadline = System.currentTimeMillis() + lingerInterval;
+            if (!lingerScheduled) {
+                lingerScheduled = true;
+                scheduleLinger(lingerTask, lingerInterval);
+            }
+        }
+        if (writer != null) {
+            writer.add(entityId, name, value, timestamp, type);
+        } else {
+            encoder.add(entityId, name, value, timestamp, type);
+        }
+    }
 
-            stream.write(utf8(String.valueOf(type)));
-            stream.write(0xfe);
+    private void finishWrite() throws IOException {
+        if (unflushed >= blockSize) {
+            writeOut();
+        }
+    }
 
+    private void writeOut() throws IOException {
+        if (writer != null) {
+            writer.writeBlock();
             stream.flush();
+        } else {
+            encoder.drain();
+        }
+        unflushed = 0;
+    }
 
-            // fileStream.getChannel().force(true);
-            // fileStream.getFD().sync();
+    /**
+     * Writes out the pending block if its first metric has waited for the linger interval, or checks again once
+     * it will have.
+     */
+    private synchronized void writeOutLingering() {
+        lingerScheduled = false;
+        if (channel == null || unflushed == 0) {
+            return;
+        }
+        long remaining = lingerDeadline - System.currentTimeMillis();
+        if (remaining > 0) {
+            lingerScheduled = true;
+            scheduleLinger(lingerTask, remaining);
+            return;
+        }
+        try {
+            flush();
         } catch (IOException e) {
-            log.error("Exception writing data collection file", e);
-            try {
-                close();
-            } catch (IOException e2) {
-                log.error(
-                        "Problem closing data collection file while handling exception writing data collection file",
-                        e2);
-            }
+            // Logged, and the file closed, by flush.
+        }
+    }
+
+    private static synchronized void scheduleLinger(Runnable task, long delay) {
+        if (lingerTimer == null) {
+            lingerTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "metric-file-queue-linger");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        lingerTimer.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void handleWriteFailure(IOException e) {
+        log.error("Exception writing data collection file", e);
+        try {
+            close();
+        } catch (IOException e2) {
+            log.error(
+                    "Problem closing data collection file while handling exception writing data collection file",
+                    e2);
         }
     }
 
@@ -172,10 +385,6 @@ public class MetricFileQueue extends AbstractJavaMetricQueue {
         return directory;
     }
 
-    private static byte[] utf8(String s) throws UnsupportedEncodingException {
-        return s.getBytes("utf-8");
-    }
-
     private static boolean isDirectory(File directory) {
         return directory != null && directory.isDirectory();
     }
@@ -1,10 +1,13 @@
 package com.socrata.metrics
 
+import java.io.IOException
 import java.util.Date
 
-import com.socrata.balboa.metrics.Metric
+import com.socrata.balboa.metrics.{Metric, Metrics}
 import com.socrata.metrics.MetricQueue.{AccessChannel, Action}
 
+import scala.collection.JavaConverters._
+
 object MetricQueue {
 
   // scalastyle:off field.name
@@ -57,6 +60,30 @@ trait MetricQueue extends AutoCloseable {
   def create(entity: IdParts, name: IdParts, value: Long,
              timestamp: Long = new Date().getTime, recordType: Metric.RecordType = Metric.RecordType.AGGREGATE): Unit
 
+  /**
+   * Interface for receiving several Metrics of one entity that occurred at the same time. Queues that can send
+   * them as a single message should override this; by default each is passed to create. The queue may keep and
+   * modify metrics.
+   *
+   * @param entity Entity which these Metrics belong to (ex: a domain).
+   * @param timestamp Time when these metrics were created.
+   * @param metrics The Metrics, keyed by name.
+   */
+  def createAll(entity: IdParts, timestamp: Long, metrics: Metrics): Unit = {
+    metrics.asScala.foreach { case (name, metric) =>
+      create(entity, Fluff(name), metric.getValue.longValue, timestamp, metric.getType)
+    }
+  }
+
+  /**
+   * Blocks until every Metric received so far has been sent on, for queues that buffer or send in the background.
+   * Unlike create, flush must be safe to call while another thread is creating metrics.
+   *
+   * @throws IOException if some of them could not be sent.
+   */
+  @throws[IOException]
+  def flush(): Unit = {}
+
 }
 
 // scalastyle:off multiple.string.literals
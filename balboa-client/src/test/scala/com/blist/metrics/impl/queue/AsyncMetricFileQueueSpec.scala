@@ -0,0 +1,125 @@
+package com.blist.metrics.impl.queue
+
+import java.io.File
+import java.nio.file.Files
+
+import com.socrata.balboa.metrics.Metric.RecordType
+import com.socrata.balboa.util.FileUtils
+import org.scalatest.concurrent.Eventually
+import org.scalatest.time.{Millis, Seconds, Span}
+import org.scalatest.{BeforeAndAfterEach, WordSpec}
+
+/**
+  * Unit tests for [[AsyncMetricFileQueue]].
+  */
+class AsyncMetricFileQueueSpec extends WordSpec with BeforeAndAfterEach with Eventually {
+
+  override implicit val patienceConfig: PatienceConfig =
+    PatienceConfig(timeout = Span(10, Seconds), interval = Span(20, Millis)) // scalastyle:ignore
+
+  val directory: File = Files.createTempDirectory(getClass.getSimpleName).toFile
+  var queue: AsyncMetricFileQueue = _
+
+  override def afterEach(): Unit = {
+    queue.close()
+    directory.listFiles().foreach(_.delete())
+  }
+
+  def newQueue(flushInterval: Long,
+               flushSize: Int = 1000, // scalastyle:ignore
+               capacity: Int = 100000): AsyncMetricFileQueue = { // scalastyle:ignore
+    queue = new AsyncMetricFileQueue(directory, MetricFileQueue.Format.LEGACY, flushInterval, flushSize, 0, capacity)
+    queue
+  }
+
+  /**
+    * The number of metrics in the legacy data files, each of which starts with a 0xff byte.
+    */
+  def written: Int =
+    directory.listFiles().map(f => Files.readAllBytes(f.toPath).count(_ == 0xff.toByte)).sum
+
+  /**
+    * The values of the metrics in the legacy data files, in the order they were written.
+    */
+  def writtenValues: Seq[String] =
+    directory.listFiles().sortBy(_.getName).toSeq.flatMap { f =>
+      new String(Files.readAllBytes(f.toPath), "ISO-8859-1").split('\u00ff').toSeq.tail.map(_.split('\u00fe')(3))
+    }
+
+  "An AsyncMetricFileQueue" should {
+    "write nothing from the creating thread" in {
+      newQueue(3600000) // scalastyle:ignore
+      queue.create("entity-id", "metric-name", 1, 1, RecordType.AGGREGATE)
+      assert(written == 0)
+    }
+
+    "write the metrics of every thread on flush" in {
+      newQueue(3600000) // scalastyle:ignore
+      val threads = (1 to 8).map { t =>
+        new Thread(new Runnable {
+          def run(): Unit = (1 to 100).foreach { i => // scalastyle:ignore
+            queue.create(s"entity-$t", s"metric-$i", i, i, RecordType.AGGREGATE)
+          }
+        })
+      }
+      threads.foreach(_.start())
+      threads.foreach(_.join())
+      queue.flush()
+      assert(written == 800)
+    }
+
+    "write metrics in the order they were created, whichever thread created them" in {
+      newQueue(3600000) // scalastyle:ignore
+      (1 to 8).foreach { t =>
+        val thread = new Thread(new Runnable {
+          def run(): Unit = queue.create("entity-id", "metric-name", t, 1, RecordType.ABSOLUTE)
+        })
+        thread.start()
+        thread.join()
+      }
+      queue.flush()
+      assert(writtenValues == (1 to 8).map(_.toString))
+    }
+
+    "drop metrics created while their buffer is full" in {
+      newQueue(3600000, capacity = 1) // scalastyle:ignore
+      (1 to 5).foreach(i => queue.create("entity-id", "metric-name", i, i, RecordType.AGGREGATE))
+      assert(queue.getDropped == 4)
+      queue.flush()
+      assert(writtenValues == Seq("1"))
+    }
+
+    "drop metrics created after it is closed" in {
+      newQueue(3600000) // scalastyle:ignore
+      queue.close()
+      queue.create("entity-id", "metric-name", 1, 1, RecordType.AGGREGATE)
+      queue.flush()
+      assert(queue.getDropped == 1)
+      assert(written == 0)
+    }
+
+    "write metrics in the background every flush interval" in {
+      newQueue(20) // scalastyle:ignore
+      queue.create("entity-id", "metric-name", 1, 1, RecordType.AGGREGATE)
+      eventually {
+        assert(written == 1)
+      }
+    }
+
+    "write metrics in the background once a buffer holds the flush size" in {
+      newQueue(3600000, flushSize = 10) // scalastyle:ignore
+      (1 to 10).foreach(i => queue.create("entity-id", "metric-name", i, i, RecordType.AGGREGATE))
+      eventually {
+        assert(written == 10)
+      }
+    }
+
+    "write what is left and mark the file immutable on close" in {
+      newQueue(3600000) // scalastyle:ignore
+      queue.create("entity-id", "metric-name", 1, 1, RecordType.AGGREGATE)
+      queue.close()
+      assert(written == 1)
+      assert(directory.listFiles().forall(_.getName.endsWith(FileUtils.IMMUTABLE_FILE_EXTENSION)))
+    }
+  }
+}
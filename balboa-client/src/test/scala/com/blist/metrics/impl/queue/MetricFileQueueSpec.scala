@@ -1,6 +1,7 @@
 package com.blist.metrics.impl.queue
 
-import java.nio.file.Files
+import java.nio.ByteBuffer
+import java.nio.file.{Files, Path}
 
 import com.socrata.balboa.metrics.Metric.RecordType
 import com.socrata.balboa.util.FileUtils
@@ -14,6 +15,41 @@ class MetricFileQueueSpec extends WordSpec {
   trait MetricFileQueueProvider {
     val directory = Files.createTempDirectory(this.getClass.getSimpleName)
     val metricFileQueue = new MetricFileQueue(directory.toFile, 0)
+
+    def completedFiles(dir: Path) =
+      dir.toFile.listFiles().filter(f => f.getAbsolutePath.endsWith(FileUtils.IMMUTABLE_FILE_EXTENSION))
+
+    /**
+      * Decodes the value of the first record of an uncompressed V2 file, as a Long, a Double or null.
+      */
+    def firstValue(bytes: Array[Byte]): Any = {
+      val in = ByteBuffer.wrap(bytes)
+      def varint(): Long = {
+        var v = 0L
+        var shift = 0
+        var b = 0
+        do {
+          b = in.get
+          v |= (b & 0x7fL) << shift
+          shift += 7
+        } while ((b & 0x80) != 0)
+        v
+      }
+      in.position(MetricBlockWriter.MAGIC.length)
+      varint()
+      val header = in.get
+      in.getLong
+      (1 to 2).foreach { _ =>
+        if (varint() < MetricBlockWriter.REF_DICTIONARY) in.position(in.position + varint().toInt)
+      }
+      header & 0x3 match {
+        case MetricBlockWriter.VALUE_LONG =>
+          val v = varint()
+          (v >>> 1) ^ -(v & 1)
+        case MetricBlockWriter.VALUE_DOUBLE => in.getDouble
+        case MetricBlockWriter.VALUE_NULL => null // scalastyle:ignore
+      }
+    }
   }
 
   "A MetricFileQueue" when {
@@ -25,5 +61,104 @@ class MetricFileQueueSpec extends WordSpec {
         assert(completedFiles.length == 1)
       }
     }
+
+    "writing a file" should {
+      "write the legacy format by default" in new MetricFileQueueProvider {
+        metricFileQueue.create("entitiy-id", "metric-name-1", 1, 1, RecordType.AGGREGATE)
+        metricFileQueue.close()
+        val bytes = Files.readAllBytes(completedFiles(directory).head.toPath)
+        assert(bytes.head == 0xff.toByte)
+        assert(bytes.count(_ == 0xfe.toByte) == 5)
+      }
+
+      "start it with the V2 magic when asked to" in new MetricFileQueueProvider {
+        val v2Queue = new MetricFileQueue(directory.toFile, 0, MetricFileQueue.Format.V2)
+        v2Queue.create("entitiy-id", "metric-name-1", 1, 1, RecordType.AGGREGATE)
+        v2Queue.close()
+        val bytes = Files.readAllBytes(completedFiles(directory).head.toPath)
+        assert(bytes.take(MetricBlockWriter.MAGIC.length).sameElements(MetricBlockWriter.MAGIC))
+      }
+
+      "write V2 integers exactly and other numbers as doubles" in new MetricFileQueueProvider {
+        val values = Seq[(Number, Any)](
+          (Long.MaxValue, Long.MaxValue),
+          (java.lang.Short.valueOf((-5).toShort), -5L),
+          (new java.math.BigDecimal("1.5"), 1.5),
+          (java.math.BigInteger.ONE.shiftLeft(70), math.pow(2, 70)), // scalastyle:ignore
+          (null, null)) // scalastyle:ignore
+        values.foreach { case (value, expected) =>
+          val file = Files.createTempDirectory(this.getClass.getSimpleName).toFile
+          val v2Queue = new MetricFileQueue(file, 0, MetricFileQueue.Format.V2)
+          v2Queue.create("entitiy-id", "metric-name-1", value, 1, RecordType.AGGREGATE)
+          v2Queue.close()
+          assert(firstValue(Files.readAllBytes(completedFiles(file.toPath).head.toPath)) == expected)
+        }
+      }
+
+      "encode legacy metrics as their strings" in new MetricFileQueueProvider {
+        val legacyQueue =
+          new MetricFileQueue(directory.toFile, 3600000, MetricFileQueue.Format.LEGACY) // scalastyle:ignore
+        val metrics = Seq[(String, Number, Long, RecordType)](
+          ("entit\u00e9", Long.MinValue, Long.MinValue, RecordType.AGGREGATE),
+          ("e", -5L, 0L, RecordType.ABSOLUTE),
+          ("e", 1.5, Long.MaxValue, RecordType.AGGREGATE),
+          ("e", 42, 1496268557542L, RecordType.ABSOLUTE), // scalastyle:ignore
+          ("e", null, 1L, RecordType.ABSOLUTE)) // scalastyle:ignore
+        metrics.foreach { case (entity, value, timestamp, recordType) =>
+          legacyQueue.create(entity, "metric-name", value, timestamp, recordType)
+        }
+        legacyQueue.close()
+
+        val expected = metrics.flatMap { case (entity, value, timestamp, recordType) =>
+          0xff.toByte +: Seq(timestamp, entity, "metric-name", value, recordType)
+            .flatMap(field => String.valueOf(field).getBytes("UTF-8") :+ 0xfe.toByte)
+        }
+        assert(Files.readAllBytes(completedFiles(directory).head.toPath).toSeq == expected)
+      }
+
+      "hold compressed metrics until their block is full or flushed" in new MetricFileQueueProvider {
+        val compressedQueue =
+          new MetricFileQueue(directory.toFile, 3600000, // scalastyle:ignore
+            MetricFileQueue.Format.V2_COMPRESSED, 3, 0)
+        def written = Files.size(directory.toFile.listFiles().head.toPath)
+
+        compressedQueue.create("entitiy-id", "metric-name-1", 1, 1, RecordType.AGGREGATE)
+        compressedQueue.create("entitiy-id", "metric-name-2", 1, 1, RecordType.AGGREGATE)
+        assert(written <= MetricBlockWriter.MAGIC.length)
+        compressedQueue.create("entitiy-id", "metric-name-3", 1, 1, RecordType.AGGREGATE)
+        val full = written
+        assert(full > MetricBlockWriter.MAGIC.length)
+        compressedQueue.create("entitiy-id", "metric-name-4", 1, 1, RecordType.AGGREGATE)
+        assert(written == full)
+        compressedQueue.flush()
+        assert(written > full)
+        compressedQueue.close()
+      }
+
+      "write out compressed metrics that have waited for the linger interval" in new MetricFileQueueProvider {
+        val compressedQueue =
+          new MetricFileQueue(directory.toFile, 3600000, // scalastyle:ignore
+            MetricFileQueue.Format.V2_COMPRESSED, 1000, 200) // scalastyle:ignore
+        def written = Files.size(directory.toFile.listFiles().head.toPath)
+
+        compressedQueue.create("entitiy-id", "metric-name-1", 1, 1, RecordType.AGGREGATE)
+        assert(written <= MetricBlockWriter.MAGIC.length)
+        val deadline = System.currentTimeMillis + 5000 // scalastyle:ignore
+        while (written <= MetricBlockWriter.MAGIC.length && System.currentTimeMillis < deadline) {
+          Thread.sleep(10) // scalastyle:ignore
+        }
+        assert(written > MetricBlockWriter.MAGIC.length)
+        compressedQueue.close()
+      }
+
+      "not append to a file another queue is writing to" in new MetricFileQueueProvider {
+        val otherQueue = new MetricFileQueue(directory.toFile, 0)
+        metricFileQueue.create("entitiy-id", "metric-name-1", 1, 1, RecordType.AGGREGATE)
+        otherQueue.create("entitiy-id", "metric-name-1", 1, 1, RecordType.AGGREGATE)
+        metricFileQueue.close()
+        otherQueue.close()
+        assert(completedFiles(directory).length == 2)
+      }
+    }
   }
 }
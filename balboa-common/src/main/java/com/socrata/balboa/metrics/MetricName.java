@@ -0,0 +1,70 @@
+package com.socrata.balboa.metrics;
+
+/**
+ * An entry of an entity's metric name catalog: a metric name along with the
+ * start of the first and last buckets it has been recorded in.
+ */
+public class MetricName {
+    String name;
+    long firstSeen;
+    long lastSeen;
+
+    public MetricName(String name, long firstSeen, long lastSeen) {
+        this.name = name;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+    }
+
+    public MetricName() {}
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    public void setFirstSeen(long firstSeen) {
+        this.firstSeen = firstSeen;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        MetricName other = (MetricName) o;
+
+        return firstSeen == other.firstSeen && lastSeen == other.lastSeen && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = name.hashCode();
+        result = 31 * result + (int) (firstSeen ^ (firstSeen >>> 32));
+        result = 31 * result + (int) (lastSeen ^ (lastSeen >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricName{" +
+                "name='" + name + '\'' +
+                ", firstSeen=" + firstSeen +
+                ", lastSeen=" + lastSeen +
+                '}';
+    }
+}
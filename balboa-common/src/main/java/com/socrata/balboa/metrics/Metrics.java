@@ -28,6 +28,20 @@ public class Metrics extends HashMap<String, Metric> {
         super(map);
     }
 
+    /**
+     * A deep copy, which shares no Metric with this, so that merging into
+     * either one leaves the other alone.
+     */
+    public Metrics copy() {
+        Metrics copied = new Metrics(size());
+
+        for (Map.Entry<String, Metric> entry : entrySet()) {
+            copied.put(entry.getKey(), new Metric(entry.getValue().getType(), entry.getValue().getValue()));
+        }
+
+        return copied;
+    }
+
     public Set<Map.Entry<String, Metric>> difference(Metrics other) {
         Set<Map.Entry<String, Metric>> union = new HashSet<>(entrySet());
         union.addAll(other.entrySet());
@@ -75,6 +89,47 @@ public class Metrics extends HashMap<String, Metric> {
         return results;
     }
 
+    /**
+     * Selects the n largest metrics whose names match pattern (or every
+     * metric when pattern is null), without sorting the rest.
+     *
+     * @return The selected metrics, largest value first. Ties are broken by name.
+     */
+    public List<Map.Entry<String, Metric>> top(int n, String pattern) {
+        Comparator<Map.Entry<String, Metric>> ascending = new Comparator<Map.Entry<String, Metric>>() {
+            @Override
+            public int compare(Map.Entry<String, Metric> a, Map.Entry<String, Metric> b) {
+                int byValue = Double.compare(a.getValue().getValue().doubleValue(), b.getValue().getValue().doubleValue());
+                return byValue != 0 ? byValue : b.getKey().compareTo(a.getKey());
+            }
+        };
+
+        // A min-heap of the best n seen so far; its head is the next to be evicted.
+        PriorityQueue<Map.Entry<String, Metric>> heap = new PriorityQueue<>(Math.max(1, n), ascending);
+
+        if (n > 0) {
+            for (Map.Entry<String, Metric> entry : entrySet()) {
+                if (pattern != null && !entry.getKey().matches(pattern)) {
+                    continue;
+                }
+
+                if (heap.size() < n) {
+                    heap.add(entry);
+                } else if (ascending.compare(entry, heap.peek()) > 0) {
+                    heap.poll();
+                    heap.add(entry);
+                }
+            }
+        }
+
+        LinkedList<Map.Entry<String, Metric>> results = new LinkedList<>();
+        while (!heap.isEmpty()) {
+            results.addFirst(heap.poll());
+        }
+
+        return results;
+    }
+
     /**
      * Merges another collection of metrics with this.  Metrics of the same name that are found in both this and
      * the other Metrics object are then combined via the {@link Metric#combine(Metric)} method.
@@ -4,10 +4,54 @@ import java.util.*;
 
 public class QueryOptimizer {
 
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
     private final List<Period> supportedPeriods;
+    private final Map<Period, Long> retention;
+    private final long now;
 
     public QueryOptimizer(List<Period> supportedPeriods) {
+        this(supportedPeriods, Collections.<Period, Long>emptyMap(), System.currentTimeMillis());
+    }
+
+    /**
+     * @param retention how many milliseconds after its end a bucket of each
+     *                  period is kept for. Periods without a retention are
+     *                  kept forever.
+     * @param now the time at which buckets are judged to have expired.
+     */
+    public QueryOptimizer(List<Period> supportedPeriods, Map<Period, Long> retention, long now) {
         this.supportedPeriods = supportedPeriods;
+        this.retention = retention;
+        this.now = now;
+    }
+
+    /**
+     * Whether the bucket of period that date lies in has passed its
+     * retention, and so can no longer be read.
+     */
+    public boolean expired(Period period, Date date) {
+        Long kept = retention.get(period);
+        return kept != null && DateRange.create(period, date).end.getTime() < now - kept;
+    }
+
+    /**
+     * The period itself if its bucket at date has not expired, otherwise the
+     * finest supported less granular period whose bucket has not. If every
+     * one has expired the least granular supported period is returned.
+     */
+    public Period unexpired(Period period, Date date) {
+        Period current = period;
+        Period next = lessGranular(current);
+        while (next != null && expired(current, date)) {
+            current = next;
+            next = lessGranular(current);
+        }
+
+        return current;
     }
 
     Period lessGranular(Period current) {
@@ -46,24 +90,32 @@ public class QueryOptimizer {
             DateRange remaining = new DateRange(start, end);
             tier.add(remaining);
         } else {
+            // Slices of this tier that have expired are left to the next
+            // tier, which then covers the whole of its bucket.
             DateRange startSlice = null;
             if (!DateRange.liesOnBoundary(start, nextPeriod)) {
-                startSlice = new DateRange(
-                        start,
-                        Collections.min(Arrays.asList(DateRange.create(nextPeriod, start).end, end))
-                );
-
-                nextStart = new Date(startSlice.end.getTime() + 1);
+                if (expired(type, start)) {
+                    nextStart = DateRange.create(nextPeriod, start).start;
+                } else {
+                    startSlice = new DateRange(
+                            start,
+                            Collections.min(Arrays.asList(DateRange.create(nextPeriod, start).end, end))
+                    );
+
+                    nextStart = new Date(startSlice.end.getTime() + 1);
+                }
             }
 
             DateRange endSlice = null;
             if (!DateRange.liesOnBoundary(end, nextPeriod)) {
-                endSlice = new DateRange(
-                        Collections.max(Arrays.asList(DateRange.create(nextPeriod, end).start, start)),
-                        end
-                );
+                Date endSliceStart = Collections.max(Arrays.asList(DateRange.create(nextPeriod, end).start, start));
+                if (expired(type, endSliceStart)) {
+                    nextEnd = DateRange.create(nextPeriod, end).end;
+                } else {
+                    endSlice = new DateRange(endSliceStart, end);
 
-                nextEnd = new Date(endSlice.start.getTime() - 1);
+                    nextEnd = new Date(endSlice.start.getTime() - 1);
+                }
             }
 
             if (startSlice != null && endSlice != null && startSlice.end.getTime() == (endSlice.start.getTime() - 1)) {
@@ -82,6 +134,70 @@ public class QueryOptimizer {
         }
     }
 
+    /**
+     * Pick the period at which to serve a series over [start, end] so that it
+     * has at most maxPoints timeslices: the requested period if it already
+     * fits, otherwise the finest supported period that is less granular and
+     * does. If nothing fits, the least granular supported period is returned.
+     */
+    public Period downsample(Period requested, Date start, Date end, int maxPoints) {
+        Period current = requested;
+        Period next = lessGranular(current);
+        while (next != null && countSlices(current, start, end) > maxPoints) {
+            current = next;
+            next = lessGranular(current);
+        }
+
+        return current;
+    }
+
+    /**
+     * Count the timeslices of the given period within [start, end] the same
+     * way {@link DateRange#toDates(Period)} would: one for every bucket from
+     * the one holding start to the one holding the last millisecond before
+     * end. The buckets are numbered from their boundaries rather than walked,
+     * so that wide ranges at fine periods cost no more than narrow ones.
+     */
+    static long countSlices(Period period, Date start, Date end) {
+        if (!start.before(end)) {
+            return 0;
+        }
+
+        return bucket(period, end.getTime() - 1) - bucket(period, start.getTime()) + 1;
+    }
+
+    /**
+     * Number the bucket of the given period holding a time, counting from the
+     * UTC epoch, so that adjacent buckets get adjacent numbers.
+     */
+    private static long bucket(Period period, long time) {
+        switch (period) {
+            case SECONDLY:
+                return Math.floorDiv(time, SECOND);
+            case MINUTELY:
+                return Math.floorDiv(time, MINUTE);
+            case FIFTEEN_MINUTE:
+                return Math.floorDiv(time, 15 * MINUTE);
+            case HOURLY:
+                return Math.floorDiv(time, HOUR);
+            case DAILY:
+                return Math.floorDiv(time, DAY);
+            case WEEKLY:
+                // Weeks start on Sunday, and the epoch was a Thursday.
+                return Math.floorDiv(time + 4 * DAY, 7 * DAY);
+            case MONTHLY:
+            case YEARLY:
+                Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+                cal.setTimeInMillis(time);
+                long year = cal.get(Calendar.YEAR);
+                return period == Period.YEARLY ? year : year * 12 + cal.get(Calendar.MONTH);
+            case FOREVER:
+                return 0;
+            default:
+                throw new IllegalArgumentException("Unsupported date range '" + period + "'.");
+        }
+    }
+
     public Map<Period, Set<DateRange>> optimalSlices(Date start, Date end) {
         Map<Period, Set<DateRange>> optimized = new HashMap<>();
         optimize(start, end, Period.mostGranular(supportedPeriods), optimized);
@@ -3,3 +3,8 @@ package com.socrata.balboa.metrics
 case class EntityJSON(timestamp: Long, metrics: Map[String, MetricJSON])
 
 case class MetricJSON(value: Long, `type`: String)
+
+/**
+  * A single entry of a batch of metrics spanning several entities.
+  */
+case class EntityRecordJSON(entityId: String, timestamp: Long, metrics: Map[String, MetricJSON])
@@ -26,10 +26,16 @@ object Keys {
   val DataDirectory = RootAgentNamespace("data.dir")
   val SleepMs = RootAgentNamespace("sleeptime")
   val InitialDelayMs = RootAgentNamespace("initialdelay.ms")
+  val BatchSize = RootAgentNamespace("batch.size")
+  val Parallelism = RootAgentNamespace("parallelism")
+  val ReconcileIntervalMs = RootAgentNamespace("reconcile.interval.ms")
   val TransportType = RootAgentNamespace("transport.type")
   val BalboaHttpUrl = RootAgentNamespace("balboa.http.url")
   val BalboaHttpTimeoutMs = RootAgentNamespace("balboa.http.timeout.ms")
   val BalboaHttpMaxRetryWaitMs = RootAgentNamespace("balboa.http.max.retry.wait.ms")
+  val BalboaHttpBatchSize = RootAgentNamespace("balboa.http.batch.size")
+  val BalboaHttpLingerMs = RootAgentNamespace("balboa.http.linger.ms")
+  val BalboaHttpMaxInFlight = RootAgentNamespace("balboa.http.max.in.flight")
 
   val BackupDir = RootEmergencyDirNamespace("backup.dir")
 
@@ -3,7 +3,7 @@ package com.socrata.balboa.metrics.data
 import java.io.IOException
 import java.util.Date
 
-import com.socrata.balboa.metrics.{Metrics, Timeslice}
+import com.socrata.balboa.metrics.{MetricName, Metrics, Timeslice}
 import com.socrata.balboa.metrics.WatchDog.WatchDogListener
 
 trait DataStore extends WatchDogListener {
@@ -14,14 +14,21 @@ trait DataStore extends WatchDogListener {
     def checkHealth(): Unit
 
     /**
-     * Retrieve an iterator that contains all the entity ids that the pattern
-     * string matches. You probably don't want to use this, because it's
-     * terribly slow and possibly dangerous.
+     * Retrieve an iterator that contains all the entity ids that start with
+     * the pattern string.
      */
     // TODO: @Deprecated ?
     @throws[IOException]
     def entities(pattern: String): Iterator[String]
 
+    /**
+     * Retrieve an iterator that contains the entity ids that start with the
+     * pattern string and sort strictly after `after`, in ascending order.
+     * Used to resume a listing where a previous page left off.
+     */
+    @throws[IOException]
+    def entities(pattern: String, after: String): Iterator[String]
+
     /**
      * Retrieve an iterator that encompasses all entity ids for which there are
      * metrics being tracked. Generally speaking, this query is likely to be
@@ -32,6 +39,13 @@ trait DataStore extends WatchDogListener {
     @throws[IOException]
     def entities(): Iterator[String]
 
+    /**
+     * Retrieve the catalog of metric names recorded for an entity, ordered
+     * by name, without reading any of the metrics themselves.
+     */
+    @throws[IOException]
+    def metricNames(entityId: String): Iterator[MetricName]
+
     /**
      * Return a list of metrics for a period of timeslices over an arbitrary
      * date range, chronologically ascending.
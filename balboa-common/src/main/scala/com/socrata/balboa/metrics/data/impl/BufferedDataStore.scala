@@ -3,7 +3,7 @@ package com.socrata.balboa.metrics.data.impl
 import java.io.IOException
 import java.util.Date
 
-import com.socrata.balboa.metrics.{Metrics, Timeslice}
+import com.socrata.balboa.metrics.{MetricName, Metrics, Timeslice}
 import com.socrata.balboa.metrics.data.{DataStore, Period}
 import org.slf4j.{Logger, LoggerFactory}
 
@@ -50,6 +50,7 @@ class BufferedDataStore(underlying: DataStore,
           log.error("Unable to flush buffered metrics at regular heartbeat. This is bad.", e)
       }
     }
+    underlying.heartbeat()
   }
 
   @throws[IOException]
@@ -93,6 +94,8 @@ class BufferedDataStore(underlying: DataStore,
 
   override def entities(): Iterator[String] = underlying.entities()
   override def entities(pattern: String): Iterator[String] = underlying.entities(pattern)
+  override def entities(pattern: String, after: String): Iterator[String] = underlying.entities(pattern, after)
+  override def metricNames(entityId: String): Iterator[MetricName] = underlying.metricNames(entityId)
   override def slices(entityId: String, period: Period, start: Date, end: Date): Iterator[Timeslice] =
     underlying.slices(entityId, period, start, end)
   override def find(entityId: String, period: Period, start: Date): Iterator[Metrics] =
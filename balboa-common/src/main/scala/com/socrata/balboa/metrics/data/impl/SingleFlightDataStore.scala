@@ -0,0 +1,93 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.util.Date
+import java.util.concurrent.{CompletableFuture, ConcurrentHashMap, ExecutionException}
+
+import com.socrata.balboa.metrics.data.{DataStore, Period}
+import com.socrata.balboa.metrics.{MetricName, Metrics, Timeslice}
+import org.slf4j.{Logger, LoggerFactory}
+
+/**
+ * Coalesces identical concurrent reads into a single fetch from the
+ * underlying datastore.
+ *
+ * The first caller for a given query performs the fetch; every caller that
+ * asks for the same query while that fetch is in flight waits for it and
+ * receives the same result. Nothing is cached once the fetch completes.
+ *
+ * Metrics and Timeslices are mutable and callers merge into them freely, so
+ * every caller receives its own deep copy of the shared result.
+ */
+class SingleFlightDataStore(underlying: DataStore) extends DataStoreImpl {
+
+  val log: Logger = LoggerFactory.getLogger(classOf[SingleFlightDataStore])
+
+  private case class Query(kind: String, entityId: String, period: Option[Period], start: Long, end: Long)
+
+  private val metricsInFlight = new ConcurrentHashMap[Query, CompletableFuture[List[Metrics]]]
+  private val slicesInFlight = new ConcurrentHashMap[Query, CompletableFuture[List[Timeslice]]]
+
+  @throws[Exception]
+  override def checkHealth(): Unit = underlying.checkHealth()
+
+  override def heartbeat(): Unit = underlying.heartbeat()
+
+  override def onStop(): Unit = underlying.onStop()
+
+  override def entities(): Iterator[String] = underlying.entities()
+
+  override def entities(pattern: String): Iterator[String] = underlying.entities(pattern)
+
+  override def entities(pattern: String, after: String): Iterator[String] = underlying.entities(pattern, after)
+
+  override def metricNames(entityId: String): Iterator[MetricName] = underlying.metricNames(entityId)
+
+  override def slices(entityId: String, period: Period, start: Date, end: Date): Iterator[Timeslice] =
+    coalesce(slicesInFlight, Query("slices", entityId, Some(period), start.getTime, end.getTime))(
+      underlying.slices(entityId, period, start, end)).map(SingleFlightDataStore.copySlice).iterator
+
+  override def find(entityId: String, period: Period, date: Date): Iterator[Metrics] =
+    coalesce(metricsInFlight, Query("find-date", entityId, Some(period), date.getTime, date.getTime))(
+      underlying.find(entityId, period, date)).map(_.copy()).iterator
+
+  override def find(entityId: String, period: Period, start: Date, end: Date): Iterator[Metrics] =
+    coalesce(metricsInFlight, Query("find-period", entityId, Some(period), start.getTime, end.getTime))(
+      underlying.find(entityId, period, start, end)).map(_.copy()).iterator
+
+  override def find(entityId: String, start: Date, end: Date): Iterator[Metrics] =
+    coalesce(metricsInFlight, Query("find-range", entityId, None, start.getTime, end.getTime))(
+      underlying.find(entityId, start, end)).map(_.copy()).iterator
+
+  override def persist(entityId: String, timestamp: Long, metrics: Metrics): Unit =
+    underlying.persist(entityId, timestamp, metrics)
+
+  private def coalesce[T](inFlight: ConcurrentHashMap[Query, CompletableFuture[List[T]]], query: Query)
+                         (fetch: => Iterator[T]): List[T] = {
+    val mine = new CompletableFuture[List[T]]
+    val leader = Option(inFlight.putIfAbsent(query, mine))
+
+    leader match {
+      case Some(_) =>
+        log.debug(s"Joining in-flight fetch for $query")
+      case None =>
+        try {
+          mine.complete(fetch.toList)
+        } catch {
+          case e: Throwable => mine.completeExceptionally(e)
+        } finally {
+          inFlight.remove(query, mine)
+        }
+    }
+
+    try {
+      leader.getOrElse(mine).get()
+    } catch {
+      case e: ExecutionException => throw e.getCause
+    }
+  }
+}
+
+object SingleFlightDataStore {
+  def copySlice(slice: Timeslice): Timeslice =
+    new Timeslice(slice.getStart, slice.getEnd, Option(slice.getMetrics).map(_.copy()).orNull)
+}
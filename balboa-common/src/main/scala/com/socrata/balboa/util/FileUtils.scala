@@ -15,13 +15,16 @@ object FileUtils {
 
   val IMMUTABLE_FILE_EXTENSION = ".completed"
 
+  val CHECKPOINT_FILE_EXTENSION = ".checkpoint"
+
   // scalastyle:on field.name
 
   val isBalboaDataFile = new FileFilter() {
     override def accept(file: File): Boolean = file match {
       case _ if file.isDirectory => false
       case _ if isBalboaImmutableFile.accept(file) => true
-      case _ if !(isBalboaBrokenFile.accept(file) || isBalboaLockFile.accept(file)) => true
+      case _ if !(isBalboaBrokenFile.accept(file) || isBalboaLockFile.accept(file) ||
+        isBalboaCheckpointFile.accept(file)) => true
       case _ => false
     }
   }
@@ -32,16 +35,30 @@ object FileUtils {
 
   val isBalboaImmutableFile: FileFilter = isFileEndingWith(IMMUTABLE_FILE_EXTENSION)
 
+  val isBalboaCheckpointFile: FileFilter = isFileEndingWith(CHECKPOINT_FILE_EXTENSION)
+
   val isDirectory = new FileFilter() {
     override def accept(file: File): Boolean = file.isDirectory
   }
 
   def isFileEndingWith(suffix: String): FileFilter = {
     new FileFilter {
-      override def accept(file: File): Boolean = file.isFile && file.getName.toLowerCase.endsWith(suffix)
+      override def accept(file: File): Boolean = file.isFile && hasExtension(file.getName, suffix)
     }
   }
 
+  /**
+    * @return Whether the file name `name` ends with `suffix`, ignoring case.
+    */
+  def hasExtension(name: String, suffix: String): Boolean = name.toLowerCase.endsWith(suffix)
+
+  /**
+    * [[isBalboaDataFile]] for the name of a file that is known not to be a directory, which saves looking it up.
+    */
+  def isBalboaDataFileName(name: String): Boolean = hasExtension(name, IMMUTABLE_FILE_EXTENSION) ||
+    !(hasExtension(name, BROKEN_FILE_EXTENSION) || hasExtension(name, LOCK_FILE_EXTENSION) ||
+      hasExtension(name, CHECKPOINT_FILE_EXTENSION))
+
   def getBalboaDataFilesAtRoot(dir: File): Set[File] = Set(dir.listFiles(isBalboaDataFile):_*)
 
   /**
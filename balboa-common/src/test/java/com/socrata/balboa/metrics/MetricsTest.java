@@ -21,6 +21,19 @@ public class MetricsTest
         Assert.assertEquals(2, m1.get("hello").getValue());
     }
 
+    @Test
+    public void testCopySharesNoMetric() throws Exception
+    {
+        Metrics original = new Metrics();
+        original.put("hello", new Metric(Metric.RecordType.AGGREGATE, 1));
+
+        Metrics copied = original.copy();
+        copied.merge(original);
+
+        Assert.assertEquals(2, copied.get("hello").getValue());
+        Assert.assertEquals(1, original.get("hello").getValue());
+    }
+
     @Test
     public void testMergeToThird() throws Exception
     {
@@ -126,4 +139,26 @@ public class MetricsTest
 
         Assert.assertEquals(2, m1.get("hello").getValue());
     }
+
+    @Test
+    public void testTop() throws Exception
+    {
+        Metrics m = new Metrics();
+        m.put("a", new Metric(Metric.RecordType.AGGREGATE, 5));
+        m.put("b", new Metric(Metric.RecordType.AGGREGATE, 50));
+        m.put("c", new Metric(Metric.RecordType.ABSOLUTE, 20));
+        m.put("d", new Metric(Metric.RecordType.AGGREGATE, 20));
+        m.put("skipped", new Metric(Metric.RecordType.AGGREGATE, 1000));
+
+        java.util.List<java.util.Map.Entry<String, Metric>> top = m.top(3, "[a-d]");
+
+        Assert.assertEquals(3, top.size());
+        Assert.assertEquals("b", top.get(0).getKey());
+        Assert.assertEquals("c", top.get(1).getKey());
+        Assert.assertEquals("d", top.get(2).getKey());
+
+        Assert.assertEquals(5, m.top(10, null).size());
+        Assert.assertEquals("skipped", m.top(1, null).get(0).getKey());
+        Assert.assertTrue(m.top(0, null).isEmpty());
+    }
 }
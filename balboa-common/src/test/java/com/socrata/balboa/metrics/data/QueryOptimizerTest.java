@@ -275,4 +275,99 @@ public class QueryOptimizerTest
         Set<DateRange> years = result.get(Period.YEARLY);
         Assert.assertTrue(years.contains(ys));
     }
+
+    @Test
+    public void testDownsampleKeepsRequestedPeriodWhenItFits() throws Exception
+    {
+        Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        cal.set(2010, 1, 1, 0, 0, 0);
+        Date start = cal.getTime();
+
+        cal.set(2010, 1, 2, 0, 0, 0);
+        Date end = cal.getTime();
+
+        QueryOptimizer o = new QueryOptimizer(periods);
+        Assert.assertEquals(Period.HOURLY, o.downsample(Period.HOURLY, start, end, 100));
+    }
+
+    @Test
+    public void testDownsampleChoosesFinestPeriodThatFits() throws Exception
+    {
+        Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        cal.set(2010, 0, 1, 0, 0, 0);
+        Date start = cal.getTime();
+
+        cal.set(2010, 11, 31, 23, 0, 0);
+        Date end = cal.getTime();
+
+        QueryOptimizer o = new QueryOptimizer(periods);
+        Assert.assertEquals(Period.DAILY, o.downsample(Period.HOURLY, start, end, 400));
+        Assert.assertEquals(Period.MONTHLY, o.downsample(Period.HOURLY, start, end, 100));
+        // Nothing fits, so the least granular tier is as close as we get.
+        Assert.assertEquals(Period.YEARLY, o.downsample(Period.HOURLY, start, end, 0));
+    }
+
+    @Test
+    public void testCountSlicesAgreesWithToDates() throws Exception
+    {
+        Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        cal.set(1969, 11, 30, 23, 59, 58);
+        cal.set(Calendar.MILLISECOND, 999);
+        Date start = cal.getTime();
+
+        List<Date> ends = new ArrayList<>();
+        ends.add(start);
+        for (int field : new int[] {Calendar.SECOND, Calendar.MINUTE, Calendar.HOUR_OF_DAY, Calendar.DATE,
+                Calendar.MONTH, Calendar.YEAR}) {
+            cal.add(field, 7);
+            ends.add(cal.getTime());
+        }
+
+        for (Period period : Period.values()) {
+            if (period == Period.REALTIME) {
+                continue;
+            }
+            for (Date end : ends) {
+                long count = QueryOptimizer.countSlices(period, start, end);
+                // Walking years of seconds would take too long; the shorter ranges cover the same boundaries.
+                if (count <= 100000) {
+                    Assert.assertEquals(period + " to " + end, new DateRange(start, end).toDates(period).size(), count);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testExpiredTiersAreServedFromCoarserOnes() throws Exception
+    {
+        Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        cal.set(2010, 0, 1, 1, 50, 0);
+        Date start = cal.getTime();
+
+        cal.set(2010, 1, 27, 5, 55, 0);
+        Date end = cal.getTime();
+
+        cal.set(2010, 2, 1, 0, 0, 0);
+        long now = cal.getTimeInMillis();
+
+        Map<Period, Long> retention = new HashMap<>();
+        retention.put(Period.HOURLY, 7 * 24 * 60 * 60 * 1000L);
+        QueryOptimizer o = new QueryOptimizer(periods, retention, now);
+        Map<Period, Set<DateRange>> result = o.optimalSlices(start, end);
+
+        // The hours at the start of the range have expired, so the whole of
+        // January comes from the monthly tier.
+        cal.set(2010, 1, 27, 0, 0, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        Assert.assertEquals(1, result.get(Period.HOURLY).size());
+        Assert.assertEquals(cal.getTime(), result.get(Period.HOURLY).iterator().next().start);
+
+        cal.set(2010, 0, 1, 0, 0, 0);
+        Date january = cal.getTime();
+        Assert.assertEquals(1, result.get(Period.MONTHLY).size());
+        Assert.assertEquals(DateRange.create(Period.MONTHLY, january), result.get(Period.MONTHLY).iterator().next());
+
+        Assert.assertEquals(Period.DAILY, o.unexpired(Period.HOURLY, start));
+        Assert.assertEquals(Period.HOURLY, o.unexpired(Period.HOURLY, end));
+    }
 }
@@ -1,6 +1,7 @@
 package com.socrata.balboa.metrics.data.impl;
 
 import com.socrata.balboa.metrics.Metric;
+import com.socrata.balboa.metrics.MetricName;
 import com.socrata.balboa.metrics.Metrics;
 import com.socrata.balboa.metrics.Timeslice;
 import com.socrata.balboa.metrics.data.DataStore;
@@ -36,7 +37,9 @@ public class BufferedDataStoreTest {
         public void heartbeat() {}
         public void ensureStarted() {}
         public Iterator<String> entities(String pattern) throws IOException { throw new UnsupportedOperationException(); }
+        public Iterator<String> entities(String pattern, String after) throws IOException { throw new UnsupportedOperationException(); }
         public Iterator<String> entities() throws IOException { throw new UnsupportedOperationException(); }
+        public Iterator<MetricName> metricNames(String entityId) throws IOException { throw new UnsupportedOperationException(); }
         public Iterator<Timeslice> slices(String entityId, Period period, Date start, Date end) throws IOException { throw new UnsupportedOperationException(); }
         public Iterator<Metrics> find(String entityId, Period period, Date date) throws IOException { throw new UnsupportedOperationException(); }
         public Iterator<Metrics> find(String entityId, Period period, Date start, Date end) throws IOException { throw new UnsupportedOperationException(); }
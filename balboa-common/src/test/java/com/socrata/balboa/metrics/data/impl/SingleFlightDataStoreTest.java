@@ -0,0 +1,100 @@
+package com.socrata.balboa.metrics.data.impl;
+
+import com.socrata.balboa.metrics.Metric;
+import com.socrata.balboa.metrics.MetricName;
+import com.socrata.balboa.metrics.Metrics;
+import com.socrata.balboa.metrics.Timeslice;
+import com.socrata.balboa.metrics.data.DataStore;
+import com.socrata.balboa.metrics.data.Period;
+import org.junit.Test;
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class SingleFlightDataStoreTest {
+
+    class BlockingDataStore implements DataStore {
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        public Iterator<Metrics> find(String entityId, Date start, Date end) throws IOException {
+            fetches.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            Metrics metrics = new Metrics();
+            metrics.put("views", new Metric(Metric.RecordType.AGGREGATE, 1));
+            return JavaConversions.asScalaIterator(Collections.singletonList(metrics).iterator());
+        }
+
+        public void persist(String entityId, long timestamp, Metrics metrics) {}
+        public void checkHealth() {}
+        public void onStart() {}
+        public void onStop() {}
+        public void heartbeat() {}
+        public void ensureStarted() {}
+        public Iterator<String> entities(String pattern) throws IOException { throw new UnsupportedOperationException(); }
+        public Iterator<String> entities(String pattern, String after) throws IOException { throw new UnsupportedOperationException(); }
+        public Iterator<String> entities() throws IOException { throw new UnsupportedOperationException(); }
+        public Iterator<MetricName> metricNames(String entityId) throws IOException { throw new UnsupportedOperationException(); }
+        public Iterator<Timeslice> slices(String entityId, Period period, Date start, Date end) throws IOException { throw new UnsupportedOperationException(); }
+        public Iterator<Metrics> find(String entityId, Period period, Date date) throws IOException { throw new UnsupportedOperationException(); }
+        public Iterator<Metrics> find(String entityId, Period period, Date start, Date end) throws IOException { throw new UnsupportedOperationException(); }
+    }
+
+    @Test
+    public void testConcurrentIdenticalQueriesShareOneFetch() throws Exception {
+        final BlockingDataStore underlying = new BlockingDataStore();
+        final SingleFlightDataStore ds = new SingleFlightDataStore(underlying);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+
+        Callable<Metrics> query = new Callable<Metrics>() {
+            public Metrics call() throws Exception {
+                return ds.find("entity", new Date(0), new Date(1000)).next();
+            }
+        };
+
+        try {
+            Future<Metrics> first = pool.submit(query);
+            // Wait for the leader to reach the underlying store before the follower asks.
+            while (underlying.fetches.get() == 0) {
+                Thread.sleep(1);
+            }
+            Future<Metrics> second = pool.submit(query);
+            Thread.sleep(50);
+            underlying.release.countDown();
+
+            Metrics a = first.get(5, TimeUnit.SECONDS);
+            Metrics b = second.get(5, TimeUnit.SECONDS);
+
+            assertEquals(1, underlying.fetches.get());
+            assertEquals(a, b);
+            // Each caller gets its own copy to merge into.
+            assertNotSame(a.get("views"), b.get("views"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSequentialQueriesAreNotCached() throws Exception {
+        BlockingDataStore underlying = new BlockingDataStore();
+        underlying.release.countDown();
+        SingleFlightDataStore ds = new SingleFlightDataStore(underlying);
+
+        ds.find("entity", new Date(0), new Date(1000)).next();
+        ds.find("entity", new Date(0), new Date(1000)).next();
+
+        assertEquals(2, underlying.fetches.get());
+    }
+}
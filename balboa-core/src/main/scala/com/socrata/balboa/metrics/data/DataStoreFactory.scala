@@ -29,21 +29,37 @@ object DefaultDataStoreFactory extends DataStoreFactory {
   def get(conf: Config): DataStore = {
     lazy val datastore: String = conf.getString("balboa.datastore")
     lazy val bufferGranularity: Long = conf.getLong("buffer.granularity")
+    lazy val singleFlight: Boolean = conf.hasPath("balboa.singleflight") && conf.getBoolean("balboa.singleflight")
+    lazy val rollupGranularity: Long = if (conf.hasPath("rollup.granularity")) conf.getLong("rollup.granularity") else 0
+    lazy val rollupMaxBuckets: Int =
+      if (conf.hasPath("rollup.max.buckets")) conf.getInt("rollup.max.buckets") else RollupDataStore.MaxBufferedBuckets
+    lazy val rollupBackground: Boolean = conf.hasPath("rollup.background") && conf.getBoolean("rollup.background")
 
-    datastore match {
+    def cassandra: DataStore = {
+      val query = new CassandraQueryImpl(CassandraUtil.initializeContext(conf), SupportedPeriods.retention(conf))
+      val store = new CassandraDataStore(query, finestTierOnly = rollupBackground)
+      if (rollupGranularity > 0 && !rollupBackground) {
+        new RollupDataStore(store, rollupGranularity = rollupGranularity, maxBufferedBuckets = rollupMaxBuckets)
+      } else {
+        store
+      }
+    }
+
+    val store = datastore match {
       case "buffered-cassandra" =>
         new BufferedDataStore(
-          new BadIdeasDataStore(
-            new CassandraDataStore(
-              new CassandraQueryImpl(
-                CassandraUtil.initializeContext(conf)))), bufferGranularity = bufferGranularity)
+          new BadIdeasDataStore(cassandra), bufferGranularity = bufferGranularity)
       case "cassandra" =>
+        new BadIdeasDataStore(cassandra)
+      case "memory" =>
         new BadIdeasDataStore(
-          new CassandraDataStore(
-            new CassandraQueryImpl(
-              CassandraUtil.initializeContext(conf))))
+          new InMemoryDataStore(SupportedPeriods.supportedPeriods(conf)))
+      case "embedded" =>
+        new BadIdeasDataStore(EmbeddedDataStore(conf))
       case _ =>
         throw new ConfigurationException("Unknown datastore '" + datastore + "'.")
     }
+
+    if (singleFlight) new SingleFlightDataStore(store) else store
   }
 }
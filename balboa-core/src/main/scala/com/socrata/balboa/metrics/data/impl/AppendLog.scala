@@ -0,0 +1,87 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.io.{Closeable, File}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption.{APPEND, CREATE, READ, WRITE}
+import java.util.zip.CRC32
+
+/**
+ * An append-only file of length-prefixed, checksummed records.
+ *
+ * Records are handed to the operating system as they are appended, so they
+ * survive the process dying but not the machine; call sync to force them to
+ * disk.
+ */
+class AppendLog(val file: File) extends Closeable {
+
+  private val channel = FileChannel.open(file.toPath, CREATE, WRITE, APPEND)
+  @volatile private var written = channel.size()
+
+  def append(record: Array[Byte]): Unit = {
+    val buffer = ByteBuffer.allocate(AppendLog.HeaderBytes + record.length)
+    buffer.putInt(record.length).putInt(AppendLog.checksum(record, 0, record.length)).put(record).flip()
+    synchronized {
+      while (buffer.hasRemaining) {
+        written += channel.write(buffer)
+      }
+    }
+  }
+
+  /**
+   * Number of bytes in the log.
+   */
+  def size: Long = written
+
+  def sync(): Unit = channel.force(false)
+
+  def close(): Unit = channel.close()
+}
+
+object AppendLog {
+  val HeaderBytes = 8
+
+  /**
+   * Hands every intact record of the log to f, in order, and stops at the
+   * first one that is truncated or fails its checksum, which is where a
+   * crash in the middle of an append leaves the log.
+   *
+   * @return the number of records read.
+   */
+  def replay(file: File)(f: ByteBuffer => Unit): Int = {
+    val channel = FileChannel.open(file.toPath, READ)
+    try {
+      val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+      var records = 0
+      var intact = true
+      while (intact && buffer.remaining >= HeaderBytes) {
+        val length = buffer.getInt()
+        val crc = buffer.getInt()
+        if (length < 0 || length > buffer.remaining) {
+          intact = false
+        } else {
+          val record = buffer.slice()
+          record.limit(length)
+          val bytes = new Array[Byte](length)
+          record.duplicate().get(bytes)
+          if (checksum(bytes, 0, length) != crc) {
+            intact = false
+          } else {
+            f(record)
+            records += 1
+            buffer.position(buffer.position + length)
+          }
+        }
+      }
+      records
+    } finally {
+      channel.close()
+    }
+  }
+
+  private def checksum(bytes: Array[Byte], offset: Int, length: Int): Int = {
+    val crc = new CRC32()
+    crc.update(bytes, offset, length)
+    crc.getValue.toInt
+  }
+}
@@ -2,7 +2,7 @@ package com.socrata.balboa.metrics.data.impl
 
 import java.{util => ju}
 
-import com.socrata.balboa.metrics.{Metrics, Timeslice}
+import com.socrata.balboa.metrics.{MetricName, Metrics, Timeslice}
 import com.socrata.balboa.metrics.data.{DataStore, Period}
 import com.typesafe.scalalogging.StrictLogging
 
@@ -24,11 +24,17 @@ class BadIdeasDataStore(child:DataStore) extends DataStoreImpl with StrictLoggin
     child.entities(pattern)
   }
 
+  def entities(pattern: String, after: String): Iterator[String] =
+    child.entities(pattern, after)
+
   def entities(): Iterator[String] = {
     logger error "Getting all the entities from balboa is a slow, dangerous thing. Please do not do this regularly."
     child.entities()
   }
 
+  def metricNames(entityId: String): Iterator[MetricName] =
+    child.metricNames(entityId)
+
   def slices(entityId: String, period: Period, start: ju.Date, end: ju.Date): Iterator[Timeslice] =
     child.slices(entityId, period, start, end)
 
@@ -59,4 +65,8 @@ class BadIdeasDataStore(child:DataStore) extends DataStoreImpl with StrictLoggin
     }
     child.persist(entityId, timestamp, metrics)
   }
+
+  override def heartbeat(): Unit = child.heartbeat()
+
+  override def onStop(): Unit = child.onStop()
 }
@@ -4,7 +4,7 @@ import java.{util => ju}
 
 import com.socrata.balboa.metrics.Metric.RecordType
 import com.socrata.balboa.metrics.data.{DateRange, Period, QueryOptimizer}
-import com.socrata.balboa.metrics.{Metric, Metrics, Timeslice}
+import com.socrata.balboa.metrics.{Metric, MetricName, Metrics, Timeslice}
 import com.typesafe.scalalogging.StrictLogging
 
 import scala.collection.JavaConverters._
@@ -12,11 +12,25 @@ import scala.collection.JavaConverters._
 /**
  * DataStore Implementation for Cassandra.
  */
-class CassandraDataStore(queryImpl:CassandraQuery = new CassandraQueryImpl(CassandraUtil.initializeContext()))
+class CassandraDataStore(queryImpl:CassandraQuery = new CassandraQueryImpl(CassandraUtil.initializeContext()),
+                         finestTierOnly: Boolean = false,
+                         registeredCacheSize: Int = CassandraDataStore.RegisteredCacheSize,
+                         cataloguedCacheSize: Int = CassandraDataStore.CataloguedCacheSize)
   extends DataStoreImpl with StrictLogging {
+  import CassandraDataStore.RegistryPeriod
 
   private val timeSvc = new TimeService()
   private val supportedPeriods = CassandraUtil.periods
+  private val retention = CassandraUtil.retention.map({ case (period, kept) => period -> java.lang.Long.valueOf(kept) })
+
+  /**
+   * registered maps the most recently persisted entities to the latest
+   * bucket this process registered them in, and catalogued the most recently
+   * persisted (entity, metric name) pairs to the earliest and latest. Those
+   * that are forgotten are simply registered again.
+   */
+  private val registered = new LruCache[String, Long](registeredCacheSize)
+  private val catalogued = new LruCache[(String, String), (Long, Long)](cataloguedCacheSize)
 
   @throws(classOf[Exception])
   override def checkHealth(): Unit = {
@@ -24,33 +38,24 @@ class CassandraDataStore(queryImpl:CassandraQuery = new CassandraQueryImpl(Cassa
   }
 
   /**
-   * Retrieve an iterator that contains all the entity ids that the pattern
-   * string matches. Do not use this outside the admin tool.
+   * Retrieve an iterator over every registered entity id starting with the
+   * pattern string, in ascending order. Entities are registered by persist,
+   * so ids that have not received metrics since the registry was introduced
+   * are not listed until RegistryBackfill has run.
    */
-  def entities(pattern: String): Iterator[String] = {
-    // Yes. This does what you think it does. Admin should only use this. It's nasty stuff.
-    // It iterates through all entity ids in both the aggregate and absolute column families
-    // of the leastGranular tier, returning them only if they match the filter and have not
-    // been seen before (HashSet ent).
-    val ent = collection.mutable.HashSet[String]()
-    val period = Period.leastGranular(supportedPeriods)
-    RecordType.values().flatMap(
-      queryImpl.getAllEntityIds(_,period)
-          .filter(_.contains(pattern))
-          .filter(x => !ent.contains(x) && ent.add(x))
-    ).iterator
-  }
+  def entities(pattern: String): Iterator[String] = queryImpl.getEntityIds(pattern, None)
+
+  def entities(pattern: String, after: String): Iterator[String] = queryImpl.getEntityIds(pattern, Some(after))
 
   /**
-   * Retrieve an iterator that encompasses all entity ids for which there are
-   * metrics being tracked. Generally speaking, this query is likely to be
-   * very expensive and you probably don't want to use it unless you know
-   * what you're doing.
+   * Retrieve an iterator over every registered entity id, in ascending order.
    */
   def entities: Iterator[String] = {
     entities("")
   }
 
+  def metricNames(entityId: String): Iterator[MetricName] = queryImpl.getMetricNames(entityId)
+
   def getValidGranularity(period: Period): Period = {
     var requestPeriod = Option(period)
     while (requestPeriod.isDefined && !supportedPeriods.contains(requestPeriod.get)) {
@@ -75,12 +80,15 @@ class CassandraDataStore(queryImpl:CassandraQuery = new CassandraQueryImpl(Cassa
    * from the next most granular bin which is supported. The resulting TimeSlice
    * will be fixed to the bounds of the requested period and the metrics within
    * each supported bin will be aggregated to the requested bin.
+   *
+   * If the tier has already expired at start (see balboa.retention), the
+   * slices are those of the next less granular tier that has not.
    */
   def slices(entityId: String, period:Period, start: ju.Date, end: ju.Date): Iterator[Timeslice] = {
-    val requestPeriod = getValidGranularity(period)
+    val requestPeriod = optimizer.unexpired(getValidGranularity(period), start)
     val dates = new DateRange(start, end).toDates(requestPeriod)
     val timeSlice = CassandraUtil.sliceIterator(queryImpl, entityId, requestPeriod, dates.asScala.toList)
-    if (requestPeriod != period) {
+    if (requestPeriod.compareTo(period) > 0) {
       CassandraUtil.rollupSliceIterator(period, timeSlice)
     } else {
       timeSlice
@@ -134,7 +142,7 @@ class CassandraDataStore(queryImpl:CassandraQuery = new CassandraQueryImpl(Cassa
    */
   def find(entityId: String, start: ju.Date, end: ju.Date): Iterator[Metrics] = {
     val range:DateRange = new DateRange(start, end)
-    val optimalSlices = new QueryOptimizer(supportedPeriods).optimalSlices(range.start, range.end).asScala
+    val optimalSlices = optimizer.optimalSlices(range.start, range.end).asScala
     val query = {
       for {
         (period, ranges) <- optimalSlices.toSeq
@@ -147,11 +155,27 @@ class CassandraDataStore(queryImpl:CassandraQuery = new CassandraQueryImpl(Cassa
     CassandraUtil.metricsIterator(queryImpl, entityId, query)
   }
 
+  private def optimizer: QueryOptimizer =
+    new QueryOptimizer(supportedPeriods, retention.asJava, timeSvc.currentTimeMillis())
+
+  /**
+   * The tiers persist writes to, from least to most granular.
+   */
+  val tiers: List[Period] = CassandraUtil.tiers
+
   /**
    * Save a set of metrics. The data store is responsible for making sure the
-   * persist applies correctly to all supported tiers.
+   * persist applies correctly to all supported tiers. With finestTierOnly,
+   * only the most granular tier is written and the others are left to the
+   * RollupJob.
+   */
+  def persist(entityId: String, timestamp: Long, metrics: Metrics): Unit =
+    persist(entityId, timestamp, metrics, if (finestTierOnly) tiers.takeRight(1) else tiers)
+
+  /**
+   * Save a set of metrics to some of the tiers only.
    */
-  def persist(entityId: String, timestamp: Long, metrics: Metrics): Unit = {
+  def persist(entityId: String, timestamp: Long, metrics: Metrics, periods: Seq[Period]): Unit = {
     // Sort the metrics into aggregates/absolutes
     val absolutes = scala.collection.mutable.HashMap[String, Metric]()
     val aggregates = scala.collection.mutable.HashMap[String, Metric]()
@@ -163,23 +187,62 @@ class CassandraDataStore(queryImpl:CassandraQuery = new CassandraQueryImpl(Cassa
         }
     }
     val start = timeSvc.currentTimeMillis()
+    // Register before writing any metrics: counter increments are not
+    // idempotent, so a failure here must leave the persist safe to retry.
+    val registryBucket = DateRange.create(RegistryPeriod, new ju.Date(timestamp)).start
+    register(entityId, registryBucket)
+    catalog(entityId, registryBucket, (absolutes.keys ++ aggregates.keys).filter(_ != ""))
     // increment/store metrics in each period
-    var period:Option[Period] = Option(CassandraUtil.leastGranular)
-    while (period.exists(_ != Period.REALTIME))
-    {
-      val range:DateRange = DateRange.create(period.get, new ju.Date(timestamp))
-      queryImpl.persist(entityId, range.start, period.get, aggregates, absolutes)
-      // Skip to the next largest period which we are configured
-      // to use.
-      period = period.flatMap(p => Option(p.moreGranular))
-      while (period.exists(!supportedPeriods.contains(_))) {
-        period = period.flatMap(p => Option(p.moreGranular))
-      }
+    periods.foreach { period =>
+      val range:DateRange = DateRange.create(period, new ju.Date(timestamp))
+      queryImpl.persist(entityId, range.start, period, aggregates, absolutes)
     }
     val elapsedTime = timeSvc.currentTimeMillis() - start
     logger.info(
       s"Persisted entity: $entityId with ${absolutes.size} absolute" +
-        s" and ${aggregates.size} aggregated metrics - took ${elapsedTime}ms")
+        s" and ${aggregates.size} aggregated metrics to ${periods.size} tiers - took ${elapsedTime}ms")
+  }
+
+  private def register(entityId: String, bucket: ju.Date): Unit = {
+    if (registered.get(entityId).forall(_ < bucket.getTime)) {
+      queryImpl.registerEntity(entityId, bucket)
+      registered.put(entityId, bucket.getTime)
+    }
+  }
+
+  private def catalog(entityId: String, bucket: ju.Date, names: Iterable[String]): Unit = {
+    val time = bucket.getTime
+    val stale = names.map(name => name -> catalogued.get((entityId, name)))
+      .filter(_._2.forall({ case (first, last) => time < first || time > last })).toList
+    if (stale.nonEmpty) {
+      // Names this process has not seen, or has forgotten, may be first and
+      // last sightings; the catalog keeps whichever bucket is earliest and
+      // latest.
+      val firstSightings = stale.filter(_._2.forall(_._1 > time)).map(_._1)
+      val lastSightings = stale.filter(_._2.forall(_._2 < time)).map(_._1)
+      queryImpl.registerMetricNames(entityId, bucket, firstSightings, lastSightings)
+      stale.foreach { case (name, seen) =>
+        catalogued.put((entityId, name), seen.fold((time, time)) { case (first, last) =>
+          (math.min(first, time), math.max(last, time))
+        })
+      }
+    }
   }
 
 }
+
+object CassandraDataStore {
+  /**
+   * Entities and their metric names are registered at most once per bucket
+   * of this period.
+   */
+  val RegistryPeriod: Period = Period.DAILY
+
+  /**
+   * How many entities, and (entity, metric name) pairs, a store remembers
+   * registering. Past that, the least recently persisted are registered
+   * again when they next receive metrics.
+   */
+  val RegisteredCacheSize: Int = 100000
+  val CataloguedCacheSize: Int = 1000000
+}
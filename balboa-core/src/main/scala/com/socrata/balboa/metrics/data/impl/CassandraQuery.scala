@@ -4,7 +4,7 @@ import java.{util => ju}
 
 import com.socrata.balboa.metrics.Metric.RecordType
 import com.socrata.balboa.metrics.data.Period
-import com.socrata.balboa.metrics.{Metric, Metrics}
+import com.socrata.balboa.metrics.{Metric, MetricName, Metrics}
 
 import scala.{collection => sc}
 
@@ -15,10 +15,66 @@ trait CassandraQuery {
   @throws(classOf[Exception])
   def checkHealth(): Unit
 
-  def getAllEntityIds(recordType:RecordType, period:Period):Iterator[String]
+  /**
+   * Record in the entity registry that entityId received metrics in the
+   * bucket starting at the given date. The registry keeps the latest bucket
+   * each entity was registered in, so registering an earlier one, say for
+   * late metrics, leaves it as it is.
+   */
+  def registerEntity(entityId:String, bucket:ju.Date): Unit
+
+  /**
+   * Page through the entity registry, returning every registered entity id
+   * that starts with prefix, and sorts after `after` if given, in ascending
+   * order.
+   */
+  def getEntityIds(prefix:String, after:Option[String]):Iterator[String]
+
+  /**
+   * Page through one shard of the entity registry, returning every entity id
+   * in it with the start of the latest bucket it was registered in, in
+   * ascending order of entity id.
+   */
+  def getRegistrations(shard:Int):Iterator[(String, Long)]
+
+  /**
+   * Page through the rows of one tier, returning the entity id and bucket
+   * start of each, in no particular order. This reads every partition of the
+   * table, so it is only meant for one-off maintenance like RegistryBackfill.
+   */
+  def getTierBuckets(period:Period, recordType:RecordType):Iterator[(String, Long)]
+
+  /**
+   * The time up to which the named job is done for the entities in a
+   * registry shard, or None if it has never run.
+   */
+  def getCheckpoint(job:String, shard:Int):Option[Long]
+
+  def setCheckpoint(job:String, shard:Int, through:Long): Unit
+
+  /**
+   * Record in the metric name catalog that names were recorded for entityId
+   * in the bucket starting at the given date: as the first-seen bucket of
+   * firstSightings, unless the catalog has an earlier one, and as the
+   * last-seen bucket of lastSightings.
+   */
+  def registerMetricNames(entityId:String,
+                          bucket:ju.Date,
+                          firstSightings:sc.Iterable[String],
+                          lastSightings:sc.Iterable[String]): Unit
+
+  /**
+   * The metric name catalog of entityId, ordered by name.
+   */
+  def getMetricNames(entityId:String):Iterator[MetricName]
 
   def fetch(entityKey:String, period:Period, bucket:ju.Date):Metrics
 
+  /**
+   * Delete the absolutes and aggregates of entityId in one bucket of period.
+   */
+  def deleteBucket(entityId:String, period:Period, bucket:ju.Date): Unit
+
   def persist(entityId:String,
               bucket:ju.Date,
               period:Period,
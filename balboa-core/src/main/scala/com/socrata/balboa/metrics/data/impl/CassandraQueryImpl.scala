@@ -4,24 +4,30 @@ import java.io.IOException
 import java.{util => ju}
 
 import com.datastax.driver.core.querybuilder.QueryBuilder
-import com.datastax.driver.core.{BatchStatement, ConsistencyLevel, Row}
+import com.datastax.driver.core.{BatchStatement, ConsistencyLevel, RegularStatement, Row}
 import com.socrata.balboa.metrics.Metric.RecordType
 import com.socrata.balboa.metrics.data.impl.CassandraUtil.DatastaxContext
-import com.socrata.balboa.metrics.data.{BalboaFastFailCheck, Period}
-import com.socrata.balboa.metrics.{Metric, Metrics}
+import com.socrata.balboa.metrics.data.{BalboaFastFailCheck, DateRange, Period}
+import com.socrata.balboa.metrics.{Metric, MetricName, Metrics}
 import com.typesafe.scalalogging.StrictLogging
 
 import scala.{collection => sc}
-import scala.collection.JavaConverters.iterableAsScalaIterableConverter
+import scala.collection.JavaConverters.{asScalaIteratorConverter, iterableAsScalaIterableConverter}
 
 /**
  * Query Implementation
  */
-class CassandraQueryImpl(context: DatastaxContext) extends CassandraQuery with StrictLogging {
+class CassandraQueryImpl(context: DatastaxContext,
+                         retention: Map[Period, Long] = CassandraUtil.retention,
+                         timeService: TimeService = new TimeService)
+  extends CassandraQuery with StrictLogging {
 
   val Key = "key"
   val ColumnOne = "column1"
   val Value = "value"
+  val ColumnTwo = "column2"
+  val FirstSeen = "first"
+  val LastSeen = "last"
 
   @throws(classOf[Exception])
   def checkHealth(): Unit = {
@@ -42,35 +48,235 @@ class CassandraQueryImpl(context: DatastaxContext) extends CassandraQuery with S
     ret
   }
 
-  def removeTimestamp(key: String): String = key.replaceFirst("-[0-9]+$", "")
+  def deleteBucket(entityId: String, period: Period, bucket: ju.Date): Unit = {
+    val entityKey = CassandraUtil.createEntityKey(entityId, bucket.getTime)
+    fastfail.proceedOrThrow()
+    try {
+      List(RecordType.ABSOLUTE, RecordType.AGGREGATE).foreach { recordType =>
+        context.executeUpdate(QueryBuilder.delete()
+          .from(CassandraUtil.getColumnFamily(period, recordType))
+          .where(QueryBuilder.eq(Key, entityKey)))
+      }
+      fastfail.markSuccess()
+    } catch {
+      case e: Exception =>
+        val wrapped = new IOException("Error deleting row " + entityKey + " from " + period, e)
+        fastfail.markFailure(wrapped)
+        throw wrapped
+    }
+  }
+
+  def registerEntity(entityId: String, bucket: ju.Date): Unit = {
+    fastfail.proceedOrThrow()
+    try {
+      // Written at the bucket's time rather than the wall clock, so that of
+      // two registrations the later bucket wins whichever arrives last.
+      val qb = QueryBuilder.insertInto(CassandraUtil.EntitiesTable)
+        .value(Key, CassandraUtil.entityShard(entityId))
+        .value(ColumnOne, entityId)
+        .value(Value, bucket.getTime)
+        .using(QueryBuilder.timestamp(bucket.getTime * 1000))
+
+      context.executeUpdate(qb)
+      fastfail.markSuccess()
+    } catch {
+      case e: Exception =>
+        val wrapped = new IOException("Error registering entity " + entityId, e)
+        fastfail.markFailure(wrapped)
+        throw wrapped
+    }
+  }
 
-  val MaxEntityIds = 100
   /**
-   * Returns all the row keys in a tier as an iterator with many, many duplicate strings. This is very slow. Do
-   * not use this outside the admin tool.
+   * Queries every shard of the entity registry for ids in the range covered
+   * by prefix and merges the (individually sorted) shards. The driver fetches
+   * further pages of each shard lazily as the iterator is consumed.
    */
-  def getAllEntityIds(recordType: RecordType, period: Period): Iterator[String] = {
+  def getEntityIds(prefix: String, after: Option[String]): Iterator[String] = {
     fastfail.proceedOrThrow()
     try {
+      val shards = (0 until CassandraUtil.EntityShards).map { shard =>
+        val qb = QueryBuilder.select(ColumnOne)
+          .from(context.keyspace, CassandraUtil.EntitiesTable)
+          .where(QueryBuilder.eq(Key, shard))
+        after.filter(_ >= prefix) match {
+          case Some(last) => qb.and(QueryBuilder.gt(ColumnOne, last))
+          case None if prefix.nonEmpty => qb.and(QueryBuilder.gte(ColumnOne, prefix))
+          case None =>
+        }
+        if (prefix.nonEmpty) {
+          qb.and(QueryBuilder.lt(ColumnOne, CassandraUtil.prefixEnd(prefix)))
+        }
+        qb.setConsistencyLevel(ConsistencyLevel.ONE).setFetchSize(EntityPageSize)
+
+        context.getSession.execute(qb).iterator().asScala.map(_.getString(ColumnOne))
+      }
 
+      fastfail.markSuccess()
+      CassandraUtil.mergeSorted(shards)
+    } catch {
+      case e: Exception =>
+        val wrapped = new IOException("Error reading entity registry for prefix '" + prefix + "' after " + after, e)
+        fastfail.markFailure(wrapped)
+        throw wrapped
+    }
+  }
+
+  val EntityPageSize = 1000
+
+  def getRegistrations(shard: Int): Iterator[(String, Long)] = {
+    fastfail.proceedOrThrow()
+    try {
+      val qb = QueryBuilder.select(ColumnOne, Value)
+        .from(context.keyspace, CassandraUtil.EntitiesTable)
+        .where(QueryBuilder.eq(Key, shard))
+        .setConsistencyLevel(ConsistencyLevel.ONE).setFetchSize(EntityPageSize)
+
+      val retVal = context.getSession.execute(qb).iterator().asScala
+        .map(row => (row.getString(ColumnOne), row.getLong(Value)))
+      fastfail.markSuccess()
+      retVal
+    } catch {
+      case e: Exception =>
+        val wrapped = new IOException("Error reading shard " + shard + " of the entity registry", e)
+        fastfail.markFailure(wrapped)
+        throw wrapped
+    }
+  }
+
+  def getTierBuckets(period: Period, recordType: RecordType): Iterator[(String, Long)] = {
+    fastfail.proceedOrThrow()
+    try {
       val qb = QueryBuilder.select(Key).distinct()
         .from(context.keyspace, CassandraUtil.getColumnFamily(period, recordType))
-        .limit(MaxEntityIds)
-        .setConsistencyLevel(ConsistencyLevel.ONE)
+        .setConsistencyLevel(ConsistencyLevel.ONE).setFetchSize(EntityPageSize)
 
-      val rows = context.execute(qb)
-      val retVal = rows.asScala.map(_.getString(Key)).map(removeTimestamp).iterator
+      val retVal = context.getSession.execute(qb).iterator().asScala
+        .map(row => CassandraUtil.parseEntityKey(row.getString(Key)))
+      fastfail.markSuccess()
+      retVal
+    } catch {
+      case e: Exception =>
+        val wrapped = new IOException("Error reading the row keys of " + recordType + ":" + period, e)
+        fastfail.markFailure(wrapped)
+        throw wrapped
+    }
+  }
+
+  def getCheckpoint(job: String, shard: Int): Option[Long] = {
+    fastfail.proceedOrThrow()
+    try {
+      val qb = QueryBuilder.select(Value)
+        .from(context.keyspace, CassandraUtil.CheckpointsTable)
+        .where(QueryBuilder.eq(Key, job)).and(QueryBuilder.eq(ColumnOne, shard))
+        .setConsistencyLevel(ConsistencyLevel.QUORUM)
 
+      val retVal = context.execute(qb).asScala.headOption.map(_.getLong(Value))
       fastfail.markSuccess()
       retVal
     } catch {
       case e: Exception =>
-        val wrapped = new IOException("Error reading entityIds Query:" + recordType + ":" + period + "Cassandra", e)
+        val wrapped = new IOException("Error reading the " + job + " checkpoint of shard " + shard, e)
         fastfail.markFailure(wrapped)
         throw wrapped
     }
   }
 
+  def setCheckpoint(job: String, shard: Int, through: Long): Unit = {
+    fastfail.proceedOrThrow()
+    try {
+      val qb = QueryBuilder.insertInto(CassandraUtil.CheckpointsTable)
+        .value(Key, job)
+        .value(ColumnOne, shard)
+        .value(Value, through)
+        .setConsistencyLevel(ConsistencyLevel.QUORUM)
+
+      context.executeUpdate(qb)
+      fastfail.markSuccess()
+    } catch {
+      case e: Exception =>
+        val wrapped = new IOException("Error writing the " + job + " checkpoint of shard " + shard, e)
+        fastfail.markFailure(wrapped)
+        throw wrapped
+    }
+  }
+
+  def registerMetricNames(entityId: String,
+                          bucket: ju.Date,
+                          firstSightings: sc.Iterable[String],
+                          lastSightings: sc.Iterable[String]): Unit = {
+    fastfail.proceedOrThrow()
+    try {
+      // The first-seen entries are written with a timestamp that is higher
+      // the earlier the bucket, so that the earliest bucket wins however
+      // late it is written, without a conditional write.
+      val earliestWins = QueryBuilder.timestamp(Long.MaxValue / 1000 - bucket.getTime)
+      val firstSeen = firstSightings.iterator.map { name =>
+        QueryBuilder.insertInto(CassandraUtil.MetricNamesTable)
+          .value(Key, entityId).value(ColumnOne, name).value(ColumnTwo, FirstSeen).value(Value, bucket.getTime)
+          .using(earliestWins)
+      }
+      val lastSeen = lastSightings.iterator.map { name =>
+        QueryBuilder.insertInto(CassandraUtil.MetricNamesTable)
+          .value(Key, entityId).value(ColumnOne, name).value(ColumnTwo, LastSeen).value(Value, bucket.getTime)
+      }
+
+      // Every row shares the entity's partition, so an unlogged batch is a
+      // single write; they are bounded to keep each one small.
+      (firstSeen ++ lastSeen).grouped(CassandraQueryImpl.MetricNamesBatchSize).foreach { statements =>
+        val batch = new BatchStatement(BatchStatement.Type.UNLOGGED)
+        statements.foreach(statement => batch.add(statement))
+        context.executeUpdate(batch)
+      }
+
+      fastfail.markSuccess()
+    } catch {
+      case e: Exception =>
+        val wrapped = new IOException("Error cataloguing metric names of " + entityId, e)
+        fastfail.markFailure(wrapped)
+        throw wrapped
+    }
+  }
+
+  def getMetricNames(entityId: String): Iterator[MetricName] = {
+    fastfail.proceedOrThrow()
+    val rows = try {
+      val qb = QueryBuilder.select().all()
+        .from(context.keyspace, CassandraUtil.MetricNamesTable)
+        .where(QueryBuilder.eq(Key, entityId))
+        .setConsistencyLevel(ConsistencyLevel.ONE)
+
+      val retVal = context.getSession.execute(qb).iterator().asScala.buffered
+      fastfail.markSuccess()
+      retVal
+    } catch {
+      case e: Exception =>
+        val wrapped = new IOException("Error reading metric names of " + entityId, e)
+        fastfail.markFailure(wrapped)
+        throw wrapped
+    }
+
+    // Rows are clustered by name, so each name's first and last rows are adjacent.
+    new Iterator[MetricName] {
+      def hasNext: Boolean = rows.hasNext
+
+      def next(): MetricName = {
+        val name = rows.head.getString(ColumnOne)
+        val bucket = rows.head.getLong(Value)
+        val entry = new MetricName(name, bucket, bucket)
+        while (rows.hasNext && rows.head.getString(ColumnOne) == name) {
+          val row = rows.next()
+          row.getString(ColumnTwo) match {
+            case FirstSeen => entry.setFirstSeen(row.getLong(Value))
+            case LastSeen => entry.setLastSeen(row.getLong(Value))
+            case _ =>
+          }
+        }
+        entry
+      }
+    }
+  }
+
   def fetchColumnFamily(recordType: RecordType, entityKey: String, period: Period): Iterator[Row] = {
     fastfail.proceedOrThrow()
     try {
@@ -105,8 +311,17 @@ class CassandraQueryImpl(context: DatastaxContext) extends CassandraQuery with S
     fastfail.proceedOrThrow()
     val entityKeyWhere = QueryBuilder.eq(Key, entityKey)
 
+    // A bucket is kept for the retention of its period after its end. One
+    // that is already past it is not written at all, since counters cannot
+    // expire and would resurrect a bucket the RetentionSweep has deleted.
+    val ttl = retention.get(period)
+      .map(kept => (DateRange.create(period, bucket).end.getTime + kept - timeService.currentTimeMillis()) / 1000)
+    if (ttl.exists(_ <= 0)) {
+      logger.debug(s"Dropping metrics for $entityKey, which is past the retention of $period")
+    }
+
     for {
-      sameTypeRecords <- List(absolutes, aggregates).filter(_.nonEmpty)
+      sameTypeRecords <- List(absolutes, aggregates).filter(_.nonEmpty) if ttl.forall(_ > 0)
     } yield {
       // Must execute counter and non-counter separately, since counter batches
       // can only contain counter statements, and non-counter batches can only contain
@@ -135,9 +350,11 @@ class CassandraQueryImpl(context: DatastaxContext) extends CassandraQuery with S
         if (k != "") {
           v.getType match {
             case RecordType.ABSOLUTE =>
-              batchStatement.add(
-                QueryBuilder.insertInto(table)
-                  .value(Key, entityKey).value(ColumnOne, k).value(Value, v.getValue))
+              val insert = QueryBuilder.insertInto(table)
+                .value(Key, entityKey).value(ColumnOne, k).value(Value, v.getValue)
+              batchStatement.add(ttl.fold[RegularStatement](insert) { seconds =>
+                insert.using(QueryBuilder.ttl(math.min(seconds, Int.MaxValue).toInt))
+              })
             case RecordType.AGGREGATE =>
               batchStatement.add(
                 QueryBuilder.update(table)
@@ -166,3 +383,10 @@ class CassandraQueryImpl(context: DatastaxContext) extends CassandraQuery with S
 
   val fastfail: BalboaFastFailCheck = BalboaFastFailCheck.getInstance
 }
+
+object CassandraQueryImpl {
+  /**
+   * The most metric name catalog entries written in one batch.
+   */
+  val MetricNamesBatchSize = 100
+}
@@ -21,9 +21,20 @@ import scala.{collection => sc}
 object CassandraUtil extends StrictLogging {
   val conf = ConfigFactory.load()
   val periods = SupportedPeriods.getSupportedPeriodsJava(conf)
+  val retention: Map[Period, Long] = SupportedPeriods.retention(conf)
   val leastGranular: Period = Period.leastGranular(periods)
   val mostGranular: Period = Period.mostGranular(periods)
 
+  /**
+   * The tiers written to Cassandra, from least to most granular. Each tier
+   * covers a whole number of buckets of the next, more granular, one.
+   */
+  val tiers: List[Period] = {
+    val all = Iterator.iterate(Option(leastGranular))(_.flatMap(p => Option(p.moreGranular)))
+      .takeWhile(_.exists(_ != Period.REALTIME)).collect({ case Some(p) => p }).toList
+    all.filter(periods.contains(_))
+  }
+
   case class DatastaxContext(cluster: Cluster, _keyspace: String) {
 
     private var session: Option[Session] = None
@@ -131,6 +142,87 @@ object CassandraUtil extends StrictLogging {
 
   def createEntityKey(entityId:String, timestamp:Long): String = entityId + "-" + timestamp
 
+  /**
+   * The entity id and bucket start a row key was created from by
+   * createEntityKey.
+   */
+  def parseEntityKey(entityKey:String): (String, Long) = {
+    val separator = entityKey.lastIndexOf('-')
+    (entityKey.substring(0, separator), entityKey.substring(separator + 1).toLong)
+  }
+
+  /**
+   * The entity registry: one row per (shard, entity id) whose value is the
+   * start of the latest bucket in which the entity was registered.
+   */
+  val EntitiesTable = "entities"
+
+  /**
+   * Number of partitions the entity registry is spread over. Changing this
+   * orphans every registered entity.
+   */
+  val EntityShards = 16
+
+  /**
+   * The metric name catalog: for each entity (row key) and metric name, a
+   * "first" and a "last" column holding the start of the first and last
+   * bucket the name was recorded in.
+   */
+  val MetricNamesTable = "metric_names"
+
+  /**
+   * Progress of the jobs run over the entity registry: for each job (row
+   * key) and registry shard, the time up to which the job is done.
+   */
+  val CheckpointsTable = "job_checkpoints"
+
+  def entityShard(entityId: String): Int = (entityId.hashCode & Int.MaxValue) % EntityShards
+
+  /**
+   * The smallest string greater than every string starting with prefix, in
+   * the UTF-8 byte order Cassandra sorts text by.
+   */
+  def prefixEnd(prefix: String): String = prefix + new String(Character.toChars(Character.MAX_CODE_POINT))
+
+  /**
+   * Orders strings by code point, which is the UTF-8 byte order Cassandra
+   * sorts text by. String's own order compares UTF-16 code units, which
+   * puts characters outside the Basic Multilingual Plane before some that
+   * are inside it.
+   */
+  val Utf8Order: Ordering[String] = new Ordering[String] {
+    def compare(a: String, b: String): Int = {
+      var i = 0
+      while (i < a.length && i < b.length) {
+        val (ca, cb) = (a.codePointAt(i), b.codePointAt(i))
+        if (ca != cb) {
+          return Integer.compare(ca, cb) // scalastyle:ignore return
+        }
+        i += Character.charCount(ca)
+      }
+      Integer.compare(a.length - i, b.length - i)
+    }
+  }
+
+  /**
+   * Merges iterators individually sorted in [[Utf8Order]] into a single
+   * sorted iterator, holding only the head of each in memory.
+   */
+  def mergeSorted(iterators: sc.Seq[Iterator[String]]): Iterator[String] = new Iterator[String] {
+    private val heads = sc.mutable.PriorityQueue[BufferedIterator[String]]()(
+      Ordering.by[BufferedIterator[String], String](_.head)(Utf8Order).reverse)
+    iterators.map(_.buffered).filter(_.hasNext).foreach(heads.enqueue(_))
+
+    def hasNext: Boolean = heads.nonEmpty
+
+    def next(): String = {
+      val it = heads.dequeue()
+      val head = it.next()
+      if (it.hasNext) heads.enqueue(it)
+      head
+    }
+  }
+
   def initializeContext(): DatastaxContext = {
     initializeContext(ConfigFactory.load())
   }
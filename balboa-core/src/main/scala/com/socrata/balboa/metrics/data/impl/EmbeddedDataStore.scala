@@ -0,0 +1,452 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.io.{ByteArrayOutputStream, Closeable, DataOutputStream, File, IOException}
+import java.nio.ByteBuffer
+import java.nio.channels.{FileChannel, FileLock, OverlappingFileLockException}
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardOpenOption.{CREATE, WRITE}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.concurrent.{Executors, ThreadFactory, TimeUnit}
+import java.{util => ju}
+
+import com.socrata.balboa.metrics.Metric.RecordType
+import com.socrata.balboa.metrics.data.{DateRange, Period}
+import com.socrata.balboa.metrics.{Metric, Metrics}
+import com.typesafe.config.Config
+import com.typesafe.scalalogging.StrictLogging
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * DataStore implementation that keeps its tiers on local disk, so a single
+ * node can run balboa without a Cassandra cluster.
+ *
+ * The store is log structured. Every persist is appended to a write-ahead
+ * log and added to an in-memory MetricTiers. Every flushIntervalMs, or as
+ * soon as the log reaches flushBytes, those tiers are written out as one
+ * immutable EmbeddedSegment per tier and the log is deleted. Reads merge a
+ * tier's segments, oldest first, with whatever has not been written out
+ * yet. Once a tier has compactionSegments consecutive segments of similar
+ * size, the smallest such run is merged into one segment, so each persist is
+ * only rewritten a logarithmic number of times.
+ *
+ * Every segment records the latest log it holds the persists of, and logs a
+ * tier's segments already hold are not replayed into that tier, as a crash
+ * between writing out a log and deleting it would otherwise count its
+ * aggregates twice.
+ *
+ * The entity registry and metric name catalog are held in memory and backed
+ * by their own append-only log, which is rewritten whenever the store is
+ * opened.
+ *
+ * Only one process may open a directory at a time. Its layout is:
+ * {{{
+ * lock
+ * catalog.log
+ * <sequence>.wal
+ * <period>/<sequence>.seg
+ * }}}
+ */
+class EmbeddedDataStore(directory: File,
+                        periods: List[Period],
+                        flushIntervalMs: Long,
+                        flushBytes: Long,
+                        compactionSegments: Int) extends TieredDataStore with Closeable with StrictLogging {
+
+  protected val supportedPeriods: List[Period] = periods.filter(_ != Period.REALTIME)
+  protected val catalog = new EntityCatalog()
+
+  // Entities and their metric names are registered in the same buckets as
+  // CassandraDataStore registers them in.
+  import CassandraDataStore.RegistryPeriod
+
+  /**
+   * Everything a read has to merge: the tiers still being written to, the
+   * tiers being written out, if any, and each tier's segments oldest first.
+   * Replaced as a whole, so a read never sees a bucket twice or not at all.
+   */
+  private case class State(memtable: MetricTiers,
+                           flushing: Option[MetricTiers],
+                           segments: Map[Period, Vector[EmbeddedSegment]])
+
+  /**
+   * Persists hold the read lock while writing to the log and the memtable,
+   * so that swapping both under the write lock never loses a persist.
+   */
+  private val swapLock = new ReentrantReadWriteLock()
+  @volatile private var state: State = _
+  @volatile private var log: AppendLog = _
+  private var catalogLog: AppendLog = _
+  private var lock: FileLock = _
+
+  /**
+   * The logs holding what is being written out, deleted once it is.
+   */
+  private var flushingLogs: Seq[File] = Nil
+
+  private val sequence = new AtomicLong()
+  private val flushRequested = new AtomicBoolean()
+  @volatile private var failure: Option[Throwable] = None
+
+  private val executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+    def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, s"embedded-datastore-${directory.getName}")
+      thread.setDaemon(true)
+      thread
+    }
+  })
+
+  open()
+  executor.scheduleWithFixedDelay(new Runnable {
+    def run(): Unit = flushQuietly()
+  }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS)
+
+  @throws[Exception]
+  def checkHealth(): Unit = failure.foreach(e => throw e)
+
+  protected def fetch(entityId: String, period: Period, bucket: Long): Option[BucketCells] = {
+    val current = state
+    val stored = current.segments(period).iterator.flatMap(_.get(entityId, bucket)) ++
+      (current.flushing.iterator ++ Iterator(current.memtable)).flatMap(_.get(entityId, period, bucket))
+    stored.reduceOption(_ mergeNewer _)
+  }
+
+  protected def stored(entityId: String, period: Period, from: Long, to: Long): Iterator[(Long, BucketCells)] = {
+    val current = state
+    val sources = current.segments(period).map(_.range(entityId, from, to)) ++
+      (current.flushing.toSeq :+ current.memtable).map(_.range(entityId, period, from, to))
+    EmbeddedSegment.merge(sources.map(_.map({ case (start, cells) => (entityId, start, cells) })))
+      .map({ case (_, start, cells) => (start, cells) })
+  }
+
+  def persist(entityId: String, timestamp: Long, metrics: Metrics): Unit = {
+    // Register before writing any metrics, as CassandraDataStore does.
+    val bucket = DateRange.create(RegistryPeriod, new ju.Date(timestamp)).start.getTime
+    catalog.register(entityId, bucket, metrics.keySet.asScala.filter(_ != "")).foreach { name =>
+      catalogLog.append(EmbeddedDataStore.encodeName(entityId, name, bucket, bucket))
+    }
+
+    val record = EmbeddedDataStore.encodePersist(entityId, timestamp, metrics)
+    swapLock.readLock().lock()
+    try {
+      log.append(record)
+      state.memtable.add(entityId, timestamp, metrics)
+    } finally {
+      swapLock.readLock().unlock()
+    }
+
+    if (log.size >= flushBytes && flushRequested.compareAndSet(false, true)) {
+      executor.execute(new Runnable {
+        def run(): Unit = flushQuietly()
+      })
+    }
+  }
+
+  /**
+   * Writes everything persisted so far out to segments, then compacts every
+   * tier that has too many.
+   */
+  @throws[IOException]
+  def flush(): Unit = synchronized {
+    flushRequested.set(false)
+    // A frozen memtable is only left behind by a flush that failed.
+    if (state.flushing.isEmpty) freeze()
+    state.flushing.foreach(writeOut)
+    supportedPeriods.foreach(compact)
+  }
+
+  /**
+   * Flushes and releases the directory. The store cannot be used afterwards.
+   */
+  def close(): Unit = synchronized {
+    executor.shutdown()
+    try {
+      flush()
+    } finally {
+      log.close()
+      catalogLog.close()
+      lock.release()
+      lock.channel.close()
+    }
+  }
+
+  /**
+   * Releases the directory without flushing, as if the process had died.
+   */
+  private[impl] def abandon(): Unit = synchronized {
+    executor.shutdownNow()
+    log.close()
+    catalogLog.close()
+    lock.release()
+    lock.channel.close()
+  }
+
+  private def flushQuietly(): Unit = try {
+    flush()
+    failure = None
+  } catch {
+    case e: Exception =>
+      logger.error(s"Unable to flush the embedded datastore in $directory; retrying at the next flush", e)
+      failure = Some(e)
+  }
+
+  private def freeze(): Unit = {
+    swapLock.writeLock().lock()
+    try {
+      if (!state.memtable.isEmpty) {
+        val frozenLog = log
+        log = new AppendLog(logFile(sequence.incrementAndGet()))
+        state = state.copy(memtable = new MetricTiers(supportedPeriods), flushing = Some(state.memtable))
+        frozenLog.close()
+        flushingLogs = Seq(frozenLog.file)
+      }
+    } finally {
+      swapLock.writeLock().unlock()
+    }
+  }
+
+  private def writeOut(frozen: MetricTiers): Unit = {
+    val logsThrough = flushingLogs.map(EmbeddedDataStore.sequenceOf(_, EmbeddedDataStore.LogSuffix)).fold(0L)(math.max)
+    val written = mutable.ArrayBuffer[(Period, EmbeddedSegment)]()
+    try {
+      supportedPeriods.foreach { period =>
+        val entries = frozen.entries(period)
+        if (entries.hasNext) {
+          val segmentSequence = sequence.incrementAndGet()
+          written += ((period, EmbeddedSegment.write(
+            tierDirectory(period), segmentSequence, (segmentSequence, segmentSequence), logsThrough, entries)))
+        }
+      }
+    } catch {
+      case e: IOException =>
+        written.foreach(_._2.file.delete())
+        throw e
+    }
+
+    state = state.copy(flushing = None, segments = state.segments.map { case (period, segments) =>
+      period -> (segments ++ written.collect({ case (p, segment) if p == period => segment }))
+    })
+    flushingLogs.foreach(_.delete())
+    flushingLogs = Nil
+    logger.info(s"Wrote ${written.size} segments to $directory")
+  }
+
+  /**
+   * Merges runs of similarly sized segments until the tier has none left,
+   * so a large segment is only rewritten once enough others have grown to
+   * its size.
+   */
+  private def compact(period: Period): Unit = {
+    var run = compactionRun(state.segments(period))
+    while (run.isDefined) {
+      val (from, until) = run.get
+      val segments = state.segments(period)
+      val inputs = segments.slice(from, until)
+      val compacted = EmbeddedSegment.write(tierDirectory(period), sequence.incrementAndGet(),
+        (inputs.head.replaces._1, inputs.last.replaces._2), inputs.map(_.logsThrough).max,
+        EmbeddedSegment.merge(inputs.map(_.entries)))
+      state = state.copy(segments = state.segments.updated(period, segments.patch(from, Seq(compacted), inputs.size)))
+      // Readers still holding the inputs keep their mappings after the files are gone.
+      inputs.foreach(_.file.delete())
+      logger.info(s"Compacted ${inputs.size} $period segments in $directory")
+      run = compactionRun(state.segments(period))
+    }
+  }
+
+  /**
+   * The bounds of the run of at least compactionSegments consecutive
+   * segments, none more than SizeRatio times the size of another, with the
+   * smallest average size. Only consecutive segments are merged, so that
+   * reads still merge every bucket from its oldest value to its newest.
+   */
+  private def compactionRun(segments: Vector[EmbeddedSegment]): Option[(Int, Int)] = {
+    val sizes = segments.map(segment => math.max(segment.size, EmbeddedDataStore.MinSegmentBytes))
+    val runs = sizes.indices.map { from =>
+      var until = from + 1
+      var smallest = sizes(from)
+      var largest = sizes(from)
+      while (until < sizes.size &&
+        math.max(largest, sizes(until)) <= EmbeddedDataStore.SizeRatio * math.min(smallest, sizes(until))) {
+        smallest = math.min(smallest, sizes(until))
+        largest = math.max(largest, sizes(until))
+        until += 1
+      }
+      (from, until)
+    }
+    runs.filter({ case (from, until) => until - from >= compactionSegments })
+      .sortBy({ case (from, until) => sizes.slice(from, until).sum / (until - from) })
+      .headOption
+  }
+
+  private def open(): Unit = {
+    directory.mkdirs()
+    val lockChannel = FileChannel.open(new File(directory, EmbeddedDataStore.LockFile).toPath, CREATE, WRITE)
+    // tryLock throws rather than returning null when this process holds the lock.
+    lock = try lockChannel.tryLock() catch { case _: OverlappingFileLockException => null }
+    if (lock == null) {
+      lockChannel.close()
+      throw new IOException(s"$directory is in use by another process")
+    }
+
+    val segments = supportedPeriods.map(period => period -> openSegments(tierDirectory(period))).toMap
+    val logs = directory.listFiles().filter(_.getName.endsWith(EmbeddedDataStore.LogSuffix))
+      .sortBy(file => EmbeddedDataStore.sequenceOf(file, EmbeddedDataStore.LogSuffix))
+    sequence.set((segments.values.flatten.map(_.sequence) ++
+      logs.map(EmbeddedDataStore.sequenceOf(_, EmbeddedDataStore.LogSuffix))).fold(0L)(math.max))
+
+    openCatalog()
+
+    // A log is only replayed into the tiers whose segments do not hold it yet.
+    val logsThrough = segments.map({ case (period, tier) => period -> tier.map(_.logsThrough).fold(0L)(math.max) })
+    val (replayed, written) = logs.partition { file =>
+      logsThrough.values.exists(_ < EmbeddedDataStore.sequenceOf(file, EmbeddedDataStore.LogSuffix))
+    }
+    written.foreach(_.delete())
+
+    val recovered = new MetricTiers(supportedPeriods)
+    replayed.foreach { file =>
+      val logSequence = EmbeddedDataStore.sequenceOf(file, EmbeddedDataStore.LogSuffix)
+      val tiers = supportedPeriods.filter(logsThrough(_) < logSequence)
+      val records = AppendLog.replay(file) { record =>
+        val (entityId, timestamp, metrics) = EmbeddedDataStore.decodePersist(record)
+        val date = new ju.Date(timestamp)
+        tiers.foreach { period =>
+          recovered.add(entityId, period, DateRange.create(period, date).start.getTime, metrics.asScala)
+        }
+      }
+      logger.info(s"Recovered $records persists from $file into ${tiers.mkString(", ")}")
+    }
+
+    log = new AppendLog(logFile(sequence.incrementAndGet()))
+    state = State(new MetricTiers(supportedPeriods), Some(recovered).filterNot(_.isEmpty), segments)
+    if (recovered.isEmpty) {
+      replayed.foreach(_.delete())
+    } else {
+      flushingLogs = replayed
+    }
+    flush()
+  }
+
+  /**
+   * Opens a tier's segments in the order of the flushes they replaced,
+   * deleting any that a compacted segment replaced and anything left behind
+   * by an interrupted write.
+   */
+  private def openSegments(tier: File): Vector[EmbeddedSegment] = {
+    tier.mkdirs()
+    tier.listFiles().filter(_.getName.endsWith(".tmp")).foreach(_.delete())
+    val segments = tier.listFiles().filter(_.getName.endsWith(EmbeddedSegment.Suffix))
+      .map(EmbeddedSegment.open).sortBy(_.replaces._1).toVector
+    val (replaced, live) = segments.partition(segment => segments.exists(_.supersedes(segment)))
+    replaced.foreach(_.file.delete())
+    live
+  }
+
+  /**
+   * Restores the catalog and rewrites its log with a single record per
+   * entity and metric name.
+   */
+  private def openCatalog(): Unit = {
+    val file = new File(directory, EmbeddedDataStore.CatalogFile)
+    if (file.exists) {
+      AppendLog.replay(file) { record =>
+        val (entityId, name, first, last) = EmbeddedDataStore.decodeName(record)
+        catalog.restore(entityId, name, first, last)
+      }
+    }
+
+    val rewritten = new File(directory, EmbeddedDataStore.CatalogFile + ".tmp")
+    rewritten.delete()
+    val snapshot = new AppendLog(rewritten)
+    try {
+      catalog.registrations("").foreach { case (entityId, bucket) =>
+        snapshot.append(EmbeddedDataStore.encodeName(entityId, "", bucket, bucket))
+        catalog.metricNames(entityId).foreach { name =>
+          snapshot.append(EmbeddedDataStore.encodeName(entityId, name.getName, name.getFirstSeen, name.getLastSeen))
+        }
+      }
+      snapshot.sync()
+    } finally {
+      snapshot.close()
+    }
+    Files.move(rewritten.toPath, file.toPath, ATOMIC_MOVE)
+    catalogLog = new AppendLog(file)
+  }
+
+  private def tierDirectory(period: Period): File = new File(directory, period.toString.toLowerCase)
+
+  private def logFile(logSequence: Long): File =
+    new File(directory, s"%020d${EmbeddedDataStore.LogSuffix}".format(logSequence))
+}
+
+object EmbeddedDataStore {
+  val LockFile = "lock"
+  val CatalogFile = "catalog.log"
+  val LogSuffix = ".wal"
+
+  /**
+   * Segments are compacted with others at most this many times their size.
+   */
+  val SizeRatio = 2
+
+  /**
+   * Segments smaller than this are all considered to be of similar size.
+   */
+  val MinSegmentBytes: Long = 1L << 20
+
+  def apply(conf: Config): EmbeddedDataStore = new EmbeddedDataStore(
+    new File(conf.getString("embedded.directory")),
+    SupportedPeriods.supportedPeriods(conf),
+    conf.getLong("embedded.flush.ms"),
+    conf.getBytes("embedded.flush.bytes"),
+    conf.getInt("embedded.compaction.segments"))
+
+  private def sequenceOf(file: File, suffix: String): Long = file.getName.stripSuffix(suffix).toLong
+
+  private def encodePersist(entityId: String, timestamp: Long, metrics: Metrics): Array[Byte] =
+    encode { out =>
+      EmbeddedSegment.writeString(out, entityId)
+      out.writeLong(timestamp)
+      out.writeInt(metrics.size)
+      metrics.asScala.foreach { case (name, metric) =>
+        EmbeddedSegment.writeString(out, name)
+        out.writeByte(metric.getType.ordinal)
+        out.writeLong(metric.getValue.longValue)
+      }
+    }
+
+  private def decodePersist(record: ByteBuffer): (String, Long, Metrics) = {
+    val entityId = EmbeddedSegment.readString(record)
+    val timestamp = record.getLong()
+    val count = record.getInt()
+    val metrics = new Metrics(count)
+    (0 until count).foreach { _ =>
+      val name = EmbeddedSegment.readString(record)
+      val recordType = RecordType.values()(record.get())
+      metrics.put(name, new Metric(recordType, record.getLong()))
+    }
+    (entityId, timestamp, metrics)
+  }
+
+  private def encodeName(entityId: String, name: String, first: Long, last: Long): Array[Byte] =
+    encode { out =>
+      EmbeddedSegment.writeString(out, entityId)
+      EmbeddedSegment.writeString(out, name)
+      out.writeLong(first)
+      out.writeLong(last)
+    }
+
+  private def decodeName(record: ByteBuffer): (String, String, Long, Long) =
+    (EmbeddedSegment.readString(record), EmbeddedSegment.readString(record), record.getLong(), record.getLong())
+
+  private def encode(write: DataOutputStream => Unit): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream()
+    val out = new DataOutputStream(bytes)
+    write(out)
+    out.flush()
+    bytes.toByteArray
+  }
+}
@@ -0,0 +1,294 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.io._
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.channels.FileChannel
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardOpenOption.READ
+import java.nio.file.Files
+import java.nio.{ByteBuffer, MappedByteBuffer}
+
+import scala.collection.mutable
+
+/**
+ * An immutable, memory-mapped segment file holding buckets of one tier,
+ * sorted by entity and then by bucket start.
+ *
+ * Every entry stores its absolutes and then its aggregates column by column:
+ * all the names, then all the values. A sparse index of every
+ * IndexInterval-th entry is kept in memory, so a lookup binary searches the
+ * index and scans at most IndexInterval entries of the mapped file.
+ *
+ * {{{
+ * entry:   length, entity, bucket start,
+ *          absolute count, absolute names, absolute values,
+ *          aggregate count, aggregate names, aggregate values
+ * index:   count, then entity, bucket start and offset of each indexed entry
+ * trailer: first and last flush replaced, last log covered, index offset, magic
+ * }}}
+ *
+ * A flush writes segments replacing only themselves, and compaction writes
+ * one segment replacing the flushes its consecutive inputs replaced, before
+ * deleting them. Segments are read in the order of their replaced ranges,
+ * and a segment is replaced by any newer one whose range holds its own.
+ *
+ * logsThrough is the sequence number of the latest write-ahead log whose
+ * persists the segment, or one of the segments it replaced, holds.
+ */
+class EmbeddedSegment private (val file: File,
+                               val sequence: Long,
+                               val replaces: (Long, Long),
+                               val logsThrough: Long,
+                               buffer: MappedByteBuffer,
+                               dataEnd: Int,
+                               indexEntities: Array[String],
+                               indexBuckets: Array[Long],
+                               indexOffsets: Array[Int]) {
+
+  /**
+   * Size of the segment file in bytes.
+   */
+  def size: Long = buffer.capacity
+
+  /**
+   * Whether this segment replaces other, holding every flush other holds.
+   */
+  def supersedes(other: EmbeddedSegment): Boolean = sequence > other.sequence &&
+    replaces._1 <= other.replaces._1 && other.replaces._2 <= replaces._2
+
+  def get(entityId: String, bucket: Long): Option[BucketCells] = {
+    val found = range(entityId, bucket, bucket)
+    if (found.hasNext) Some(found.next()._2) else None
+  }
+
+  /**
+   * The buckets of entityId starting between from and to inclusive.
+   */
+  def range(entityId: String, from: Long, to: Long): Iterator[(Long, BucketCells)] =
+    scan(seek(entityId, from))
+      .dropWhile({ case (entity, start, _) => EmbeddedSegment.compare(entity, start, entityId, from) < 0 })
+      .takeWhile({ case (entity, start, _) => entity == entityId && start <= to })
+      .map({ case (_, start, cells) => (start, cells.read()) })
+
+  /**
+   * Every entry of the segment, in order.
+   */
+  def entries: Iterator[(String, Long, BucketCells)] =
+    scan(0).map({ case (entity, start, cells) => (entity, start, cells.read()) })
+
+  /**
+   * Offset of the last indexed entry at or before the key.
+   */
+  private def seek(entityId: String, bucket: Long): Int = {
+    var low = 0
+    var high = indexEntities.length - 1
+    var found = 0
+    while (low <= high) {
+      val mid = (low + high) >>> 1
+      if (EmbeddedSegment.compare(indexEntities(mid), indexBuckets(mid), entityId, bucket) <= 0) {
+        found = indexOffsets(mid)
+        low = mid + 1
+      } else {
+        high = mid - 1
+      }
+    }
+    found
+  }
+
+  /**
+   * The keys of the entries from offset on; reading an entry's cells is
+   * deferred so entries that are skipped are never decoded.
+   */
+  private def scan(offset: Int): Iterator[EmbeddedSegment.Key] = new Iterator[EmbeddedSegment.Key] {
+    private val view = buffer.duplicate()
+    view.position(offset)
+
+    def hasNext: Boolean = view.position < dataEnd
+
+    def next(): EmbeddedSegment.Key = {
+      val length = view.getInt()
+      val end = view.position + length
+      val entity = EmbeddedSegment.readString(view)
+      val start = view.getLong()
+      val cells = view.slice()
+      cells.limit(end - view.position)
+      view.position(end)
+      (entity, start, new EmbeddedSegment.LazyCells(cells))
+    }
+  }
+}
+
+object EmbeddedSegment {
+  val Suffix = ".seg"
+  val IndexInterval = 64
+
+  private val Magic = 0x42414c42
+  private val TrailerBytes = 8 + 8 + 8 + 8 + 4
+
+  def sequenceOf(file: File): Long = file.getName.stripSuffix(Suffix).toLong
+
+  def fileFor(directory: File, sequence: Long): File = new File(directory, s"%020d$Suffix".format(sequence))
+
+  /**
+   * Writes entries, which must be sorted by entity and then bucket start,
+   * to a new segment and returns it. The segment only appears under its
+   * final name once it is complete and on disk.
+   */
+  @throws[IOException]
+  def write(directory: File,
+            sequence: Long,
+            replaces: (Long, Long),
+            logsThrough: Long,
+            entries: Iterator[(String, Long, BucketCells)]): EmbeddedSegment = {
+    val file = fileFor(directory, sequence)
+    val temporary = new File(directory, file.getName + ".tmp")
+    val stream = new FileOutputStream(temporary)
+    try {
+      val out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))
+      val index = mutable.ArrayBuffer[(String, Long, Int)]()
+      val entry = new ByteArrayOutputStream()
+      val entryOut = new DataOutputStream(entry)
+
+      entries.zipWithIndex.foreach { case ((entityId, start, cells), i) =>
+        if (i % IndexInterval == 0) index += ((entityId, start, out.size))
+        entry.reset()
+        writeString(entryOut, entityId)
+        entryOut.writeLong(start)
+        writeColumns(entryOut, cells.absolutes)
+        writeColumns(entryOut, cells.aggregates)
+        out.writeInt(entry.size)
+        entry.writeTo(out)
+      }
+
+      val indexOffset = out.size
+      out.writeInt(index.size)
+      index.foreach { case (entityId, start, offset) =>
+        writeString(out, entityId)
+        out.writeLong(start)
+        out.writeInt(offset)
+      }
+      out.writeLong(replaces._1)
+      out.writeLong(replaces._2)
+      out.writeLong(logsThrough)
+      out.writeLong(indexOffset)
+      out.writeInt(Magic)
+      out.flush()
+      stream.getFD.sync()
+    } finally {
+      stream.close()
+    }
+    Files.move(temporary.toPath, file.toPath, ATOMIC_MOVE)
+    open(file)
+  }
+
+  @throws[IOException]
+  def open(file: File): EmbeddedSegment = {
+    val channel = FileChannel.open(file.toPath, READ)
+    val buffer = try {
+      if (channel.size > Int.MaxValue) throw new IOException(s"Segment $file is larger than 2GB")
+      channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size)
+    } finally {
+      channel.close()
+    }
+
+    if (buffer.limit < TrailerBytes || buffer.getInt(buffer.limit - 4) != Magic) {
+      throw new IOException(s"$file is not a complete segment")
+    }
+    val trailer = buffer.limit - TrailerBytes
+    val replaces = (buffer.getLong(trailer), buffer.getLong(trailer + 8))
+    val logsThrough = buffer.getLong(trailer + 16)
+    val indexOffset = buffer.getLong(trailer + 24).toInt
+
+    val index = buffer.duplicate()
+    index.position(indexOffset)
+    val count = index.getInt()
+    val entities = new Array[String](count)
+    val buckets = new Array[Long](count)
+    val offsets = new Array[Int](count)
+    (0 until count).foreach { i =>
+      entities(i) = readString(index)
+      buckets(i) = index.getLong()
+      offsets(i) = index.getInt()
+    }
+
+    new EmbeddedSegment(file, sequenceOf(file), replaces, logsThrough, buffer, indexOffset, entities, buckets, offsets)
+  }
+
+  /**
+   * Merges entries of several segments, each sorted, into one sorted stream.
+   * Entries with the same key are merged from the first source to the
+   * last, so sources must be given oldest first.
+   */
+  def merge(sources: Seq[Iterator[(String, Long, BucketCells)]]): Iterator[(String, Long, BucketCells)] =
+    new Iterator[(String, Long, BucketCells)] {
+      private val heads = mutable.PriorityQueue[(BufferedIterator[(String, Long, BucketCells)], Int)]()(
+        new Ordering[(BufferedIterator[(String, Long, BucketCells)], Int)] {
+          def compare(a: (BufferedIterator[(String, Long, BucketCells)], Int),
+                      b: (BufferedIterator[(String, Long, BucketCells)], Int)): Int = {
+            val byKey = EmbeddedSegment.compare(a._1.head._1, a._1.head._2, b._1.head._1, b._1.head._2)
+            // PriorityQueue dequeues the greatest, so both orders are reversed.
+            if (byKey != 0) -byKey else b._2.compare(a._2)
+          }
+        })
+      sources.map(_.buffered).zipWithIndex.filter(_._1.hasNext).foreach(heads.enqueue(_))
+
+      def hasNext: Boolean = heads.nonEmpty
+
+      def next(): (String, Long, BucketCells) = {
+        val (entityId, start, cells) = advance()
+        while (heads.nonEmpty && heads.head._1.head._1 == entityId && heads.head._1.head._2 == start) {
+          cells.mergeNewer(advance()._3)
+        }
+        (entityId, start, cells)
+      }
+
+      private def advance(): (String, Long, BucketCells) = {
+        val (it, source) = heads.dequeue()
+        val entry = it.next()
+        if (it.hasNext) heads.enqueue((it, source))
+        entry
+      }
+    }
+
+  def compare(entityA: String, bucketA: Long, entityB: String, bucketB: Long): Int = {
+    val byEntity = entityA.compareTo(entityB)
+    if (byEntity != 0) byEntity else java.lang.Long.compare(bucketA, bucketB)
+  }
+
+  def writeString(out: DataOutput, s: String): Unit = {
+    val bytes = s.getBytes(UTF_8)
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+
+  def readString(buffer: ByteBuffer): String = {
+    val bytes = new Array[Byte](buffer.getInt())
+    buffer.get(bytes)
+    new String(bytes, UTF_8)
+  }
+
+  private def writeColumns(out: DataOutput, cells: collection.Map[String, Long]): Unit = {
+    val columns = cells.toSeq
+    out.writeInt(columns.size)
+    columns.foreach({ case (name, _) => writeString(out, name) })
+    columns.foreach({ case (_, value) => out.writeLong(value) })
+  }
+
+  private def readColumns(buffer: ByteBuffer): mutable.Map[String, Long] = {
+    val count = buffer.getInt()
+    val names = Array.fill(count)(readString(buffer))
+    val cells = new mutable.HashMap[String, Long]()
+    names.foreach(name => cells.put(name, buffer.getLong()))
+    cells
+  }
+
+  private type Key = (String, Long, LazyCells)
+
+  private class LazyCells(buffer: ByteBuffer) {
+    def read(): BucketCells = {
+      val view = buffer.duplicate()
+      val absolutes = readColumns(view)
+      new BucketCells(absolutes, readColumns(view))
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentSkipListMap}
+
+import com.socrata.balboa.metrics.MetricName
+
+import scala.collection.JavaConverters._
+
+/**
+ * The entity registry and metric name catalog, held in memory: every entity
+ * with the latest bucket it received metrics in, and for each entity the
+ * first and last bucket each of its metric names was recorded in.
+ */
+class EntityCatalog {
+
+  private val registry = new ConcurrentSkipListMap[String, java.lang.Long]()
+  private val catalog = new ConcurrentHashMap[String, ConcurrentSkipListMap[String, MetricName]]()
+
+  /**
+   * Records that entityId received the named metrics in the bucket starting
+   * at bucket.
+   *
+   * @return the names whose first or last bucket changed, with the empty
+   *         name standing for the entity itself.
+   */
+  def register(entityId: String, bucket: Long, names: Iterable[String]): Seq[String] =
+    (Iterator("") ++ names.iterator).filter(name => restore(entityId, name, bucket, bucket)).toList
+
+  /**
+   * Widens the first and last bucket recorded for the name to include first
+   * and last; the empty name stands for the entity itself.
+   *
+   * @return true if anything changed.
+   */
+  def restore(entityId: String, name: String, first: Long, last: Long): Boolean = {
+    if (name == "") {
+      Option(registry.putIfAbsent(entityId, last)) match {
+        case None => true
+        case Some(previous) if previous < last =>
+          registry.replace(entityId, previous, last) || restore(entityId, name, first, last)
+        case _ => false
+      }
+    } else {
+      var names = catalog.get(entityId)
+      if (names == null) {
+        catalog.putIfAbsent(entityId, new ConcurrentSkipListMap[String, MetricName]())
+        names = catalog.get(entityId)
+      }
+      Option(names.putIfAbsent(name, new MetricName(name, first, last))) match {
+        case None => true
+        case Some(entry) => entry.synchronized {
+          val changed = first < entry.getFirstSeen || last > entry.getLastSeen
+          entry.setFirstSeen(math.min(entry.getFirstSeen, first))
+          entry.setLastSeen(math.max(entry.getLastSeen, last))
+          changed
+        }
+      }
+    }
+  }
+
+  def entities(pattern: String): Iterator[String] =
+    registry.tailMap(pattern, true).keySet.asScala.iterator.takeWhile(_.startsWith(pattern))
+
+  def entities(pattern: String, after: String): Iterator[String] =
+    if (after < pattern) {
+      entities(pattern)
+    } else {
+      registry.tailMap(after, false).keySet.asScala.iterator.takeWhile(_.startsWith(pattern))
+    }
+
+  /**
+   * The latest bucket each entity starting with pattern received metrics in.
+   */
+  def registrations(pattern: String): Iterator[(String, Long)] =
+    registry.tailMap(pattern, true).asScala.iterator
+      .takeWhile(_._1.startsWith(pattern))
+      .map({ case (entityId, bucket) => (entityId, bucket.longValue) })
+
+  def metricNames(entityId: String): Iterator[MetricName] =
+    Option(catalog.get(entityId)).fold(Iterator.empty: Iterator[MetricName]) { names =>
+      names.values.asScala.iterator.map(name => name.synchronized {
+        new MetricName(name.getName, name.getFirstSeen, name.getLastSeen)
+      })
+    }
+}
@@ -0,0 +1,44 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.{util => ju}
+
+import com.socrata.balboa.metrics.Metrics
+import com.socrata.balboa.metrics.data.{DateRange, Period}
+import com.typesafe.config.ConfigFactory
+
+import scala.collection.JavaConverters._
+
+/**
+ * DataStore implementation that keeps every tier in memory, for tests,
+ * benchmarks and single-node deployments that can afford to lose their
+ * metrics on restart.
+ *
+ * Values are stored as longs, just as they are in Cassandra, and queries
+ * answer with the same shape of results CassandraDataStore does.
+ */
+class InMemoryDataStore(periods: List[Period] = SupportedPeriods.supportedPeriods(ConfigFactory.load()))
+  extends TieredDataStore {
+
+  protected val supportedPeriods: List[Period] = periods.filter(_ != Period.REALTIME)
+  protected val catalog = new EntityCatalog()
+
+  private val tiers = new MetricTiers(supportedPeriods)
+
+  // Entities and their metric names are registered in the same buckets as
+  // CassandraDataStore registers them in.
+  import CassandraDataStore.RegistryPeriod
+
+  def checkHealth(): Unit = {}
+
+  protected def fetch(entityId: String, period: Period, bucket: Long): Option[BucketCells] =
+    tiers.get(entityId, period, bucket)
+
+  protected def stored(entityId: String, period: Period, from: Long, to: Long): Iterator[(Long, BucketCells)] =
+    tiers.range(entityId, period, from, to)
+
+  def persist(entityId: String, timestamp: Long, metrics: Metrics): Unit = {
+    val bucket = DateRange.create(RegistryPeriod, new ju.Date(timestamp)).start.getTime
+    catalog.register(entityId, bucket, metrics.keySet.asScala.filter(_ != ""))
+    tiers.add(entityId, timestamp, metrics)
+  }
+}
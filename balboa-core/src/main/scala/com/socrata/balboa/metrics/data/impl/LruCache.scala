@@ -0,0 +1,21 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.{util => ju}
+
+/**
+ * A thread safe map of at most capacity entries, which forgets the least
+ * recently used entry to make room for a new one.
+ */
+class LruCache[K, V](capacity: Int) {
+  require(capacity > 0, "Capacity must be positive")
+
+  private val entries = new ju.LinkedHashMap[K, V](16, 0.75f, true) { // scalastyle:ignore
+    override def removeEldestEntry(eldest: ju.Map.Entry[K, V]): Boolean = size > capacity
+  }
+
+  def get(key: K): Option[V] = entries.synchronized { Option(entries.get(key)) }
+
+  def put(key: K, value: V): Unit = entries.synchronized { entries.put(key, value) }
+
+  def size: Int = entries.synchronized { entries.size }
+}
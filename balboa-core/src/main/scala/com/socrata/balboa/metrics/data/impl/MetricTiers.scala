@@ -0,0 +1,170 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.util.concurrent.atomic.{AtomicLong, LongAdder}
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentSkipListMap}
+import java.{util => ju}
+
+import com.socrata.balboa.metrics.Metric.RecordType
+import com.socrata.balboa.metrics.data.{DateRange, Period}
+import com.socrata.balboa.metrics.{Metric, Metrics}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * Every supported tier of metrics, held in memory. Each tier maps an entity
+ * to its buckets sorted by start time, and each bucket holds one primitive
+ * counter per metric, so concurrent adds never take a lock.
+ */
+class MetricTiers(val periods: List[Period]) {
+
+  private type Buckets = ConcurrentSkipListMap[java.lang.Long, MetricTiers.Bucket]
+  private val tiers: Map[Period, ConcurrentHashMap[String, Buckets]] =
+    periods.map(period => period -> new ConcurrentHashMap[String, Buckets]()).toMap
+
+  /**
+   * Adds the metrics to their bucket in every tier. Metrics with an empty
+   * name are dropped, as CassandraQueryImpl drops them.
+   */
+  def add(entityId: String, timestamp: Long, metrics: Metrics): Unit = {
+    val date = new ju.Date(timestamp)
+    periods.foreach { period =>
+      add(entityId, period, DateRange.create(period, date).start.getTime, metrics.asScala)
+    }
+  }
+
+  /**
+   * Adds the metrics to one bucket of one tier, the way CassandraQuery
+   * persists them.
+   */
+  def add(entityId: String, period: Period, bucket: Long, metrics: Iterable[(String, Metric)]): Unit = {
+    val cells = bucketFor(tiers(period), entityId, bucket)
+    metrics.foreach { case (name, metric) => if (name != "") cells.add(name, metric) }
+  }
+
+  def remove(entityId: String, period: Period, bucket: Long): Unit =
+    tiers.get(period).flatMap(tier => Option(tier.get(entityId))).foreach(_.remove(bucket))
+
+  def isEmpty: Boolean = tiers.values.forall(_.isEmpty)
+
+  def get(entityId: String, period: Period, bucket: Long): Option[BucketCells] = for {
+    tier <- tiers.get(period)
+    buckets <- Option(tier.get(entityId))
+    cells <- Option(buckets.get(bucket))
+  } yield cells.snapshot
+
+  /**
+   * The buckets of entityId in the tier that start between from and to
+   * inclusive, in ascending order.
+   */
+  def range(entityId: String, period: Period, from: Long, to: Long): Iterator[(Long, BucketCells)] = {
+    val buckets = tiers.get(period).flatMap(tier => Option(tier.get(entityId)))
+    buckets.fold(Iterator.empty: Iterator[(Long, BucketCells)]) { b =>
+      b.subMap(from, true, to, true).asScala.iterator.map({ case (start, cells) => (start.longValue, cells.snapshot) })
+    }
+  }
+
+  /**
+   * Every bucket of the tier, ordered by entity and then by start time.
+   */
+  def entries(period: Period): Iterator[(String, Long, BucketCells)] = {
+    val tier = tiers(period)
+    tier.keySet.asScala.toVector.sorted.iterator.flatMap { entityId =>
+      tier.get(entityId).asScala.iterator.map({ case (start, cells) => (entityId, start.longValue, cells.snapshot) })
+    }
+  }
+
+  private def bucketFor(tier: ConcurrentHashMap[String, Buckets], entityId: String, start: Long): MetricTiers.Bucket = {
+    var buckets = tier.get(entityId)
+    if (buckets == null) {
+      tier.putIfAbsent(entityId, new Buckets())
+      buckets = tier.get(entityId)
+    }
+    var bucket = buckets.get(start)
+    if (bucket == null) {
+      buckets.putIfAbsent(start, new MetricTiers.Bucket())
+      bucket = buckets.get(start)
+    }
+    bucket
+  }
+}
+
+object MetricTiers {
+
+  /**
+   * The metrics of one entity in one bucket of a tier. Aggregates are summed
+   * and absolutes overwritten without taking a lock.
+   */
+  private class Bucket {
+    private val aggregates = new ConcurrentHashMap[String, LongAdder]()
+    private val absolutes = new ConcurrentHashMap[String, AtomicLong]()
+
+    def add(name: String, metric: Metric): Unit = metric.getType match {
+      case RecordType.AGGREGATE =>
+        var counter = aggregates.get(name)
+        if (counter == null) {
+          aggregates.putIfAbsent(name, new LongAdder())
+          counter = aggregates.get(name)
+        }
+        counter.add(metric.getValue.longValue)
+      case RecordType.ABSOLUTE =>
+        var value = absolutes.get(name)
+        if (value == null) {
+          absolutes.putIfAbsent(name, new AtomicLong())
+          value = absolutes.get(name)
+        }
+        value.set(metric.getValue.longValue)
+    }
+
+    def snapshot: BucketCells = new BucketCells(
+      absolutes.asScala.map({ case (name, value) => name -> value.get }),
+      aggregates.asScala.map({ case (name, counter) => name -> counter.sum }))
+  }
+}
+
+/**
+ * The values of one entity in one bucket of a tier. Absolutes and
+ * aggregates are kept apart, as Cassandra keeps them in separate tables.
+ */
+class BucketCells(val absolutes: mutable.Map[String, Long] = mutable.HashMap(),
+                  val aggregates: mutable.Map[String, Long] = mutable.HashMap()) {
+
+  def isEmpty: Boolean = absolutes.isEmpty && aggregates.isEmpty
+
+  /**
+   * Folds in cells that were written after these: absolutes are replaced
+   * and aggregates summed.
+   */
+  def mergeNewer(newer: BucketCells): BucketCells = {
+    absolutes ++= newer.absolutes
+    newer.aggregates.foreach { case (name, value) => aggregates.put(name, aggregates.getOrElse(name, 0L) + value) }
+    this
+  }
+
+  /**
+   * As with CassandraQueryImpl.fetch, an aggregate hides an absolute of the
+   * same name.
+   */
+  def toMetrics: Metrics = {
+    val metrics = new Metrics(absolutes.size + aggregates.size)
+    absolutes.foreach { case (name, value) => metrics.put(name, new Metric(RecordType.ABSOLUTE, value)) }
+    aggregates.foreach { case (name, value) => metrics.put(name, new Metric(RecordType.AGGREGATE, value)) }
+    metrics
+  }
+}
+
+object BucketCells {
+  /**
+   * Splits metrics read back from a tier into absolutes and aggregates.
+   */
+  def apply(metrics: Metrics): BucketCells = {
+    val cells = new BucketCells()
+    metrics.asScala.foreach { case (name, metric) =>
+      metric.getType match {
+        case RecordType.ABSOLUTE => cells.absolutes.put(name, metric.getValue.longValue)
+        case RecordType.AGGREGATE => cells.aggregates.put(name, metric.getValue.longValue)
+      }
+    }
+    cells
+  }
+}
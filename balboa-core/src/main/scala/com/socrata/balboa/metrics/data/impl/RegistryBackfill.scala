@@ -0,0 +1,60 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.io.IOException
+import java.{util => ju}
+
+import com.socrata.balboa.metrics.Metric.RecordType
+import com.socrata.balboa.metrics.data.{DateRange, Period}
+import com.typesafe.config.Config
+import com.typesafe.scalalogging.StrictLogging
+
+/**
+ * Registers every entity with metrics in one tier in the entity registry,
+ * for keyspaces that were written to before the registry existed. Until
+ * then, their entities are neither listed nor visited by the RollupJob and
+ * RetentionSweep before they next receive metrics.
+ *
+ * The tier only tells which of its buckets an entity has metrics in, so each
+ * entity is registered as of the end of its latest bucket, or now if that is
+ * still open. That is never earlier than the truth: the jobs run over the
+ * registry may visit an entity for nothing, but never skip one. As the
+ * registry keeps the latest bucket an entity was registered in, the backfill
+ * can run against a live keyspace, and more than once.
+ */
+class RegistryBackfill(queryImpl: CassandraQuery,
+                       period: Period,
+                       timeService: TimeService = new TimeService) extends StrictLogging {
+
+  /**
+   * Registers the entity of every row of the tier.
+   *
+   * @return the number of rows read.
+   */
+  @throws[IOException]
+  def run(): Long = {
+    val now = timeService.currentTimeMillis()
+    var read = 0L
+    List(RecordType.ABSOLUTE, RecordType.AGGREGATE).foreach { recordType =>
+      queryImpl.getTierBuckets(period, recordType).foreach { case (entityId, bucket) =>
+        val lastActive = math.min(DateRange.create(period, new ju.Date(bucket)).end.getTime, now)
+        queryImpl.registerEntity(entityId,
+          DateRange.create(CassandraDataStore.RegistryPeriod, new ju.Date(lastActive)).start)
+        read += 1
+      }
+    }
+    logger.info(s"Registered the entities of $read rows of the $period tier")
+    read
+  }
+}
+
+object RegistryBackfill {
+  /**
+   * Backfills from the least granular tier short of forever, which has the
+   * fewest rows per entity while still dating them.
+   */
+  def apply(conf: Config): RegistryBackfill = {
+    val tiers = CassandraUtil.tiers
+    new RegistryBackfill(new CassandraQueryImpl(CassandraUtil.initializeContext(conf)),
+      tiers.find(_ != Period.FOREVER).getOrElse(tiers.head))
+  }
+}
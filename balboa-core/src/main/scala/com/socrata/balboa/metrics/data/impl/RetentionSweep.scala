@@ -0,0 +1,76 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.io.IOException
+import java.{util => ju}
+
+import com.socrata.balboa.metrics.data.{DateRange, Period}
+import com.typesafe.config.Config
+
+import scala.collection.JavaConverters._
+
+/**
+ * Deletes the buckets of every tier with a retention (balboa.retention) once
+ * they are past it. Absolutes are written with a TTL and expire by
+ * themselves, but counters cannot take one, so aggregates are only removed
+ * by this sweep. Absolutes are deleted along with them, which also takes
+ * care of those written before the retention was configured.
+ *
+ * Like the RollupJob, the sweep only visits the entities that received
+ * metrics since the checkpoints of their shard. Without a checkpoint, an
+ * entity is swept from the first bucket any of its metrics were recorded in.
+ */
+class RetentionSweep(queryImpl: CassandraQuery,
+                     retention: Map[Period, Long] = CassandraUtil.retention,
+                     timeService: TimeService = new TimeService,
+                     parallelism: Int) extends ShardedJob(queryImpl, "retention-sweep", parallelism) {
+
+  /**
+   * Deletes the expired buckets of the entities in one shard of the entity
+   * registry and advances its checkpoints.
+   *
+   * @return the number of buckets deleted.
+   */
+  @throws[IOException]
+  def runShard(shard: Int): Long = {
+    val now = timeService.currentTimeMillis()
+    // Every bucket that starts before this has ended more than its
+    // retention ago.
+    val expired = retention.map({ case (period, kept) =>
+      period -> DateRange.create(period, new ju.Date(now - kept)).start.getTime
+    })
+    val checkpoints = retention.map({ case (period, _) =>
+      period -> queryImpl.getCheckpoint(RetentionSweep.checkpoint(period), shard)
+    })
+
+    var deleted = 0L
+    queryImpl.getRegistrations(shard).foreach { case (entityId, lastRegistered) =>
+      lazy val since = firstSeen(entityId)
+      retention.keys.foreach { period =>
+        val from = checkpoints(period).orElse(since).getOrElse(Long.MaxValue)
+        val to = math.min(expired(period), activeUntil(lastRegistered))
+        if (from < to) {
+          new DateRange(new ju.Date(from), new ju.Date(to - 1)).toDates(period).asScala.foreach { bucket =>
+            queryImpl.deleteBucket(entityId, period, bucket)
+            deleted += 1
+          }
+        }
+      }
+    }
+
+    retention.keys.foreach { period =>
+      val through = math.max(expired(period), checkpoints(period).getOrElse(0L))
+      queryImpl.setCheckpoint(RetentionSweep.checkpoint(period), shard, through)
+    }
+    logger.info(s"Swept shard $shard of the entity registry, deleting $deleted buckets")
+    deleted
+  }
+}
+
+object RetentionSweep {
+  def checkpoint(period: Period): String = "retention_" + period
+
+  def apply(conf: Config): RetentionSweep =
+    new RetentionSweep(new CassandraQueryImpl(CassandraUtil.initializeContext(conf), SupportedPeriods.retention(conf)),
+      SupportedPeriods.retention(conf),
+      parallelism = conf.getInt("sweep.parallelism"))
+}
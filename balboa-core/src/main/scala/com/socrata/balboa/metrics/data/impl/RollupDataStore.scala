@@ -0,0 +1,164 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.io.IOException
+import java.{util => ju}
+
+import com.socrata.balboa.metrics.data.{DateRange, Period}
+import com.socrata.balboa.metrics.{MetricName, Metrics, Timeslice}
+import org.slf4j.{Logger, LoggerFactory}
+
+import scala.collection.mutable
+import scala.util.control.NonFatal
+
+/**
+ * Writes the most granular tier of every persist straight to Cassandra, and
+ * holds the coarser tiers in memory until the end of the current window of
+ * rollupGranularity milliseconds.
+ *
+ * Every coarser tier is then written once per entity and bucket per window,
+ * instead of once per persist, which collapses many counter increments into
+ * one. Aggregates are summed and the latest absolute wins, so the rows end
+ * up exactly as if each persist had been written through.
+ *
+ * Windows are flushed on the watchdog heartbeat and by the first persist of
+ * a later window. Coarse tiers lag the most granular one by up to a window,
+ * and up to a window of them is lost if the process dies.
+ *
+ * The buffer holds at most about maxBufferedBuckets buckets. A persist that
+ * finds it full flushes it first, and fails without writing anything while
+ * it cannot be flushed.
+ */
+class RollupDataStore(underlying: CassandraDataStore,
+                      timeService: TimeService = new TimeService,
+                      val rollupGranularity: Long,
+                      maxBufferedBuckets: Int = RollupDataStore.MaxBufferedBuckets) extends DataStoreImpl {
+
+  val log: Logger = LoggerFactory.getLogger(classOf[RollupDataStore])
+
+  private val fineTiers = underlying.tiers.lastOption.toList
+  private val coarseTiers = underlying.tiers.dropRight(1)
+
+  /**
+   * The coarse tiers of the current window, keyed by entity, tier and
+   * bucket start. Swapped for an empty one under its own lock when flushed,
+   * so persists never wait for the underlying datastore.
+   */
+  private var buffer = new mutable.LinkedHashMap[(String, Period, Long), Metrics]
+  private val bufferLock = new Object
+
+  /**
+   * Held while writing a swapped out buffer, so that flushes write one
+   * after the other and a later absolute is never overwritten by an earlier.
+   */
+  private val flushLock = new Object
+  @volatile private var currentWindow: Long = -1
+
+  @throws[Exception]
+  override def checkHealth(): Unit = underlying.checkHealth()
+
+  override def heartbeat(): Unit = {
+    try {
+      flushExpired(timeService.currentTimeMillis())
+    } catch {
+      case NonFatal(e) =>
+        log.error("Unable to flush rolled up tiers. They will be retried at the next heartbeat.", e)
+    }
+  }
+
+  @throws[IOException]
+  def flushExpired(timestamp: Long): Unit = {
+    val window = timestamp - (timestamp % rollupGranularity)
+    if (window > currentWindow) {
+      flushLock.synchronized {
+        if (window > currentWindow) {
+          flush()
+          currentWindow = window
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes every buffered bucket. A bucket is only written once: if the
+   * underlying datastore fails part way through, the buckets not yet written
+   * are put back into the buffer, under whatever has been buffered since.
+   */
+  @throws[IOException]
+  def flush(): Unit = {
+    flushLock.synchronized {
+      val flushing = bufferLock.synchronized {
+        val swapped = buffer
+        buffer = new mutable.LinkedHashMap[(String, Period, Long), Metrics]
+        swapped
+      }
+      if (flushing.nonEmpty) {
+        log.info(s"Flushing ${flushing.size} rolled up buckets to the underlying datastore")
+      }
+      try {
+        flushing.keys.toList.foreach { case key@(entityId, period, bucket) =>
+          underlying.persist(entityId, bucket, flushing(key), List(period))
+          flushing.remove(key)
+        }
+      } finally {
+        if (flushing.nonEmpty) requeue(flushing)
+      }
+    }
+  }
+
+  private def requeue(unwritten: mutable.LinkedHashMap[(String, Period, Long), Metrics]): Unit = {
+    bufferLock.synchronized {
+      unwritten.foreach { case (key, older) =>
+        buffer.put(key, buffer.get(key).fold(older)(newer => older.merge(newer)))
+      }
+    }
+  }
+
+  @throws[IOException]
+  override def persist(entityId: String, timestamp: Long, metrics: Metrics): Unit = {
+    // The most granular tier is written before the coarse ones are buffered,
+    // so a failure to flush must not fail the persist and have it retried.
+    heartbeat()
+    if (bufferLock.synchronized(buffer.size) >= maxBufferedBuckets) flush()
+
+    underlying.persist(entityId, timestamp, metrics, fineTiers)
+    bufferLock.synchronized {
+      coarseTiers.foreach { period =>
+        val bucket = DateRange.create(period, new ju.Date(timestamp)).start.getTime
+        buffer.get((entityId, period, bucket)) match {
+          case Some(existing) => existing.merge(metrics.copy())
+          case None => buffer.put((entityId, period, bucket), metrics.copy())
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the buffer whether or not its window is over, as nothing else
+   * will once the process stops.
+   */
+  override def onStop(): Unit = {
+    try {
+      flush()
+    } catch {
+      case NonFatal(e) =>
+        log.error("Unable to flush rolled up tiers on stop. They are lost.", e)
+    }
+  }
+
+  override def entities(): Iterator[String] = underlying.entities()
+  override def entities(pattern: String): Iterator[String] = underlying.entities(pattern)
+  override def entities(pattern: String, after: String): Iterator[String] = underlying.entities(pattern, after)
+  override def metricNames(entityId: String): Iterator[MetricName] = underlying.metricNames(entityId)
+  override def slices(entityId: String, period: Period, start: ju.Date, end: ju.Date): Iterator[Timeslice] =
+    underlying.slices(entityId, period, start, end)
+  override def find(entityId: String, period: Period, start: ju.Date): Iterator[Metrics] =
+    underlying.find(entityId, period, start)
+  override def find(entityId: String, period: Period, start: ju.Date, end: ju.Date): Iterator[Metrics] =
+    underlying.find(entityId, period, start, end)
+  override def find(entityId: String, start: ju.Date, end: ju.Date): Iterator[Metrics] =
+    underlying.find(entityId, start, end)
+}
+
+object RollupDataStore {
+  val MaxBufferedBuckets = 1000000
+}
@@ -0,0 +1,150 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.io.IOException
+import java.{util => ju}
+
+import com.socrata.balboa.metrics.Metric
+import com.socrata.balboa.metrics.Metric.RecordType
+import com.socrata.balboa.metrics.data.{DateRange, Period}
+import com.typesafe.config.Config
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * Derives the coarser tiers from the most granular one, for a
+ * CassandraDataStore that only writes the most granular tier
+ * (rollup.background).
+ *
+ * The entity registry is rolled up one shard at a time, up to parallelism
+ * shards at once. For every entity that received metrics since the shard's
+ * checkpoints, each closed bucket of each coarser tier is computed from the
+ * buckets of the next more granular tier, from the most to the least
+ * granular tier so each builds on the one before. A bucket is closed once
+ * lateness milliseconds have passed since its end.
+ *
+ * Writes are idempotent, so a job that fails part way through is simply run
+ * again: absolutes are overwritten, and a counter is incremented by the
+ * difference between the sum of its finer buckets and its current value. A
+ * counter is never decremented, so finer buckets that have expired take
+ * nothing away from it. The checkpoints of a shard only advance once the
+ * whole shard is rolled up.
+ *
+ * Only one job may run against a keyspace at a time, as two jobs could both
+ * add the same difference to a counter.
+ */
+class RollupJob(queryImpl: CassandraQuery,
+                tiers: List[Period] = CassandraUtil.tiers,
+                timeService: TimeService = new TimeService,
+                lateness: Long,
+                parallelism: Int) extends ShardedJob(queryImpl, "rollup-job", parallelism) {
+
+  /**
+   * Each coarser tier with the tier it is computed from, from the most to
+   * the least granular.
+   */
+  private val rollups: List[(Period, Period)] = tiers.zip(tiers.drop(1)).reverse
+
+  /**
+   * Rolls up the entities in one shard of the entity registry and advances
+   * its checkpoints.
+   *
+   * @return the number of coarse buckets written.
+   */
+  @throws[IOException]
+  def runShard(shard: Int): Long = {
+    val now = new ju.Date(timeService.currentTimeMillis() - lateness)
+    val closed = rollups.map({ case (period, _) => period -> DateRange.create(period, now).start.getTime }).toMap
+    val checkpoints = rollups.map({ case (period, _) =>
+      period -> queryImpl.getCheckpoint(RollupJob.checkpoint(period), shard)
+    }).toMap
+
+    var written = 0L
+    queryImpl.getRegistrations(shard).foreach { case (entityId, lastRegistered) =>
+      written += rollupEntity(entityId, activeUntil(lastRegistered), checkpoints, closed)
+    }
+
+    rollups.foreach { case (period, _) =>
+      val through = math.max(closed(period), checkpoints(period).getOrElse(0L))
+      queryImpl.setCheckpoint(RollupJob.checkpoint(period), shard, through)
+    }
+    logger.info(s"Rolled up shard $shard of the entity registry, writing $written buckets")
+    written
+  }
+
+  /**
+   * Rolls up the closed buckets of entityId that lie between the
+   * checkpoints and activeUntil, the end of the last bucket of the registry
+   * the entity received metrics in.
+   */
+  private def rollupEntity(entityId: String,
+                           activeUntil: Long,
+                           checkpoints: Map[Period, Option[Long]],
+                           closed: Map[Period, Long]): Long = {
+    // Without a checkpoint the entity is rolled up from the first bucket
+    // any of its metrics were recorded in.
+    lazy val since = firstSeen(entityId)
+
+    // Buckets computed for this entity so far, so each tier is computed from
+    // the one before it without reading that back.
+    val computed = mutable.HashMap[(Period, Long), BucketCells]()
+
+    rollups.map { case (period, source) =>
+      val from = checkpoints(period).orElse(since).getOrElse(activeUntil)
+      val to = math.min(closed(period), activeUntil)
+      if (from < to) {
+        new DateRange(new ju.Date(from), new ju.Date(to - 1)).toDates(period).asScala.count { bucket =>
+          val cells = rollupSource(entityId, period, bucket, source, computed)
+          computed.put((period, bucket.getTime), cells)
+          write(entityId, period, bucket, cells)
+        }.toLong
+      } else {
+        0L
+      }
+    }.sum
+  }
+
+  private def rollupSource(entityId: String,
+                           period: Period,
+                           bucket: ju.Date,
+                           source: Period,
+                           computed: mutable.Map[(Period, Long), BucketCells]): BucketCells = {
+    DateRange.create(period, bucket).toDates(source).asScala.foldLeft(new BucketCells()) {
+      (cells, date) => cells.mergeNewer(computed.getOrElse((source, date.getTime), fetch(entityId, source, date)))
+    }
+  }
+
+  private def fetch(entityId: String, period: Period, bucket: ju.Date): BucketCells =
+    Option(queryImpl.fetch(entityId, period, bucket)).fold(new BucketCells())(BucketCells(_))
+
+  /**
+   * Brings the stored bucket up to cells.
+   *
+   * @return true if anything was written.
+   */
+  private def write(entityId: String, period: Period, bucket: ju.Date, cells: BucketCells): Boolean = {
+    if (cells.isEmpty) {
+      false
+    } else {
+      val stored = fetch(entityId, period, bucket)
+      val absolutes = cells.absolutes.filter({ case (name, value) => !stored.absolutes.get(name).contains(value) })
+        .map({ case (name, value) => name -> new Metric(RecordType.ABSOLUTE, value) })
+      val aggregates = cells.aggregates
+        .map({ case (name, value) => name -> (value - stored.aggregates.getOrElse(name, 0L)) })
+        .filter(_._2 > 0).map({ case (name, delta) => name -> new Metric(RecordType.AGGREGATE, delta) })
+      if (absolutes.nonEmpty || aggregates.nonEmpty) {
+        queryImpl.persist(entityId, bucket, period, aggregates, absolutes)
+      }
+      absolutes.nonEmpty || aggregates.nonEmpty
+    }
+  }
+}
+
+object RollupJob {
+  def checkpoint(period: Period): String = "rollup_" + period
+
+  def apply(conf: Config): RollupJob =
+    new RollupJob(new CassandraQueryImpl(CassandraUtil.initializeContext(conf)),
+      lateness = conf.getLong("rollup.lateness"),
+      parallelism = conf.getInt("rollup.parallelism"))
+}
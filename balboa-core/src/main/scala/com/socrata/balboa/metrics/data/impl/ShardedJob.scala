@@ -0,0 +1,71 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.io.IOException
+import java.util.concurrent.{Callable, ExecutionException, Executors, ThreadFactory}
+import java.{util => ju}
+
+import com.socrata.balboa.metrics.data.DateRange
+import com.typesafe.scalalogging.StrictLogging
+
+import scala.util.{Failure, Try}
+
+/**
+ * A job run over the entity registry one shard at a time, up to parallelism
+ * shards at once. Jobs keep their progress per shard with
+ * CassandraQuery.setCheckpoint.
+ */
+abstract class ShardedJob(queryImpl: CassandraQuery, name: String, parallelism: Int) extends StrictLogging {
+
+  /**
+   * Runs the job over the entities in one shard of the entity registry.
+   *
+   * @return the number of buckets changed.
+   */
+  @throws[IOException]
+  def runShard(shard: Int): Long
+
+  /**
+   * Runs the job over every shard of the entity registry.
+   *
+   * @return the number of buckets changed.
+   */
+  @throws[IOException]
+  def run(): Long = {
+    val executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory {
+      def newThread(r: Runnable): Thread = {
+        val thread = new Thread(r, name)
+        thread.setDaemon(true)
+        thread
+      }
+    })
+    try {
+      val shards = (0 until CassandraUtil.EntityShards).map { shard =>
+        executor.submit(new Callable[Long] {
+          def call(): Long = runShard(shard)
+        })
+      }
+      // Wait for every shard, so a failed one does not leave others running.
+      val results = shards.map(shard => Try(shard.get()))
+      results.collectFirst({ case Failure(e: ExecutionException) => e.getCause }).foreach { cause =>
+        throw new IOException("Unable to run " + name + " over every shard of the entity registry", cause)
+      }
+      results.map(_.get).sum
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  /**
+   * The end of the last bucket of the registry an entity last registered in
+   * lastRegistered received metrics in: it has no metrics after that.
+   */
+  protected def activeUntil(lastRegistered: Long): Long =
+    DateRange.create(CassandraDataStore.RegistryPeriod, new ju.Date(lastRegistered)).end.getTime + 1
+
+  /**
+   * The first bucket any metric of entityId was recorded in, where a job
+   * without a checkpoint starts from.
+   */
+  protected def firstSeen(entityId: String): Option[Long] =
+    queryImpl.getMetricNames(entityId).map(_.getFirstSeen).reduceOption(math.min(_, _))
+}
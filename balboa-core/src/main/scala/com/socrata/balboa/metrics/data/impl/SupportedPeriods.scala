@@ -1,5 +1,7 @@
 package com.socrata.balboa.metrics.data.impl
 
+import java.util.concurrent.TimeUnit
+
 import com.socrata.balboa.metrics.data.Period
 import com.typesafe.config.Config
 
@@ -11,4 +13,22 @@ object SupportedPeriods {
       .asScala.map(_.asInstanceOf[String].toUpperCase).map(Period.valueOf).toList
 
   def getSupportedPeriodsJava(conf: Config): java.util.List[Period] = supportedPeriods(conf).asJava
+
+  /**
+   * How many milliseconds after its end a bucket of each period is kept
+   * for, from balboa.retention. Periods without a retention are kept
+   * forever.
+   */
+  def retention(conf: Config): Map[Period, Long] =
+    if (conf.hasPath("balboa.retention")) {
+      val retention = conf.getConfig("balboa.retention")
+      retention.root.keySet.asScala.map({ name =>
+        Period.valueOf(name.toUpperCase) -> retention.getDuration(name, TimeUnit.MILLISECONDS)
+      }).toMap
+    } else {
+      Map.empty
+    }
+
+  def getRetentionJava(conf: Config): java.util.Map[Period, java.lang.Long] =
+    retention(conf).map({ case (period, kept) => period -> java.lang.Long.valueOf(kept) }).asJava
 }
@@ -0,0 +1,106 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.{util => ju}
+
+import com.socrata.balboa.metrics.data.{DateRange, Period, QueryOptimizer}
+import com.socrata.balboa.metrics.{MetricName, Metrics, Timeslice}
+
+import scala.collection.JavaConverters._
+
+/**
+ * Answers queries for datastores that keep their own tiers of buckets and
+ * their own entity catalog, in the same shape CassandraDataStore answers
+ * them.
+ */
+trait TieredDataStore extends DataStoreImpl {
+
+  /**
+   * The tiers being summarized, excluding REALTIME.
+   */
+  protected def supportedPeriods: List[Period]
+
+  protected def catalog: EntityCatalog
+
+  /**
+   * The cells of entityId in the tier bucket starting at bucket, if any.
+   */
+  protected def fetch(entityId: String, period: Period, bucket: Long): Option[BucketCells]
+
+  /**
+   * The non-empty buckets of entityId in the tier that start between from
+   * and to inclusive, in ascending order.
+   */
+  protected def stored(entityId: String, period: Period, from: Long, to: Long): Iterator[(Long, BucketCells)]
+
+  private lazy val mostGranular = Period.mostGranular(supportedPeriods.asJava)
+
+  def entities(pattern: String): Iterator[String] = catalog.entities(pattern)
+
+  def entities(pattern: String, after: String): Iterator[String] = catalog.entities(pattern, after)
+
+  def entities(): Iterator[String] = entities("")
+
+  def metricNames(entityId: String): Iterator[MetricName] = catalog.metricNames(entityId)
+
+  /**
+   * Timeslices of a period between start and end, one for every bucket in
+   * the range whether or not it holds metrics. Unsupported periods are
+   * rolled up from the next most granular supported one.
+   */
+  def slices(entityId: String, period: Period, start: ju.Date, end: ju.Date): Iterator[Timeslice] = {
+    val requestPeriod = getValidGranularity(period)
+    val timeSlices = new DateRange(start, end).toDates(requestPeriod).asScala.iterator.map { date =>
+      val range = DateRange.create(requestPeriod, date)
+      new Timeslice(range.start.getTime, range.end.getTime, metricsAt(entityId, requestPeriod, date.getTime))
+    }
+    if (requestPeriod != period) {
+      CassandraUtil.rollupSliceIterator(period, timeSlices)
+    } else {
+      timeSlices
+    }
+  }
+
+  def find(entityId: String, period: Period, date: ju.Date): Iterator[Metrics] = {
+    val range = DateRange.create(period, date)
+    find(entityId, getValidGranularity(period), range.start, range.end)
+  }
+
+  /**
+   * One set of metrics for every bucket of the tier between start and end,
+   * empty where nothing was persisted.
+   */
+  def find(entityId: String, period: Period, start: ju.Date, end: ju.Date): Iterator[Metrics] =
+    new DateRange(start, end).toDates(period).asScala.iterator.map(date => metricsAt(entityId, period, date.getTime))
+
+  /**
+   * The metrics of every non-empty bucket that the query optimizer plans
+   * for the range. Empty buckets are skipped since callers only ever
+   * merge the results.
+   */
+  def find(entityId: String, start: ju.Date, end: ju.Date): Iterator[Metrics] = {
+    val range = new DateRange(start, end)
+    val optimalSlices = new QueryOptimizer(supportedPeriods.asJava).optimalSlices(range.start, range.end).asScala
+    val buckets = for {
+      (period, ranges) <- optimalSlices.toSeq
+      slice <- ranges.asScala.toSeq
+      bucket <- stored(entityId, period, slice.start.getTime, slice.end.getTime)
+    } yield bucket
+
+    buckets.sortBy(_._1).iterator.map(_._2.toMetrics)
+  }
+
+  protected def getValidGranularity(period: Period): Period = {
+    var requestPeriod = Option(period)
+    while (requestPeriod.exists(!supportedPeriods.contains(_))) {
+      requestPeriod = requestPeriod.flatMap(p => Option(p.moreGranular()))
+    }
+    requestPeriod.getOrElse(mostGranular)
+  }
+
+  private def metricsAt(entityId: String, period: Period, bucket: Long): Metrics =
+    if (supportedPeriods.contains(period)) {
+      fetch(entityId, period, bucket).fold(new Metrics())(_.toMetrics)
+    } else {
+      new Metrics()
+    }
+}
@@ -30,7 +30,9 @@ class MockDataStore extends DataStoreImpl {
   @throws[Exception]
   def checkHealth() = {}
   def entities(pattern: String) = null
+  def entities(pattern: String, after: String) = null
   def entities() = null
+  def metricNames(entityId: String) = null
   def slices(entityId: String, period: Period, start: Date, end: Date) = null
   def find(entityId: String, period: Period, date: Date) = null
   def find(entityId: String, period: Period, start: Date, end: Date) = null
@@ -3,7 +3,6 @@ package com.socrata.balboa.metrics.data.impl
 import java.util.concurrent.TimeUnit
 import java.util.{Date, GregorianCalendar, TimeZone}
 
-import com.socrata.balboa.metrics.Metric.RecordType
 import com.socrata.balboa.metrics.data.{DateRange, Period}
 import com.socrata.balboa.metrics.{Metric, Metrics}
 import junit.framework.Assert
@@ -161,33 +160,86 @@ class CassandraDataStoreTest {
     Assert.assertEquals(fs, mock.fetches)
   }
 
+  @Test
+  def testPersistRegistersEntityOncePerDay(): Unit = {
+    val day = TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS)
+    cds.persist(testEntity, 12345, testMetrics)
+    cds.persist(testEntity, 54321, testMetrics)
+    cds.persist(testEntity, day + 12345, testMetrics)
+    // A late arrival for a day that was already registered is not registered again.
+    cds.persist(testEntity, 12345, testMetrics)
+    Assert.assertEquals(List((testEntity, new Date(0)), (testEntity, new Date(day))), mock.registrations)
+  }
+
+  @Test
+  def testPersistRegistersForgottenEntitiesAgain(): Unit = {
+    val small = new CassandraDataStore(mock, registeredCacheSize = 1, cataloguedCacheSize = 2)
+    small.persist("foo", 12345, testMetrics)
+    small.persist("bar", 12345, testMetrics)
+    small.persist("foo", 54321, testMetrics)
+    Assert.assertEquals(List("foo", "bar", "foo"), mock.registrations.map(_._1))
+    // Only as many names as the cache holds are remembered, so foo's are
+    // first sightings again.
+    Assert.assertEquals(List(("foo", 2), ("bar", 2), ("foo", 2)),
+      mock.nameRegistrations.map(r => (r._1, r._3.size)))
+  }
+
+  @Test
+  def testPersistCataloguesMetricNamesOncePerDay(): Unit = {
+    val day = TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS)
+    val names = Set(aggMetricName, absMetricName)
+    cds.persist(testEntity, 12345, testMetrics)
+    cds.persist(testEntity, 54321, testMetrics)
+    cds.persist(testEntity, day + 12345, testMetrics)
+    Assert.assertEquals(List(
+      (testEntity, new Date(0), names, names),
+      (testEntity, new Date(day), Set[String](), names)), mock.nameRegistrations)
+  }
+
+  @Test
+  def testPersistCataloguesLateArrivalsAsFirstSightings(): Unit = {
+    val day = TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS)
+    val names = Set(aggMetricName, absMetricName)
+    cds.persist(testEntity, day + 12345, testMetrics)
+    cds.persist(testEntity, 12345, testMetrics)
+    cds.persist(testEntity, 54321, testMetrics)
+    Assert.assertEquals(List(
+      (testEntity, new Date(day), names, names),
+      (testEntity, new Date(0), names, Set[String]())), mock.nameRegistrations)
+  }
+
   @Test
   def testGetEntities(): Unit = {
     val entyItr = cds.entities()
-    var count = 0
-    while(entyItr.hasNext) {
-      count += 1
-      val enty = entyItr.next()
-      Assert.assertFalse(enty.contains("-"))
-    }
-    Assert.assertEquals(mock.uniqEntityNames, count)
-    Assert.assertEquals(2, mock.entities.size)
-    Assert.assertEquals(RecordType.AGGREGATE, mock.entities(0).recordType)
-    Assert.assertEquals(RecordType.ABSOLUTE, mock.entities(1).recordType)
-    Assert.assertEquals(Period.MONTHLY, mock.entities(0).period)
-    Assert.assertEquals(Period.MONTHLY, mock.entities(1).period)
+    Assert.assertEquals(mock.registeredEntities, entyItr.toList)
+    Assert.assertEquals(List(""), mock.entitySearches)
   }
 
   @Test
   def testGetEntitiesPattern(): Unit = {
-    val entyItr = cds.entities("t") // only entities with a 't' in them
-    var count = 0
-    while(entyItr.hasNext) {
-      count += 1
-      val enty = entyItr.next()
-      Assert.assertFalse(enty.contains("-"))
-    }
-    Assert.assertEquals(2, count)
+    val entyItr = cds.entities("t") // only entities starting with a 't'
+    Assert.assertEquals(List("three", "two"), entyItr.toList)
+    Assert.assertEquals(List("t"), mock.entitySearches)
+  }
+
+  @Test
+  def testGetEntitiesAfter(): Unit = {
+    Assert.assertEquals(List("two"), cds.entities("t", "three").toList)
+    Assert.assertEquals(List("three", "two"), cds.entities("", "one").toList)
+  }
+
+  @Test
+  def testMergeSorted(): Unit = {
+    val merged = CassandraUtil.mergeSorted(List(List("b", "e").iterator, Iterator.empty, List("a", "c", "d").iterator))
+    Assert.assertEquals(List("a", "b", "c", "d", "e"), merged.toList)
+  }
+
+  @Test
+  def testMergeSortedOrdersByUtf8Bytes(): Unit = {
+    // U+1F600 sorts after U+FF5E in UTF-8, though its UTF-16 surrogates sort before it.
+    val emoji = new String(Character.toChars(0x1F600)) // scalastyle:ignore magic.number
+    val merged = CassandraUtil.mergeSorted(List(List("a", "\uff5e").iterator, List(emoji, emoji + "a").iterator))
+    Assert.assertEquals(List("a", "\uff5e", emoji, emoji + "a"), merged.toList)
   }
 
   @Test def testRangeScanNoItems(): Unit = {
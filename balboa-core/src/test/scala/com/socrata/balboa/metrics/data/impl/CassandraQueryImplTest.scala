@@ -30,12 +30,23 @@ class CassandraQueryImplTest extends MockitoSugar {
   @Test
   @Ignore("Requires a local cassandra server and should be executed in isolation")
   def testGetKeys(): Unit = {
-    val keysItr:Iterator[String] =
-      new CassandraQueryImpl(CassandraUtil.initializeContext())
-        .getAllEntityIds(RecordType.AGGREGATE, Period.HOURLY)
+    val q = new CassandraQueryImpl(CassandraUtil.initializeContext())
+    q.registerEntity("mykey", DateRange.create(Period.DAILY, new Date(1000)).start)
+    val keysItr:Iterator[String] = q.getEntityIds("my", None)
     keysItr.foreach(println)
   }
 
+  @Test
+  @Ignore("Requires a local cassandra server and should be executed in isolation")
+  def testRegistryOnlyMovesForward(): Unit = {
+    val q = new CassandraQueryImpl(CassandraUtil.initializeContext())
+    val later = DateRange.create(Period.DAILY, new Date(2 * 86400000L)).start
+    q.registerEntity("mykey", later)
+    q.registerEntity("mykey", DateRange.create(Period.DAILY, new Date(1000)).start)
+    Assert.assertEquals(Some(later.getTime),
+      q.getRegistrations(CassandraUtil.entityShard("mykey")).find(_._1 == "mykey").map(_._2))
+  }
+
   @Ignore("Requires a local cassandra server and should be executed in isolation")
   @Test(expected = classOf[IOException])
   def testConnectionFailureOnPersist() {
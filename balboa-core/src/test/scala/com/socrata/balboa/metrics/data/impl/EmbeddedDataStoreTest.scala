@@ -0,0 +1,222 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.io.{File, RandomAccessFile}
+import java.nio.file.Files
+import java.util.Date
+import java.util.concurrent.TimeUnit
+
+import com.socrata.balboa.metrics.Metric.RecordType
+import com.socrata.balboa.metrics.data.Period
+import com.socrata.balboa.metrics.{Metric, MetricName, Metrics}
+import junit.framework.Assert
+import org.junit.{After, Test}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+class EmbeddedDataStoreTest {
+  val directory: File = Files.createTempDirectory("embedded-datastore").toFile
+  val periods = List(Period.MONTHLY, Period.DAILY, Period.HOURLY)
+  val hour: Long = TimeUnit.HOURS.toMillis(1)
+  val day: Long = TimeUnit.DAYS.toMillis(1)
+
+  def open(compactionSegments: Int = 4): EmbeddedDataStore =
+    new EmbeddedDataStore(directory, periods, TimeUnit.HOURS.toMillis(1), Long.MaxValue, compactionSegments)
+
+  def metrics(values: (String, Metric)*): Metrics = new Metrics(values.toMap.asJava)
+
+  def aggregate(value: Long): Metric = new Metric(RecordType.AGGREGATE, value)
+
+  def absolute(value: Long): Metric = new Metric(RecordType.ABSOLUTE, value)
+
+  def segmentFiles(period: Period): List[File] =
+    new File(directory, period.toString.toLowerCase).listFiles().filter(_.getName.endsWith(EmbeddedSegment.Suffix))
+      .sortBy(_.getName).toList
+
+  def segments(period: Period): Int = segmentFiles(period).size
+
+  def logs(): Map[File, Array[Byte]] = directory.listFiles().filter(_.getName.endsWith(EmbeddedDataStore.LogSuffix))
+    .map(log => log -> Files.readAllBytes(log.toPath)).toMap
+
+  @After
+  def tearDown(): Unit = {
+    def delete(file: File): Unit = {
+      Option(file.listFiles()).foreach(_.foreach(delete))
+      file.delete()
+    }
+    delete(directory)
+  }
+
+  @Test
+  def testReadsMergeSegmentsWithUnflushedMetrics(): Unit = {
+    val store = open()
+    store.persist("foo", hour, metrics("views" -> aggregate(2), "rows" -> absolute(10)))
+    store.flush()
+    store.persist("foo", hour, metrics("views" -> aggregate(3), "rows" -> absolute(7)))
+
+    Assert.assertEquals(1, segments(Period.HOURLY))
+    List(Period.HOURLY, Period.DAILY, Period.MONTHLY).foreach { period =>
+      Assert.assertEquals(metrics("views" -> aggregate(5), "rows" -> absolute(7)),
+        store.find("foo", period, new Date(hour)).next())
+    }
+    store.close()
+  }
+
+  @Test
+  def testMetricsSurviveReopening(): Unit = {
+    val store = open()
+    (0 until 30).foreach(d => store.persist("foo", d * day + hour, metrics("views" -> aggregate(1))))
+    store.persist("bar", hour, metrics("rows" -> absolute(3)))
+    store.close()
+
+    val reopened = open()
+    val total = new Metrics()
+    reopened.find("foo", new Date(0), new Date(31 * day - 1)).foreach(total.merge)
+    Assert.assertEquals(metrics("views" -> aggregate(30)), total)
+    Assert.assertEquals(List("bar", "foo"), reopened.entities().toList)
+    Assert.assertEquals(List(new MetricName("views", 0, 29 * day)), reopened.metricNames("foo").toList)
+    reopened.close()
+  }
+
+  @Test
+  def testUnflushedMetricsAreRecoveredFromTheLog(): Unit = {
+    val store = open()
+    store.persist("foo", hour, metrics("views" -> aggregate(1)))
+    store.flush()
+    store.persist("foo", hour, metrics("views" -> aggregate(2)))
+    store.abandon()
+
+    val reopened = open()
+    Assert.assertEquals(metrics("views" -> aggregate(3)), reopened.find("foo", Period.HOURLY, new Date(hour)).next())
+    Assert.assertEquals(List("foo"), reopened.entities().toList)
+    reopened.close()
+  }
+
+  @Test
+  def testLogsAlreadyWrittenOutAreNotReplayed(): Unit = {
+    val store = open()
+    store.persist("foo", hour, metrics("views" -> aggregate(1), "rows" -> absolute(4)))
+    val written = logs()
+    store.flush()
+    store.abandon()
+    // As if the process had died after writing the segments, before deleting the log.
+    written.foreach({ case (log, bytes) => Files.write(log.toPath, bytes) })
+
+    val reopened = open()
+    List(Period.HOURLY, Period.DAILY, Period.MONTHLY).foreach { period =>
+      Assert.assertEquals(metrics("views" -> aggregate(1), "rows" -> absolute(4)),
+        reopened.find("foo", period, new Date(hour)).next())
+    }
+    Assert.assertTrue(written.keys.forall(!_.exists))
+    reopened.close()
+  }
+
+  @Test
+  def testLogsAreReplayedIntoTheTiersNotWrittenOut(): Unit = {
+    val store = open()
+    store.persist("foo", hour, metrics("views" -> aggregate(1)))
+    val written = logs()
+    store.flush()
+    store.abandon()
+    // As if the process had died after writing the hourly segment only.
+    written.foreach({ case (log, bytes) => Files.write(log.toPath, bytes) })
+    (segmentFiles(Period.DAILY) ++ segmentFiles(Period.MONTHLY)).foreach(_.delete())
+
+    val reopened = open()
+    List(Period.HOURLY, Period.DAILY, Period.MONTHLY).foreach { period =>
+      Assert.assertEquals(metrics("views" -> aggregate(1)), reopened.find("foo", period, new Date(hour)).next())
+    }
+    reopened.close()
+
+    val again = open()
+    Assert.assertEquals(metrics("views" -> aggregate(1)), again.find("foo", Period.DAILY, new Date(hour)).next())
+    again.close()
+  }
+
+  @Test
+  def testTruncatedLogRecordIsDropped(): Unit = {
+    val store = open()
+    store.persist("foo", hour, metrics("views" -> aggregate(1)))
+    store.persist("foo", hour, metrics("views" -> aggregate(2)))
+    store.abandon()
+
+    val log = directory.listFiles().filter(_.getName.endsWith(EmbeddedDataStore.LogSuffix)).maxBy(_.getName)
+    val file = new RandomAccessFile(log, "rw")
+    try file.setLength(file.length - 1) finally file.close()
+
+    val reopened = open()
+    Assert.assertEquals(metrics("views" -> aggregate(1)), reopened.find("foo", Period.HOURLY, new Date(hour)).next())
+    reopened.close()
+  }
+
+  @Test
+  def testCompactionMergesSegments(): Unit = {
+    val store = open(compactionSegments = 2)
+    (1 to 3).foreach { i =>
+      store.persist("foo", hour, metrics("views" -> aggregate(i), "rows" -> absolute(i)))
+      store.flush()
+    }
+
+    Assert.assertEquals(1, segments(Period.HOURLY))
+    Assert.assertEquals(metrics("views" -> aggregate(6), "rows" -> absolute(3)),
+      store.find("foo", Period.HOURLY, new Date(hour)).next())
+    store.close()
+
+    val reopened = open(compactionSegments = 2)
+    Assert.assertEquals(metrics("views" -> aggregate(6), "rows" -> absolute(3)),
+      reopened.find("foo", Period.HOURLY, new Date(hour)).next())
+    reopened.close()
+  }
+
+  @Test
+  def testCompactionOnlyMergesSegmentsOfSimilarSize(): Unit = {
+    val store = open(compactionSegments = 2)
+    val padding = "x" * 100
+    (0 until 20000).foreach(i => store.persist(f"entity-$i%05d", hour, metrics(padding -> aggregate(1))))
+    store.persist("foo", hour, metrics("views" -> aggregate(1), "rows" -> absolute(1)))
+    store.flush()
+    val large = segmentFiles(Period.HOURLY)
+
+    (2 to 3).foreach { i =>
+      store.persist("foo", hour, metrics("views" -> aggregate(i), "rows" -> absolute(i)))
+      store.flush()
+    }
+
+    val compacted = segmentFiles(Period.HOURLY)
+    Assert.assertEquals(2, compacted.size)
+    Assert.assertEquals(large.head, compacted.head)
+    Assert.assertEquals(metrics("views" -> aggregate(6), "rows" -> absolute(3)),
+      store.find("foo", Period.HOURLY, new Date(hour)).next())
+    store.close()
+
+    val reopened = open(compactionSegments = 2)
+    Assert.assertEquals(metrics("views" -> aggregate(6), "rows" -> absolute(3)),
+      reopened.find("foo", Period.HOURLY, new Date(hour)).next())
+    reopened.close()
+  }
+
+  @Test(expected = classOf[java.io.IOException])
+  def testDirectoryCanOnlyBeOpenedOnce(): Unit = {
+    val store = open()
+    try {
+      open()
+    } finally {
+      store.close()
+    }
+  }
+
+  @Test
+  def testSegmentRangesUseTheSparseIndex(): Unit = {
+    val entries = for {
+      entity <- List("a", "b", "c")
+      bucket <- 0L until 200L
+    } yield (entity, bucket, new BucketCells(aggregates = mutable.HashMap("views" -> bucket)))
+
+    val segment = EmbeddedSegment.write(directory, 1, (1, 1), 0, entries.iterator)
+
+    Assert.assertEquals((100L to 150L).toList, segment.range("b", 100, 150).map(_._1).toList)
+    Assert.assertEquals(Some(199L), segment.get("c", 199).map(_.aggregates("views")))
+    Assert.assertEquals(None, segment.get("d", 0))
+    Assert.assertEquals(600, segment.entries.size)
+  }
+}
@@ -0,0 +1,119 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.util.Date
+import java.util.concurrent.{Executors, TimeUnit}
+
+import com.socrata.balboa.metrics.Metric.RecordType
+import com.socrata.balboa.metrics.data.{DateRange, Period}
+import com.socrata.balboa.metrics.{Metric, MetricName, Metrics}
+import junit.framework.Assert
+import org.junit.Test
+
+import scala.collection.JavaConverters._
+
+class InMemoryDataStoreTest {
+  val store = new InMemoryDataStore(List(Period.MONTHLY, Period.DAILY, Period.HOURLY))
+  val hour: Long = TimeUnit.HOURS.toMillis(1)
+  val day: Long = TimeUnit.DAYS.toMillis(1)
+
+  def metrics(values: (String, Metric)*): Metrics = new Metrics(values.toMap.asJava)
+
+  def aggregate(value: Long): Metric = new Metric(RecordType.AGGREGATE, value)
+
+  def absolute(value: Long): Metric = new Metric(RecordType.ABSOLUTE, value)
+
+  @Test
+  def testPersistFansOutToEveryTier(): Unit = {
+    store.persist("foo", 5 * hour + 1, metrics("views" -> aggregate(2), "rows" -> absolute(10)))
+    store.persist("foo", 5 * hour + 2, metrics("views" -> aggregate(3), "rows" -> absolute(7)))
+
+    val expected = metrics("views" -> aggregate(5), "rows" -> absolute(7))
+    List(Period.HOURLY, Period.DAILY, Period.MONTHLY).foreach { period =>
+      Assert.assertEquals(expected, store.find("foo", period, new Date(5 * hour)).next())
+    }
+  }
+
+  @Test
+  def testFindWithinTierReturnsEveryBucket(): Unit = {
+    store.persist("foo", hour, metrics("views" -> aggregate(1)))
+
+    val found = store.find("foo", Period.HOURLY, new Date(0), new Date(3 * hour - 1)).toList
+    Assert.assertEquals(List(new Metrics(), metrics("views" -> aggregate(1)), new Metrics()), found)
+  }
+
+  @Test
+  def testFindUnsupportedPeriodUsesMoreGranularTier(): Unit = {
+    store.persist("foo", 0, metrics("views" -> aggregate(1)))
+
+    val found = store.find("foo", Period.YEARLY, new Date(0)).toList
+    Assert.assertEquals(12, found.size)
+    Assert.assertEquals(metrics("views" -> aggregate(1)), found.head)
+  }
+
+  @Test
+  def testFindRangeSumsOptimalSlices(): Unit = {
+    (0 until 30).foreach(d => store.persist("foo", d * day + hour, metrics("views" -> aggregate(1))))
+    store.persist("bar", hour, metrics("views" -> aggregate(100)))
+
+    val range = DateRange.create(Period.MONTHLY, new Date(0))
+    val total = new Metrics()
+    store.find("foo", range.start, range.end).foreach(total.merge)
+    Assert.assertEquals(metrics("views" -> aggregate(30)), total)
+
+    val partial = new Metrics()
+    store.find("foo", new Date(day), new Date(3 * day - 1)).foreach(partial.merge)
+    Assert.assertEquals(metrics("views" -> aggregate(2)), partial)
+  }
+
+  @Test
+  def testSlicesRollUpUnsupportedPeriods(): Unit = {
+    store.persist("foo", 0, metrics("views" -> aggregate(1)))
+    store.persist("foo", 4 * day, metrics("views" -> aggregate(2)))
+    store.persist("foo", 8 * day, metrics("views" -> aggregate(4)))
+
+    val daily = store.slices("foo", Period.DAILY, new Date(0), new Date(9 * day - 1)).toList
+    Assert.assertEquals(9, daily.size)
+    Assert.assertEquals(metrics("views" -> aggregate(2)), daily(4).getMetrics)
+
+    val weekly = store.slices("foo", Period.WEEKLY, new Date(0), new Date(9 * day - 1)).toList
+    Assert.assertEquals(7, weekly.flatMap(s => Option(s.getMetrics.get("views"))).map(_.getValue.longValue).sum)
+  }
+
+  @Test
+  def testEntitiesArePrefixedAndResumable(): Unit = {
+    List("two", "one", "three", "other").foreach(id => store.persist(id, 0, metrics("views" -> aggregate(1))))
+
+    Assert.assertEquals(List("one", "other", "three", "two"), store.entities().toList)
+    Assert.assertEquals(List("three", "two"), store.entities("t").toList)
+    Assert.assertEquals(List("two"), store.entities("t", "three").toList)
+    Assert.assertEquals(List("three", "two"), store.entities("t", "one").toList)
+  }
+
+  @Test
+  def testMetricNamesTrackFirstAndLastSeen(): Unit = {
+    store.persist("foo", 3 * day + hour, metrics("views" -> aggregate(1)))
+    store.persist("foo", day + hour, metrics("views" -> aggregate(1), "rows" -> absolute(1)))
+
+    Assert.assertEquals(
+      List(new MetricName("rows", day, day), new MetricName("views", day, 3 * day)),
+      store.metricNames("foo").toList)
+    Assert.assertEquals(Nil, store.metricNames("bar").toList)
+  }
+
+  @Test
+  def testConcurrentPersistsAreNotLost(): Unit = {
+    val pool = Executors.newFixedThreadPool(8)
+    try {
+      (0 until 1000).foreach { _ =>
+        pool.execute(new Runnable {
+          def run(): Unit = store.persist("foo", hour, metrics("views" -> aggregate(1)))
+        })
+      }
+    } finally {
+      pool.shutdown()
+      pool.awaitTermination(10, TimeUnit.SECONDS)
+    }
+
+    Assert.assertEquals(metrics("views" -> aggregate(1000)), store.find("foo", Period.MONTHLY, new Date(0)).next())
+  }
+}
@@ -4,26 +4,55 @@ import java.util.Date
 
 import com.socrata.balboa.metrics.Metric.RecordType
 import com.socrata.balboa.metrics.data.Period
-import com.socrata.balboa.metrics.{Metric, Metrics}
+import com.socrata.balboa.metrics.{Metric, MetricName, Metrics}
 
 import scala.{collection => sc}
 
 class MockCassandraQueryImpl extends CassandraQuery {
   var persists = List[APersist]()
   var fetches = List[AFetch]()
-  var entities = List[AEntitySearch]()
+  var entitySearches = List[String]()
+  var registrations = List[(String, Date)]()
+  var nameRegistrations = List[(String, Date, Set[String], Set[String])]()
+  var checkpoints = Map[(String, Int), Long]()
+  var deletes = List[AFetch]()
 
   var metricsToReturn:Metrics = _
-  val uniqEntityNames = 3 // should match the stubbed fn getAllEntityIds
+  val registeredEntities = List("one", "three", "two") // returned by the stubbed fn getEntityIds
 
   @throws[Exception]
   def checkHealth() = {}
 
-  def getAllEntityIds(recordType:RecordType, period:Period):Iterator[String] = {
-    entities = entities ::: List[AEntitySearch](new AEntitySearch(recordType, period))
-    List("one", "two", "one", "two", "three").iterator
+  def registerEntity(entityId:String, bucket:Date): Unit = {
+    registrations = registrations ::: List((entityId, bucket))
   }
 
+  def getEntityIds(prefix:String, after:Option[String]):Iterator[String] = {
+    entitySearches = entitySearches ::: List(prefix)
+    registeredEntities.filter(_.startsWith(prefix)).filter(id => after.forall(id > _)).iterator
+  }
+
+  def getRegistrations(shard:Int):Iterator[(String, Long)] =
+    registrations.filter(r => CassandraUtil.entityShard(r._1) == shard)
+      .groupBy(_._1).mapValues(_.map(_._2.getTime).max).toList.sortBy(_._1).iterator
+
+  def getTierBuckets(period:Period, recordType:RecordType):Iterator[(String, Long)] =
+    persists.filter(p => p.period == period && (if (recordType == RecordType.ABSOLUTE) p.abs else p.agg).nonEmpty)
+      .map(p => CassandraUtil.parseEntityKey(p.entityKey)).distinct.iterator
+
+  def getCheckpoint(job:String, shard:Int):Option[Long] = checkpoints.get((job, shard))
+
+  def setCheckpoint(job:String, shard:Int, through:Long): Unit = {
+    checkpoints = checkpoints + ((job, shard) -> through)
+  }
+
+  def registerMetricNames(entityId:String, bucket:Date, firstSightings:sc.Iterable[String], lastSightings:sc.Iterable[String]): Unit = {
+    nameRegistrations = nameRegistrations ::: List((entityId, bucket, firstSightings.toSet, lastSightings.toSet))
+  }
+
+  def getMetricNames(entityId:String):Iterator[MetricName] =
+    List(new MetricName("views", 0L, 86400000L)).iterator
+
   def fetch(entityId:String, period:Period, bucket:Date):Metrics = {
     val entityKey:String = CassandraUtil.createEntityKey(entityId,bucket.getTime)
     //println("Fetching " + entityKey + " in period " + period + " DATE: " + bucket.toGMTString)
@@ -31,6 +60,10 @@ class MockCassandraQueryImpl extends CassandraQuery {
     metricsToReturn
   }
 
+  def deleteBucket(entityId:String, period:Period, bucket:Date): Unit = {
+    deletes = deletes ::: List(new AFetch(CassandraUtil.createEntityKey(entityId, bucket.getTime), period))
+  }
+
   def persist(entityId:String, bucket:Date, period:Period, aggregates:sc.Map[String, Metric], absolutes:sc.Map[String, Metric]) {
     val entityKey:String = CassandraUtil.createEntityKey(entityId,bucket.getTime)
     //println("Persisting " + entityKey + " in period " + period + " DATE: " + bucket.toGMTString)
@@ -65,7 +98,3 @@ class AFetch(val entityKey:String, val period:Period) {
     "FETCH: entityKey: " + entityKey + " period:" + period
   }
 }
-
-class AEntitySearch(val recordType:RecordType, val period:Period) extends Ordered[AEntitySearch]{
-  def compare(that:AEntitySearch) =  if (that.period.compareTo(this.period) == 0) that.recordType.compareTo(this.recordType) else that.period.compareTo(this.period)
-}
@@ -0,0 +1,59 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.util.Date
+import java.util.concurrent.TimeUnit
+
+import com.socrata.balboa.metrics.Metric
+import com.socrata.balboa.metrics.data.{DateRange, Period}
+import junit.framework.Assert
+import org.junit.Test
+
+class RegistryBackfillTest {
+  val day: Long = TimeUnit.DAYS.toMillis(1)
+
+  val mock = new MockCassandraQueryImpl()
+  var now: Long = 0
+  val backfill = new RegistryBackfill(mock, Period.MONTHLY, new TimeService {
+    override def currentTimeMillis(): Long = now
+  })
+
+  def persist(entityId: String, bucket: Date, recordType: Metric.RecordType): Unit = {
+    val metrics = Map("views" -> new Metric(recordType, 1))
+    if (recordType == Metric.RecordType.ABSOLUTE) {
+      mock.persist(entityId, bucket, Period.MONTHLY, Map.empty, metrics)
+    } else {
+      mock.persist(entityId, bucket, Period.MONTHLY, metrics, Map.empty)
+    }
+  }
+
+  @Test
+  def testEntitiesAreRegisteredAsOfTheEndOfTheirBuckets(): Unit = {
+    val january = DateRange.create(Period.MONTHLY, new Date(0))
+    persist("foo", january.start, Metric.RecordType.AGGREGATE)
+    persist("bar", january.start, Metric.RecordType.ABSOLUTE)
+
+    now = 100 * day
+    Assert.assertEquals(2L, backfill.run())
+    Assert.assertEquals(Set("foo", "bar"), mock.registrations.map(_._1).toSet)
+    Assert.assertEquals(Set(30 * day), mock.registrations.map(_._2.getTime).toSet)
+  }
+
+  @Test
+  def testEntitiesInAnOpenBucketAreRegisteredAsOfNow(): Unit = {
+    persist("foo", new Date(0), Metric.RecordType.AGGREGATE)
+
+    now = 10 * day + 1
+    backfill.run()
+    Assert.assertEquals(List(("foo", new Date(10 * day))), mock.registrations)
+  }
+
+  @Test
+  def testOtherTiersAreNotRead(): Unit = {
+    mock.persist("foo", new Date(0), Period.DAILY, Map("views" -> new Metric(Metric.RecordType.AGGREGATE, 1)),
+      Map.empty)
+
+    now = 100 * day
+    Assert.assertEquals(0L, backfill.run())
+    Assert.assertTrue(mock.registrations.isEmpty)
+  }
+}
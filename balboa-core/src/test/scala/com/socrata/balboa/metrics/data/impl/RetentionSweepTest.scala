@@ -0,0 +1,51 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.util.concurrent.TimeUnit
+
+import com.socrata.balboa.metrics.data.Period
+import com.socrata.balboa.metrics.{Metric, Metrics}
+import junit.framework.Assert
+import org.junit.Test
+
+import scala.collection.JavaConverters._
+
+class RetentionSweepTest {
+  val hour: Long = TimeUnit.HOURS.toMillis(1)
+  val day: Long = TimeUnit.DAYS.toMillis(1)
+
+  val mock = new MockCassandraQueryImpl()
+  val store = new CassandraDataStore(mock)
+  var now: Long = 0
+  val sweep = new RetentionSweep(mock, Map(Period.HOURLY -> day), new TimeService {
+    override def currentTimeMillis(): Long = now
+  }, parallelism = 1)
+
+  def metrics(aggregate: Long): Metrics =
+    new Metrics(Map("views" -> new Metric(Metric.RecordType.AGGREGATE, aggregate)).asJava)
+
+  @Test
+  def testExpiredBucketsAreDeleted(): Unit = {
+    store.persist("foo", hour, metrics(1))
+
+    now = day + hour / 2
+    Assert.assertEquals(0L, sweep.run())
+
+    now = 3 * day
+    Assert.assertEquals(24L, sweep.run())
+    Assert.assertEquals(Set(Period.HOURLY), mock.deletes.map(_.period).toSet)
+    Assert.assertEquals(CassandraUtil.createEntityKey("foo", 0), mock.deletes.head.entityKey)
+    Assert.assertEquals(Some(2 * day),
+      mock.checkpoints.get((RetentionSweep.checkpoint(Period.HOURLY), CassandraUtil.entityShard("foo"))))
+  }
+
+  @Test
+  def testEntitiesInactiveSinceTheCheckpointAreNotSwept(): Unit = {
+    store.persist("foo", hour, metrics(1))
+    now = 3 * day
+    sweep.run()
+
+    now = 10 * day
+    Assert.assertEquals(0L, sweep.run())
+    Assert.assertEquals(24, mock.deletes.size)
+  }
+}
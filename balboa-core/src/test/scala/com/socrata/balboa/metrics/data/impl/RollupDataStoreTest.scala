@@ -0,0 +1,127 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.io.IOException
+import java.util.Date
+import java.util.concurrent.TimeUnit
+
+import com.socrata.balboa.metrics.data.{DateRange, Period}
+import com.socrata.balboa.metrics.{Metric, Metrics}
+import junit.framework.Assert
+import org.junit.Test
+
+import scala.collection.JavaConverters._
+import scala.{collection => sc}
+
+class RollupDataStoreTest {
+  var failing = false
+  val mock = new MockCassandraQueryImpl() {
+    override def persist(entityId: String, bucket: Date, period: Period,
+                         aggregates: sc.Map[String, Metric], absolutes: sc.Map[String, Metric]): Unit = {
+      if (failing && period != Period.HOURLY) throw new IOException("Coarse tiers are down")
+      super.persist(entityId, bucket, period, aggregates, absolutes)
+    }
+  }
+  val window: Long = TimeUnit.MINUTES.toMillis(10)
+  var now: Long = 0
+  val time = new TimeService {
+    override def currentTimeMillis(): Long = now
+  }
+  val rollup = new RollupDataStore(new CassandraDataStore(mock), time, window)
+
+  def metrics(aggregate: Long, absolute: Long): Metrics = new Metrics(Map(
+    "views" -> new Metric(Metric.RecordType.AGGREGATE, aggregate),
+    "rows" -> new Metric(Metric.RecordType.ABSOLUTE, absolute)).asJava)
+
+  def persisted(period: Period): List[APersist] = mock.persists.filter(_.period == period)
+
+  def key(period: Period, timestamp: Long): String =
+    "foo-" + DateRange.create(period, new Date(timestamp)).start.getTime
+
+  @Test
+  def testOnlyTheMostGranularTierIsWrittenThrough(): Unit = {
+    rollup.persist("foo", 1000, metrics(1, 10))
+    rollup.persist("foo", 2000, metrics(2, 20))
+
+    Assert.assertEquals(2, persisted(Period.HOURLY).size)
+    Assert.assertEquals(Nil, persisted(Period.DAILY))
+    Assert.assertEquals(Nil, persisted(Period.MONTHLY))
+  }
+
+  @Test
+  def testCoarseTiersAreWrittenOncePerWindow(): Unit = {
+    rollup.persist("foo", 1000, metrics(1, 10))
+    rollup.persist("foo", 2000, metrics(2, 20))
+    rollup.persist("foo", TimeUnit.HOURS.toMillis(2), metrics(4, 30))
+
+    now = window
+    rollup.heartbeat()
+
+    List(Period.DAILY, Period.MONTHLY).foreach { period =>
+      val written = persisted(period)
+      Assert.assertEquals(1, written.size)
+      Assert.assertEquals(key(period, 0), written.head.entityKey)
+      Assert.assertEquals(7L, written.head.agg("views").getValue.longValue)
+      Assert.assertEquals(30L, written.head.abs("rows").getValue.longValue)
+    }
+
+    rollup.heartbeat()
+    Assert.assertEquals(1, persisted(Period.DAILY).size)
+  }
+
+  @Test
+  def testPersistInALaterWindowFlushesTheEarlierOne(): Unit = {
+    rollup.persist("foo", 1000, metrics(1, 10))
+    Assert.assertEquals(Nil, persisted(Period.DAILY))
+
+    now = window + 1
+    rollup.persist("foo", now, metrics(1, 10))
+
+    Assert.assertEquals(1, persisted(Period.DAILY).size)
+    Assert.assertEquals(1L, persisted(Period.DAILY).head.agg("views").getValue.longValue)
+  }
+
+  @Test
+  def testCallerMetricsAreNotMutated(): Unit = {
+    val first = metrics(1, 10)
+    rollup.persist("foo", 1000, first)
+    rollup.persist("foo", 2000, metrics(2, 20))
+
+    Assert.assertEquals(1L, first.get("views").getValue.longValue)
+  }
+
+  @Test
+  def testStoppingFlushesTheCurrentWindow(): Unit = {
+    rollup.persist("foo", 1000, metrics(1, 10))
+    rollup.onStop()
+
+    Assert.assertEquals(1, persisted(Period.DAILY).size)
+    Assert.assertEquals(1, persisted(Period.MONTHLY).size)
+  }
+
+  @Test
+  def testAFullBufferIsFlushedBeforeBufferingMore(): Unit = {
+    val bounded = new RollupDataStore(new CassandraDataStore(mock), time, window, maxBufferedBuckets = 2)
+    bounded.persist("foo", 1000, metrics(1, 10))
+    Assert.assertEquals(Nil, persisted(Period.DAILY))
+
+    bounded.persist("bar", 1000, metrics(1, 10))
+    Assert.assertEquals(List(key(Period.DAILY, 0)), persisted(Period.DAILY).map(_.entityKey))
+  }
+
+  @Test
+  def testBucketsThatFailToFlushAreKeptUnderNewerOnes(): Unit = {
+    rollup.persist("foo", 1000, metrics(1, 10))
+
+    failing = true
+    now = window
+    rollup.persist("foo", 2000, metrics(2, 20))
+    Assert.assertEquals(Nil, persisted(Period.DAILY))
+
+    failing = false
+    rollup.onStop()
+    val written = persisted(Period.DAILY)
+    Assert.assertEquals(1, written.size)
+    Assert.assertEquals(3L, written.head.agg("views").getValue.longValue)
+    Assert.assertEquals(20L, written.head.abs("rows").getValue.longValue)
+  }
+}
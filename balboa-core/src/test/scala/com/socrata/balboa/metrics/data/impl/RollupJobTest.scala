@@ -0,0 +1,124 @@
+package com.socrata.balboa.metrics.data.impl
+
+import java.util.Date
+import java.util.concurrent.TimeUnit
+
+import com.socrata.balboa.metrics.data.Period
+import com.socrata.balboa.metrics.{Metric, Metrics}
+import junit.framework.Assert
+import org.junit.Test
+
+import scala.collection.JavaConverters._
+import scala.{collection => sc}
+
+class RollupJobTest {
+  val hour: Long = TimeUnit.HOURS.toMillis(1)
+  val day: Long = TimeUnit.DAYS.toMillis(1)
+
+  /**
+   * Keeps what is persisted, so the job reads back what it and the
+   * datastore wrote.
+   */
+  val mock = new MockCassandraQueryImpl() {
+    val stored = sc.mutable.HashMap[(String, Period), BucketCells]()
+
+    override def fetch(entityId: String, period: Period, bucket: Date): Metrics = {
+      super.fetch(entityId, period, bucket)
+      stored.get((CassandraUtil.createEntityKey(entityId, bucket.getTime), period)).fold(new Metrics())(_.toMetrics)
+    }
+
+    override def persist(entityId: String, bucket: Date, period: Period,
+                         aggregates: sc.Map[String, Metric], absolutes: sc.Map[String, Metric]): Unit = {
+      super.persist(entityId, bucket, period, aggregates, absolutes)
+      val cells = new BucketCells(
+        sc.mutable.HashMap(absolutes.mapValues(_.getValue.longValue).toSeq: _*),
+        sc.mutable.HashMap(aggregates.mapValues(_.getValue.longValue).toSeq: _*))
+      stored.getOrElseUpdate((CassandraUtil.createEntityKey(entityId, bucket.getTime), period), new BucketCells())
+        .mergeNewer(cells)
+    }
+  }
+
+  val store = new CassandraDataStore(mock, finestTierOnly = true)
+  var now: Long = 0
+  val job = new RollupJob(mock, timeService = new TimeService {
+    override def currentTimeMillis(): Long = now
+  }, lateness = hour, parallelism = 1)
+
+  def metrics(aggregate: Long, absolute: Long): Metrics = new Metrics(Map(
+    "views" -> new Metric(Metric.RecordType.AGGREGATE, aggregate),
+    "rows" -> new Metric(Metric.RecordType.ABSOLUTE, absolute)).asJava)
+
+  def find(period: Period, bucket: Long): Metrics = store.find("foo", period, new Date(bucket)).next()
+
+  @Test
+  def testCoarseTiersAreRolledUpFromTheMostGranular(): Unit = {
+    store.persist("foo", hour, metrics(1, 10))
+    store.persist("foo", 5 * hour, metrics(2, 20))
+    store.persist("foo", day + hour, metrics(4, 30))
+    Assert.assertEquals(Set(Period.HOURLY), mock.persists.map(_.period).toSet)
+
+    now = 40 * day
+    Assert.assertEquals(3L, job.run())
+
+    Assert.assertEquals(metrics(3, 20), find(Period.DAILY, 0))
+    Assert.assertEquals(metrics(4, 30), find(Period.DAILY, day))
+    Assert.assertEquals(metrics(7, 30), find(Period.MONTHLY, 0))
+    Assert.assertEquals(Some(39 * day),
+      mock.checkpoints.get((RollupJob.checkpoint(Period.DAILY), CassandraUtil.entityShard("foo"))))
+  }
+
+  @Test
+  def testOpenBucketsAreLeftForALaterRun(): Unit = {
+    store.persist("foo", hour, metrics(1, 10))
+
+    now = day + hour / 2
+    Assert.assertEquals(0L, job.run())
+    Assert.assertEquals(new Metrics(), find(Period.DAILY, 0))
+
+    now = day + hour
+    Assert.assertEquals(1L, job.run())
+    Assert.assertEquals(metrics(1, 10), find(Period.DAILY, 0))
+    Assert.assertEquals(new Metrics(), find(Period.MONTHLY, 0))
+  }
+
+  @Test
+  def testRunningAgainWithoutCheckpointsWritesNothing(): Unit = {
+    store.persist("foo", hour, metrics(1, 10))
+    store.persist("foo", 2 * hour, metrics(2, 20))
+    now = 40 * day
+    job.run()
+    val written = mock.persists.size
+
+    mock.checkpoints = Map()
+    Assert.assertEquals(0L, job.run())
+    Assert.assertEquals(written, mock.persists.size)
+    Assert.assertEquals(metrics(3, 20), find(Period.MONTHLY, 0))
+  }
+
+  @Test
+  def testRerunsOnlyIncrementByTheDifference(): Unit = {
+    store.persist("foo", hour, metrics(1, 10))
+    now = day + hour
+    job.run()
+
+    store.persist("foo", 23 * hour, metrics(2, 50))
+    mock.checkpoints = Map()
+    job.run()
+
+    Assert.assertEquals(metrics(3, 50), find(Period.DAILY, 0))
+    Assert.assertEquals(List(1L, 2L),
+      mock.persists.filter(_.period == Period.DAILY).map(_.agg("views").getValue.longValue))
+  }
+
+  @Test
+  def testEntitiesInactiveSinceTheCheckpointAreNotRead(): Unit = {
+    store.persist("foo", hour, metrics(1, 10))
+    now = 40 * day
+    job.run()
+    val fetches = mock.fetches.size
+
+    now = 80 * day
+    Assert.assertEquals(0L, job.run())
+    Assert.assertEquals(fetches, mock.fetches.size)
+  }
+}
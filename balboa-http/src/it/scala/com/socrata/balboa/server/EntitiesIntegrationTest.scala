@@ -4,7 +4,7 @@ import java.net.URL
 
 import com.stackmob.newman.ApacheHttpClient
 import com.stackmob.newman.dsl.GET
-import com.stackmob.newman.response.HttpResponseCode.Ok
+import com.stackmob.newman.response.HttpResponseCode.{BadRequest, Ok}
 import org.scalatest.{FlatSpec, Matchers}
 
 import scala.concurrent._
@@ -18,6 +18,19 @@ class EntitiesIntegrationTest extends FlatSpec with Matchers {
     response.code.code should be (Ok.code)
   }
 
+  "Retrieve /entities with a limit" should "return at most that many entities" in {
+    val url = new URL(Config.Server, "/entities?limit=1")
+    val response = Await.result(GET(url).apply, Config.RequestTimeout)
+    response.code.code should be (Ok.code)
+    response.bodyString.count(_ == ',') should be (0)
+  }
+
+  "Retrieve /entities with a malformed pageToken" should "be a bad request" in {
+    val url = new URL(Config.Server, "/entities?limit=1&pageToken=%25%25")
+    val response = Await.result(GET(url).apply, Config.RequestTimeout)
+    response.code.code should be (BadRequest.code)
+  }
+
   // Note: this endpoint probably should not exist. All socrata-http url
   // patterns match urls with extra segments. This is preserved for the
   // purposes of compatibility while transitioning to Scalatra. Once that
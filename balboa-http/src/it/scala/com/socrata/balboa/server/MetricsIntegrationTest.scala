@@ -3,6 +3,7 @@ package com.socrata.balboa.server
 import java.net.URL
 
 import com.fasterxml.jackson.core.JsonParseException
+import com.socrata.balboa.metrics.{EntityRecordJSON, MetricJSON => RecordMetricJSON}
 import com.socrata.balboa.metrics.Metric.RecordType
 import com.stackmob.newman.ApacheHttpClient
 import com.stackmob.newman.dsl.{GET, POST}
@@ -181,6 +182,22 @@ class MetricsIntegrationTest extends FlatSpec with Matchers with BeforeAndAfterE
     response shouldHaveCode Ok
   }
 
+  def header(response: HttpResponse, name: String): Option[String] =
+    response.headers.toList.flatMap(_.list.toList).collectFirst({ case (k, v) if k.equalsIgnoreCase(name) => v })
+
+  "Retrieve a closed /metrics/*/range with a matching If-None-Match" should "be not modified" in {
+    val url = s"metrics/$testEntityName/range?start=$testStart&end=$testEnd"
+    val first = getJSONResponse(url)
+    first.code.code should be (Ok.code)
+    val etag = header(first, "ETag")
+    etag should be ('defined)
+
+    val second = Await.result(GET(new URL(Config.Server, url)).setHeaders(("If-None-Match", etag.get)).apply,
+      Config.RequestTimeout)
+    second.code.code should be (304)
+    second.bodyString should be ("")
+  }
+
   // Returns the JSON string representation of the metric added
   def persistSingleMetric(entityId: String = testEntityName,
                           metricType: RecordType = RecordType.ABSOLUTE): String = {
@@ -245,6 +262,25 @@ class MetricsIntegrationTest extends FlatSpec with Matchers with BeforeAndAfterE
     persistManyMetrics(testEntityName, 10, RecordType.ABSOLUTE, RecordType.AGGREGATE)
   }
 
+  "Persist a batch of entities via POST /metrics" should "aggregate and show persisted metrics" in {
+    val entity1 = testEntityName + "-1"
+    val entity2 = testEntityName + "-2"
+    val batch = List(
+      EntityRecordJSON(entity1, testPersistedDateEpoch, Map(testMetricName -> RecordMetricJSON(1, "AGGREGATE"))),
+      EntityRecordJSON(entity1, testPersistedDateEpoch + 1, Map(testMetricName -> RecordMetricJSON(2, "AGGREGATE"))),
+      EntityRecordJSON(entity2, testPersistedDateEpoch, Map(testMetricName -> RecordMetricJSON(5, "ABSOLUTE"))))
+    val result = Await.result(
+      POST(new URL(Config.Server, "/metrics")).setBody(pretty(render(Extraction.decompose(batch)))).apply,
+      Config.RequestTimeout)
+    result.code.code should be (NoContent.code)
+
+    val response = getJSONResponse(s"metrics/range?entityId=$entity1&entityId=$entity2&start=$testStart&end=$testEnd")
+    response.code.code should be (Ok.code)
+    response.bodyString shouldBeJSON
+      s"""{ "$entity1": { "$testMetricName": { "value": 3, "type": "aggregate" } },
+         |  "$entity2": { "$testMetricName": { "value": 5, "type": "absolute" } } }""".stripMargin
+  }
+
   "Retrieve /metrics/* after persisting" should "show persisted metric" in {
     val expected = persistSingleMetric()
     val response = getJSONProtoResponse(s"/metrics/$testEntityName?period=YEARLY&date=$testPersistedDate")
@@ -0,0 +1,157 @@
+package com.socrata.balboa.server
+
+import java.io.ByteArrayOutputStream
+import java.nio.charset.StandardCharsets.UTF_8
+import java.security.MessageDigest
+import java.text.SimpleDateFormat
+import java.util.zip.GZIPOutputStream
+import java.util.{Date, Locale, TimeZone}
+
+import com.typesafe.config.{Config, ConfigFactory}
+import org.scalatra.{ActionResult, NotModified, ScalatraServlet}
+
+import scala.util.Try
+
+/**
+  * Conditional GET and response compression for metric queries.
+  *
+  * <br>
+  *   Queries whose range ended further in the past than the configured
+  *   `http.closedrange.ms` window can no longer receive new metrics (barring
+  *   backfills), so their results are immutable. Such responses carry a strong
+  *   ETag derived from the normalized query and the configured
+  *   `http.etag.version`, along with a Last-Modified header. A client
+  *   presenting a matching validator is answered with `304 Not Modified`
+  *   without the data store being queried at all.
+  *
+  * <br>
+  *   Bump `http.etag.version` after backfilling closed ranges to invalidate
+  *   every ETag previously handed out.
+  */
+trait ConditionalGetSupport extends ScalatraServlet {
+
+  private val httpConf: Config = ConfigFactory.load()
+
+  /**
+    * Number of milliseconds after the end of a range before it is considered closed.
+    */
+  val closedRangeMs: Long = httpConf.getLong("http.closedrange.ms")
+
+  val etagVersion: String = httpConf.getString("http.etag.version")
+
+  /**
+    * Response bodies smaller than this are never compressed.
+    */
+  val gzipMinBytes: Int = httpConf.getInt("http.gzip.minbytes")
+
+  private val ETagHeader = "ETag"
+  private val LastModifiedHeader = "Last-Modified"
+  private val IfNoneMatchHeader = "If-None-Match"
+  private val IfModifiedSinceHeader = "If-Modified-Since"
+  private val VaryHeader = "Vary"
+  private val VaryValue = "Accept, Accept-Encoding"
+  private val Gzip = "gzip"
+
+  def isClosed(end: Date): Boolean = end.getTime + closedRangeMs < System.currentTimeMillis()
+
+  /**
+    * Answers a query either with `304 Not Modified` or with the result of
+    * `compute`, attaching validators when the range ending at `end` is
+    * closed. `queryKey` must contain every parameter that influences the
+    * response body.
+    */
+  def conditionally(queryKey: Seq[Any], end: Date)(compute: => ActionResult): ActionResult = {
+    if (!isClosed(end)) {
+      compressed(compute)
+    } else {
+      val etag = strongETag(queryKey :+ acceptsGzip)
+      // HTTP dates only have second precision.
+      val lastModified = ((end.getTime + closedRangeMs) / 1000) * 1000
+      val validators = Map(
+        ETagHeader -> etag,
+        LastModifiedHeader -> httpDate(lastModified),
+        "Cache-Control" -> "no-cache",
+        VaryHeader -> VaryValue)
+
+      if (notModified(etag, lastModified)) {
+        NotModified(validators)
+      } else {
+        val result = compute
+        compressed(result.copy(headers = result.headers ++ validators))
+      }
+    }
+  }
+
+  /**
+    * Gzips byte array bodies of successful responses when the client accepts
+    * it and the body is large enough to be worth the CPU. Every such response
+    * varies by Accept-Encoding, whether or not this one was compressed, so
+    * that caches never hand an uncompressed body to a client that asked for
+    * gzip or the other way around.
+    */
+  def compressed(result: ActionResult): ActionResult = result.body match {
+    case bytes: Array[Byte] if result.status.code == 200 =>
+      val varied = result.headers + (VaryHeader -> VaryValue)
+      if (bytes.length >= gzipMinBytes && acceptsGzip) {
+        result.copy(body = gzip(bytes), headers = varied + ("Content-Encoding" -> Gzip))
+      } else {
+        result.copy(headers = varied)
+      }
+    case _ => result
+  }
+
+  /**
+    * Whether Accept-Encoding gives gzip, or failing that `*`, a q-value above
+    * zero. A q-value of zero, or one that can not be parsed, refuses it.
+    */
+  private def acceptsGzip: Boolean = {
+    val codings = Option(request.getHeader("Accept-Encoding")).toSeq.flatMap(_.split(",")).map { coding =>
+      val params = coding.split(";").map(_.trim)
+      val q = params.tail.collectFirst {
+        case param if param.toLowerCase.startsWith("q=") => Try(param.substring(2).trim.toDouble).getOrElse(0.0)
+      }
+      params.head.toLowerCase -> q.getOrElse(1.0)
+    }
+    codings.collectFirst({ case (name, q) if name == Gzip || name == "x-gzip" => q })
+      .orElse(codings.collectFirst({ case ("*", q) => q }))
+      .exists(_ > 0)
+  }
+
+  private def notModified(etag: String, lastModified: Long): Boolean = {
+    Option(request.getHeader(IfNoneMatchHeader)) match {
+      // If-None-Match takes precedence over If-Modified-Since when both are present.
+      case Some(ifNoneMatch) =>
+        ifNoneMatch.split(",").map(_.trim.stripPrefix("W/")).exists(tag => tag == etag || tag == "*")
+      case None =>
+        // getDateHeader returns -1 when the header is absent and throws when it is malformed.
+        Try(request.getDateHeader(IfModifiedSinceHeader)).toOption
+          .exists(since => since != -1 && since >= lastModified)
+    }
+  }
+
+  private def strongETag(queryKey: Seq[Any]): String = {
+    val digest = MessageDigest.getInstance("MD5")
+    (etagVersion +: queryKey).foreach { part =>
+      digest.update(String.valueOf(part).getBytes(UTF_8))
+      digest.update(0.toByte)
+    }
+    "\"" + digest.digest().map("%02x".format(_)).mkString + "\""
+  }
+
+  private def httpDate(millis: Long): String = {
+    val format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US)
+    format.setTimeZone(TimeZone.getTimeZone("GMT"))
+    format.format(new Date(millis))
+  }
+
+  private def gzip(bytes: Array[Byte]): Array[Byte] = {
+    val buffer = new ByteArrayOutputStream(bytes.length / 4)
+    val stream = new GZIPOutputStream(buffer)
+    try {
+      stream.write(bytes)
+    } finally {
+      stream.close()
+    }
+    buffer.toByteArray
+  }
+}
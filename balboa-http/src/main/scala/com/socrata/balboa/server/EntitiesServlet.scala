@@ -1,19 +1,33 @@
 package com.socrata.balboa.server
 
+import java.io.OutputStream
+import java.nio.charset.StandardCharsets.UTF_8
+import java.util.Base64
 import javax.servlet.http.HttpServletRequest
 
 import com.socrata.balboa.metrics.data.{DataStoreFactory, DefaultDataStoreFactory}
 import com.socrata.balboa.server.ResponseWithType.json
 import com.typesafe.scalalogging.StrictLogging
-import org.codehaus.jackson.map.annotate.JsonSerialize
-import org.codehaus.jackson.map.{ObjectMapper, SerializationConfig}
+import org.codehaus.jackson.JsonEncoding
+import org.codehaus.jackson.map.ObjectMapper
 import org.eclipse.jetty.http.HttpStatus.BAD_REQUEST_400
 import org.scalatra._
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
+import scala.util.Try
 
 class EntitiesServletWithDefaultDataStore extends EntitiesServlet(DefaultDataStoreFactory)
 
+/**
+  * Lists entity ids as a JSON array.
+  *
+  * <br>
+  *   When `limit` is given and more entities remain, the response carries an
+  *   `X-Next-Page-Token` header. Passing its value back as `pageToken`
+  *   returns the next page. Tokens are positions in the entity listing, so
+  *   they stay valid indefinitely.
+  */
 class EntitiesServlet(dataStoreFactory: DataStoreFactory) extends ScalatraServlet
     with SocrataMetricsSupport
     with ClientCounter
@@ -25,6 +39,8 @@ class EntitiesServlet(dataStoreFactory: DataStoreFactory) extends ScalatraServle
 
   val dataStore = dataStoreFactory.get
 
+  val NextPageTokenHeader = "X-Next-Page-Token"
+
   def getAccepts(req: HttpServletRequest): Seq[String] = {
     req.getHeaders("accept").asScala.toSeq
   }
@@ -34,26 +50,57 @@ class EntitiesServlet(dataStoreFactory: DataStoreFactory) extends ScalatraServle
   def getEntities: ActionResult = {
     contentType = json
 
-    val filter = params.getOrElse("filter",".*")
+    val filter = params.getOrElse("filter", "")
 
-    timer("entities-get")({
-      val it = dataStore.entities(filter)
-      // backwards-compatibility: -1 == no limit
-      val limitString = params.getOrElse("limit", "-1")
-      val limit = try {
-        limitString.toInt
-      } catch {
-        case err: NumberFormatException =>
-          return BadRequest(Error(BAD_REQUEST_400, "Unable to parse limit as int"))
-      }
+    // backwards-compatibility: -1 == no limit
+    val limitString = params.getOrElse("limit", "-1")
+    val limit = try {
+      limitString.toInt
+    } catch {
+      case err: NumberFormatException =>
+        return BadRequest(Error(BAD_REQUEST_400, "Unable to parse limit as int"))
+    }
 
-      val limitedIt = if (limit != -1) it.take(limit) else it
+    val after = params.get("pageToken").map(token => decodePageToken(token).getOrElse {
+      return BadRequest(Error(BAD_REQUEST_400, "Unable to parse pageToken"))
+    })
+
+    timer("entities-get")({
+      val it = after.fold(dataStore.entities(filter))(dataStore.entities(filter, _))
 
-      val mapper = new ObjectMapper
-      mapper.configure(SerializationConfig.Feature.INDENT_OUTPUT, true)
-      mapper.getSerializationConfig.withSerializationInclusion(JsonSerialize.Inclusion.NON_NULL)
+      if (limit != -1) {
+        // Only a page is held in memory, and the token for the next one has
+        // to be known before the body is written.
+        val page = ListBuffer[String]()
+        while (page.size < limit && it.hasNext) {
+          page += it.next()
+        }
+        if (page.nonEmpty && page.size == limit && it.hasNext) {
+          response.setHeader(NextPageTokenHeader, encodePageToken(page.last))
+        }
+        writeJsonArray(page.iterator, response.getOutputStream)
+      } else {
+        writeJsonArray(it, response.getOutputStream)
+      }
 
-      Ok(mapper.writeValueAsString(limitedIt.asJava))
+      Ok()
     }).call()
   }
+
+  /**
+    * Writes the strings as a JSON array as they are read from the iterator.
+    */
+  private def writeJsonArray(strings: Iterator[String], out: OutputStream): Unit = {
+    val generator = new ObjectMapper().getJsonFactory.createJsonGenerator(out, JsonEncoding.UTF8)
+    generator.writeStartArray()
+    strings.foreach(s => generator.writeString(s))
+    generator.writeEndArray()
+    generator.flush()
+  }
+
+  private def encodePageToken(lastEntityId: String): String =
+    Base64.getUrlEncoder.withoutPadding.encodeToString(lastEntityId.getBytes(UTF_8))
+
+  private def decodePageToken(token: String): Option[String] =
+    Try(new String(Base64.getUrlDecoder.decode(token), UTF_8)).toOption
 }
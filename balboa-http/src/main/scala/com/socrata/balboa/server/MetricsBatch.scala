@@ -0,0 +1,95 @@
+package com.socrata.balboa.server
+
+import java.io.{ByteArrayOutputStream, IOException, InputStream}
+import java.util.Date
+import java.util.zip.GZIPInputStream
+
+import com.socrata.balboa.metrics.Metric.RecordType
+import com.socrata.balboa.metrics.data.{DateRange, Period}
+import com.socrata.balboa.metrics.impl.{JsonMessage, ProtocolBuffersMessages}
+import com.socrata.balboa.metrics.{EntityRecordJSON, Message, Metric, Metrics}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+  * Thrown when a request body is larger than it may be, once inflated.
+  */
+class BatchTooLargeException(val maxBytes: Long)
+  extends IOException(s"Request body is larger than $maxBytes bytes")
+
+/**
+  * Decoding and pre-aggregation of metric batches posted to balboa-http.
+  */
+object MetricsBatch {
+
+  /**
+    * Folds a batch of messages into one set of metrics per entity and bucket
+    * of `bucketPeriod`, so each pair is persisted once no matter how many
+    * data points it received.
+    *
+    * Messages are applied in timestamp order so that the latest absolute
+    * value within a bucket wins, just as it would have when persisted one at
+    * a time.
+    *
+    * @return (entityId, bucket start, metrics) in order of first appearance.
+    * @throws IllegalArgumentException if one metric name is used with two record types in a bucket.
+    */
+  def aggregate(messages: Seq[Message], bucketPeriod: Period): Seq[(String, Long, Metrics)] = {
+    val buckets = mutable.LinkedHashMap[(String, Long), Metrics]()
+    messages.sortBy(_.getTimestamp).foreach { message =>
+      val bucket = DateRange.create(bucketPeriod, new Date(message.getTimestamp)).start.getTime
+      buckets.getOrElseUpdate((message.getEntityId, bucket), new Metrics()).merge(message.getMetrics)
+    }
+    buckets.map({ case ((entityId, bucket), metrics) => (entityId, bucket, metrics) }).toSeq
+  }
+
+  /**
+    * Converts JSON batch records to messages.
+    *
+    * @return Either a description of the first invalid record or the messages.
+    */
+  def fromJson(records: Seq[EntityRecordJSON]): Either[String, Seq[Message]] = {
+    val messages = records.map { record =>
+      if (Option(record.entityId).forall(_.isEmpty)) {
+        return Left("every record requires an entityId") // scalastyle:ignore return
+      }
+      val metrics = new Metrics(record.metrics.size)
+      record.metrics.foreach { case (name, metric) =>
+        val recordType = Option(metric.`type`).map(_.toUpperCase) match {
+          case Some("ABSOLUTE") => RecordType.ABSOLUTE
+          case Some("AGGREGATE") => RecordType.AGGREGATE
+          case _ => return Left("metric type must be ABSOLUTE or AGGREGATE") // scalastyle:ignore return
+        }
+        metrics.put(name, new Metric(recordType, metric.value))
+      }
+      JsonMessage(record.entityId, record.timestamp, metrics)
+    }
+    Right(messages)
+  }
+
+  def fromProtobuf(body: Array[Byte]): Seq[Message] = new ProtocolBuffersMessages(body).asScala
+
+  /**
+    * Reads a request body, inflating it if it was sent gzip compressed.
+    *
+    * @throws BatchTooLargeException as soon as more than `maxBytes` have been
+    *                                read, after inflating, so that neither a
+    *                                large body nor a small one that inflates
+    *                                to a large one is held in memory.
+    */
+  def readBody(input: InputStream, contentEncoding: Option[String], maxBytes: Long): Array[Byte] = {
+    val stream = if (contentEncoding.exists(_.toLowerCase.contains("gzip"))) new GZIPInputStream(input) else input
+    val out = new ByteArrayOutputStream()
+    val buffer = new Array[Byte](8192) // scalastyle:ignore magic.number
+    var read = stream.read(buffer)
+    while (read != -1) {
+      if (out.size + read > maxBytes) {
+        throw new BatchTooLargeException(maxBytes)
+      }
+      out.write(buffer, 0, read)
+      read = stream.read(buffer)
+    }
+    out.toByteArray
+  }
+}
@@ -4,18 +4,22 @@ import java.nio.charset.StandardCharsets.UTF_8
 import java.util.Date
 
 import com.socrata.balboa.metrics.Metric.RecordType
-import com.socrata.balboa.metrics.data.{DataStoreFactory, DateRange, DefaultDataStoreFactory, Period}
+import com.socrata.balboa.metrics.data.impl.SupportedPeriods
+import com.socrata.balboa.metrics.data.{DataStoreFactory, DateRange, DefaultDataStoreFactory, Period, QueryOptimizer}
 import com.socrata.balboa.metrics.impl.ProtocolBuffersMetrics
-import com.socrata.balboa.metrics.{Metric, Metrics}
+import com.socrata.balboa.metrics.{EntityRecordJSON, Metric, Metrics}
 import com.socrata.balboa.server.ResponseWithType._
 import com.socrata.balboa.server.ScalatraUtil.getAccepts
 import com.socrata.balboa.server.rest.Extractable
+import com.typesafe.config.ConfigFactory
 import com.typesafe.scalalogging.StrictLogging
 import org.codehaus.jackson.map.annotate.JsonSerialize
 import org.codehaus.jackson.map.{ObjectMapper, SerializationConfig}
+import org.json4s.jackson.JsonMethods
 import org.scalatra.{ActionResult, NoContent, Ok}
 
 import scala.collection.JavaConverters._
+import scala.util.{Failure, Success, Try}
 
 // scalastyle:off return
 
@@ -27,18 +31,34 @@ class MetricsServlet(dataStoreFactory: DataStoreFactory) extends JacksonJsonServ
     with RequestLogger
     with StrictLogging
     with NotFoundFilter
-    with UnexpectedErrorFilter {
+    with UnexpectedErrorFilter
+    with ConditionalGetSupport {
 
   val dataStore = dataStoreFactory.get
 
   val MaxLogLength = 1000000
 
+  /**
+    * Batches posted to /metrics are pre-aggregated into buckets of the most
+    * granular period that is summarized.
+    */
+  val BatchBucketPeriod: Period = Period.mostGranular(SupportedPeriods.getSupportedPeriodsJava(ConfigFactory.load()))
+
+  /**
+    * Largest batch posted to /metrics that is read, once inflated.
+    */
+  val BatchMaxBytes: Long = ConfigFactory.load().getBytes("http.batch.maxbytes")
+
+  val queryOptimizer = new QueryOptimizer(SupportedPeriods.getSupportedPeriodsJava(ConfigFactory.load()))
+
   val StartKey = "start"
   val EndKey = "end"
   val PeriodKey = "period"
   val DateKey = "date"
   val CombineKey = "combine"
   val FieldKey = "field"
+  val MaxPointsKey = "maxPoints"
+  val CountKey = "n"
 
   // Match paths like /metrics/:entityId and /metrics/:entityId/whatever
   get("""^\/([^\/]+).*""".r)(getMetrics)
@@ -75,14 +95,16 @@ class MetricsServlet(dataStoreFactory: DataStoreFactory) extends JacksonJsonServ
     })
 
     timer("metrics-get")({
-      var metrics = Metrics.summarize(dataStore.find(entityId, period, range.start, range.end))
+      conditionally(Seq("get", entityId, period, range.start.getTime, combine, field, mediaType), range.end) {
+        var metrics = Metrics.summarize(dataStore.find(entityId, period, range.start, range.end))
 
-      combine.foreach { c => metrics = metrics.combine(c) }
-      field.foreach { f => metrics = metrics.filter(f) }
+        combine.foreach { c => metrics = metrics.combine(c) }
+        field.foreach { f => metrics = metrics.filter(f) }
 
-      val response = render(mediaType, metrics)
-      contentType = response.contentType
-      response.result
+        val response = render(mediaType, metrics)
+        contentType = response.contentType
+        response.result
+      }
     }).call()
   }
 
@@ -129,10 +151,12 @@ class MetricsServlet(dataStoreFactory: DataStoreFactory) extends JacksonJsonServ
     })
 
     timer("metrics-get-range")({
-      val metrics = rangeMetrics(entityId, startDate, endDate, combine, field)
-      val result = render(mediaType, metrics)
-      contentType = result.contentType
-      result.result
+      conditionally(Seq("range", entityId, startDate.getTime, endDate.getTime, combine, field, mediaType), endDate) {
+        val metrics = rangeMetrics(entityId, startDate, endDate, combine, field)
+        val result = render(mediaType, metrics)
+        contentType = result.contentType
+        result.result
+      }
     }).call()
   }
 
@@ -161,10 +185,88 @@ class MetricsServlet(dataStoreFactory: DataStoreFactory) extends JacksonJsonServ
     })
 
     timer("metrics-get-ranges")({
-      val metrics = entityIds.par.map(entityId =>
-        (entityId, rangeMetrics(entityId, startDate, endDate, combine, field))).toMap
-      // asJava is necessary for json4s/Jackson to serialize parallel collections to JSON correctly
-      val body = renderJson(metrics.seq.asJava).getBytes(UTF_8)
+      conditionally(Seq("ranges", entityIds.mkString(","), startDate.getTime, endDate.getTime, combine, field),
+          endDate) {
+        val metrics = entityIds.par.map(entityId =>
+          (entityId, rangeMetrics(entityId, startDate, endDate, combine, field))).toMap
+        // asJava is necessary for json4s/Jackson to serialize parallel collections to JSON correctly
+        val body = renderJson(metrics.seq.asJava).getBytes(UTF_8)
+        contentType = json
+        Ok(body)
+      }
+    }).call()
+  }
+
+  get(s"/:$entityIdKey/top*")(getTop)
+  def getTop: ActionResult = {
+    val entityId = params(entityIdKey)
+
+    val n = params.get(CountKey).map(Extractable[Int].extract) match {
+      case Some(Right(value)) if value > 0 => value
+      case Some(Right(_)) =>
+        contentType = json
+        return badRequest(CountKey, "must be positive").result
+      case Some(Left(err)) =>
+        contentType = json
+        return badRequest(CountKey, err).result
+      case None =>
+        contentType = json
+        return required(CountKey).result
+    }
+    val start = params.getOrElse(StartKey, {
+      contentType = json
+      return required(StartKey).result
+    })
+    val end = params.getOrElse(EndKey, {
+      contentType = json
+      return required(EndKey).result
+    })
+    val field = params.get(FieldKey)
+
+    val startDate = ServiceUtils.parseDate(start).getOrElse({
+      contentType = json
+      return malformedDate(start).result
+    })
+    val endDate = ServiceUtils.parseDate(end).getOrElse({
+      contentType = json
+      return malformedDate(end).result
+    })
+
+    bestMediaType(getAccepts(request), json).getOrElse({
+      contentType = json
+      return unacceptable.result
+    })
+
+    timer("metrics-get-top")({
+      conditionally(Seq("top", entityId, n, startDate.getTime, endDate.getTime, field), endDate) {
+        val metrics = Metrics.summarize(dataStore.find(entityId, startDate, endDate))
+        val top = metrics.top(n, field.orNull).asScala.map { entry =>
+          val rendered = new java.util.LinkedHashMap[String, Any]()
+          rendered.put("name", entry.getKey)
+          rendered.put("type", entry.getValue.getType)
+          rendered.put("value", entry.getValue.getValue)
+          rendered
+        }
+        val body = renderJson(top.asJava).getBytes(UTF_8)
+        contentType = json
+        Ok(body)
+      }
+    }).call()
+  }
+
+  get(s"/:$entityIdKey/names*")(getNames)
+  def getNames: ActionResult = {
+    val entityId = params(entityIdKey)
+    val field = params.get(FieldKey)
+
+    bestMediaType(getAccepts(request), json).getOrElse({
+      contentType = json
+      return unacceptable.result
+    })
+
+    timer("metrics-get-names")({
+      val names = dataStore.metricNames(entityId).filter(name => field.forall(name.getName.matches))
+      val body = renderJson(names.toList.asJava).getBytes(UTF_8)
       contentType = json
       Ok(body)
     }).call()
@@ -201,17 +303,24 @@ class MetricsServlet(dataStoreFactory: DataStoreFactory) extends JacksonJsonServ
       return malformedDate(end).result
     })
 
+    val seriesPeriod = maxPoints match {
+      case Right(limit) => limit.map(queryOptimizer.downsample(period, startDate, endDate, _)).getOrElse(period)
+      case Left(error) => return error
+    }
+
     bestMediaType(getAccepts(request), json).getOrElse({
       contentType = json
       return unacceptable.result
     })
 
     timer("metrics-get-series")({
-      val series = dataStore.slices(entityId, period, startDate, endDate)
-      // asJava is necessary for json4s/Jackson to serialize parallel collections to JSON correctly
-      val body = renderJson(series.seq.asJava).getBytes(UTF_8)
-      contentType = json
-      Ok(body)
+      conditionally(Seq("series", entityId, seriesPeriod, startDate.getTime, endDate.getTime), endDate) {
+        val series = dataStore.slices(entityId, seriesPeriod, startDate, endDate)
+        // asJava is necessary for json4s/Jackson to serialize parallel collections to JSON correctly
+        val body = renderJson(series.seq.asJava).getBytes(UTF_8)
+        contentType = json
+        Ok(body)
+      }
     }).call()
   }
 
@@ -246,13 +355,21 @@ class MetricsServlet(dataStoreFactory: DataStoreFactory) extends JacksonJsonServ
       return malformedDate(end).result
     })
 
+    val seriesPeriod = maxPoints match {
+      case Right(limit) => limit.map(queryOptimizer.downsample(period, startDate, endDate, _)).getOrElse(period)
+      case Left(error) => return error
+    }
+
     timer("metrics-get-series")({
-      val serieses = entityIds.par.map(entityId =>
-        (entityId, dataStore.slices(entityId, period, startDate, endDate))).toMap
-      // asJava is necessary for json4s/Jackson to serialize parallel collections to JSON correctly
-      val body = renderJson(serieses.map({ case (k, v) => (k, v.asJava) }).seq.asJava).getBytes(UTF_8)
-      contentType = json
-      Ok(body)
+      conditionally(Seq("serieses", entityIds.mkString(","), seriesPeriod, startDate.getTime, endDate.getTime),
+          endDate) {
+        val serieses = entityIds.par.map(entityId =>
+          (entityId, dataStore.slices(entityId, seriesPeriod, startDate, endDate))).toMap
+        // asJava is necessary for json4s/Jackson to serialize parallel collections to JSON correctly
+        val body = renderJson(serieses.map({ case (k, v) => (k, v.asJava) }).seq.asJava).getBytes(UTF_8)
+        contentType = json
+        Ok(body)
+      }
     }).call()
   }
 
@@ -294,6 +411,77 @@ class MetricsServlet(dataStoreFactory: DataStoreFactory) extends JacksonJsonServ
     NoContent()
   }
 
+  // Bulk ingest: a JSON array of EntityRecordJSON or a protobuf PBMessages,
+  // optionally gzip compressed.
+  post("/")(postBatch())
+  def postBatch(): ActionResult = {
+    contentType = json
+
+    if (request.getContentLengthLong > BatchMaxBytes) {
+      return tooLarge(BatchMaxBytes).result
+    }
+    val body = Try(MetricsBatch.readBody(request.getInputStream, Option(request.getHeader("Content-Encoding")),
+        BatchMaxBytes)) match {
+      case Success(bytes) => bytes
+      case Failure(e: BatchTooLargeException) =>
+        logger.warn(s"Rejected a metrics batch larger than ${e.maxBytes} bytes")
+        return tooLarge(e.maxBytes).result
+      case Failure(e) =>
+        logger.error("Unable to read metrics batch", e)
+        return badRequest("message body", "unable to read request body").result
+    }
+
+    val isProtobuf = Option(request.getContentType).exists(_.contains(protobuf))
+    val messages = if (isProtobuf) {
+      Try(MetricsBatch.fromProtobuf(body)) match {
+        case Success(decoded) => decoded
+        case Failure(e) =>
+          logger.error("Unable to parse protobuf metrics batch", e)
+          return badRequest("message body", "unable to parse as protobuf metrics batch").result
+      }
+    } else {
+      val records = Try(JsonMethods.parse(new String(body, UTF_8)).extract[List[EntityRecordJSON]]).getOrElse({
+        val bodyToPrint = if (body.length < MaxLogLength) new String(body, UTF_8) else "<truncated - body too large to log>"
+        logger error s"Unable to parse metrics batch to save. Received '$bodyToPrint'"
+        return badRequest("message body", "unable to parse as array of metrics entities").result
+      })
+      MetricsBatch.fromJson(records) match {
+        case Right(decoded) => decoded
+        case Left(err) => return badRequest("metrics batch", err).result
+      }
+    }
+
+    val buckets = try {
+      MetricsBatch.aggregate(messages, BatchBucketPeriod)
+    } catch {
+      case e: IllegalArgumentException => return badRequest("metrics batch", e.getMessage).result
+    }
+
+    timer("metric-post-batch")({
+      buckets.foreach { case (entityId, bucket, metrics) => dataStore.persist(entityId, bucket, metrics) }
+    }).call()
+
+    logger.info(s"Persisted batch of ${messages.size} records as ${buckets.size} entity buckets")
+    NoContent()
+  }
+
+
+  /**
+    * The optional `maxPoints` parameter of series queries. When present, the
+    * series is served at the finest period with at most that many timeslices,
+    * rolled up from the stored tiers by the data store.
+    */
+  private def maxPoints: Either[ActionResult, Option[Int]] =
+    params.get(MaxPointsKey).map(Extractable[Int].extract) match {
+      case Some(Right(value)) if value > 0 => Right(Some(value))
+      case Some(Right(_)) =>
+        contentType = json
+        Left(badRequest(MaxPointsKey, "must be positive").result)
+      case Some(Left(err)) =>
+        contentType = json
+        Left(badRequest(MaxPointsKey, err).result)
+      case None => Right(None)
+    }
 
   def bestMediaType(accepts: Seq[String], types: String*): Option[String] = {
     if(accepts.isEmpty) return Some(types(0))
@@ -1,7 +1,7 @@
 package com.socrata.balboa.server
 
 import org.eclipse.jetty.http.HttpStatus._
-import org.scalatra.{ActionResult, BadRequest, NotAcceptable}
+import org.scalatra.{ActionResult, BadRequest, NotAcceptable, RequestEntityTooLarge}
 
 case class ResponseWithType(contentType: String, result: ActionResult)
 case class Error(error: Int, message: String)
@@ -21,4 +21,8 @@ object ResponseWithType {
 
   def badRequest(parameter: String, msg: String): ResponseWithType =
     ResponseWithType(json, BadRequest(Error(BAD_REQUEST_400, s"Unable to parse $parameter : " + msg)))
+
+  def tooLarge(maxBytes: Long): ResponseWithType =
+    ResponseWithType(json, RequestEntityTooLarge(Error(REQUEST_ENTITY_TOO_LARGE_413,
+      s"Request body is larger than $maxBytes bytes.")))
 }
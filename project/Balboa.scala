@@ -5,6 +5,7 @@ import com.typesafe.sbt.packager.docker.DockerPlugin
 import com.typesafe.sbt.packager.universal.UniversalPlugin
 import io.gatling.sbt.GatlingPlugin
 import io.gatling.sbt.GatlingKeys.GatlingIt
+import pl.project13.scala.sbt.JmhPlugin
 import sbt._
 
 object Balboa extends Build {
@@ -14,7 +15,7 @@ object Balboa extends Build {
     file("."),
     settings = BuildSettings.buildSettings ++ Seq(Keys.parallelExecution := false)
   ) aggregate (balboaAgent, balboaAdmin, balboaCommon, balboaCore, balboaHttp, balboaServiceCore, balboaJms,
-     balboaClientCore, balboaClientJMS, balboaClientDispatcher) // Add new project definitions here.
+     balboaClientCore, balboaClientJMS, balboaClientDispatcher, balboaBenchmarks) // Add new project definitions here.
 
   lazy val balboaCommon = project("balboa-common", BalboaCommon)
     .enablePlugins(com.socrata.sbtplugins.BuildInfoPlugin)
@@ -55,6 +56,9 @@ object Balboa extends Build {
     BalboaClientDispatcher,
     balboaClientJMS % "test->test;compile->compile")
 
+  lazy val balboaBenchmarks = project("balboa-benchmarks", BalboaBenchmarks, balboaCore, balboaAgent)
+    .enablePlugins(JmhPlugin)
+
   // NOTE: Add your new project or submodule here.
 
   // Private Helper Methods
@@ -0,0 +1,17 @@
+import Dependencies._
+import sbt.Keys._
+import sbt._
+
+object BalboaBenchmarks {
+  lazy val settings: Seq[Setting[_]] = BuildSettings.projectSettings ++ Seq(
+    libraryDependencies <++= scalaVersion { libraries(_) },
+    crossScalaVersions := Seq("2.11.8"),
+    // Benchmarks are run from the build, never consumed as a library.
+    publishArtifact := false,
+    fork in run := true
+  )
+
+  def libraries(implicit scalaVersion: String): Seq[ModuleID] = Seq(
+    dropwizard_metrics
+  )
+}